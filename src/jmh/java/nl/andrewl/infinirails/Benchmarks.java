@@ -0,0 +1,24 @@
+package nl.andrewl.infinirails;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that every result comes with
+ * its allocation rate. Arguments are regular expressions that select which
+ * benchmarks to run; with none, all of them are run.
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws RunnerException {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.addProfiler(GCProfiler.class)
+				.jvmArgsAppend("-Djava.awt.headless=true", "--add-modules", "jdk.incubator.vector");
+		for (var include : args) {
+			options.include(include);
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,49 @@
+package nl.andrewl.infinirails;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fractal noise over one fragment's worth of samples, with an increasing
+ * number of octaves. Dividing by the octave count gives the cost per octave.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FractalNoiseBenchmark {
+	private static final int GRID_SIZE = 101;
+
+	@Param({"1", "2", "4", "8"})
+	public int octaves;
+
+	@Param({"FBM", "RIDGED"})
+	public FractalNoise.Mode mode;
+
+	private FractalNoise noise;
+	private final float[] out = new float[GRID_SIZE * GRID_SIZE];
+	private final float[] outDx = new float[GRID_SIZE * GRID_SIZE];
+	private final float[] outDy = new float[GRID_SIZE * GRID_SIZE];
+	private final float[][] scratch = {new float[GRID_SIZE * GRID_SIZE], new float[GRID_SIZE * GRID_SIZE], new float[GRID_SIZE * GRID_SIZE]};
+
+	@Setup
+	public void setup() {
+		// A quantum of 0 keeps every octave.
+		noise = FractalNoise.of(new OpenSimplexNoise(0L), mode, octaves, 1 / 40.0, 10, 2, 0.5f, 0);
+	}
+
+	@Benchmark
+	public float[] evalGrid() {
+		noise.evalGrid(out, 0, 0, 0, 1, GRID_SIZE, GRID_SIZE, octaves, scratch);
+		return out;
+	}
+
+	@Benchmark
+	public float[] evalGridWithDerivatives() {
+		noise.evalGridWithDerivatives(out, outDx, outDy, 0, 0, 0, 1, GRID_SIZE, GRID_SIZE, octaves, scratch);
+		return out;
+	}
+}
@@ -0,0 +1,124 @@
+package nl.andrewl.infinirails;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-point evaluation of each of the noise functions, and grid
+ * evaluation over one fragment's worth of samples.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NoiseBenchmark {
+	private static final int GRID_SIZE = 101;
+
+	private OpenSimplexNoise noise;
+	private FloatOpenSimplexNoise floatNoise;
+	private final double[] derivatives = new double[3];
+	private final float[] grid = new float[GRID_SIZE * GRID_SIZE];
+	private final float[] gridDx = new float[GRID_SIZE * GRID_SIZE];
+	private final float[] gridDy = new float[GRID_SIZE * GRID_SIZE];
+	private double x;
+
+	@Setup
+	public void setup() {
+		noise = new OpenSimplexNoise(0L);
+		floatNoise = new FloatOpenSimplexNoise(noise);
+	}
+
+	/**
+	 * Moves the sample point along an irrational-ish path, so that every call
+	 * lands somewhere else in its cell.
+	 */
+	private double next() {
+		x += 0.6180339887;
+		return x;
+	}
+
+	@Benchmark
+	public double eval2() {
+		double p = next();
+		return noise.eval(p, p * 0.5);
+	}
+
+	@Benchmark
+	public double eval2WithDerivatives() {
+		double p = next();
+		noise.evalWithDerivatives(p, p * 0.5, derivatives);
+		return derivatives[0];
+	}
+
+	@Benchmark
+	public float eval2Float() {
+		double p = next();
+		return floatNoise.eval(p, p * 0.5);
+	}
+
+	@Benchmark
+	public double eval3() {
+		double p = next();
+		return noise.eval(p, p * 0.5, p * 0.25);
+	}
+
+	@Benchmark
+	public double eval3_XYBeforeZ() {
+		double p = next();
+		return noise.eval3_XYBeforeZ(p, p * 0.5, p * 0.25);
+	}
+
+	@Benchmark
+	public double eval3_XZBeforeY() {
+		double p = next();
+		return noise.eval3_XZBeforeY(p, p * 0.5, p * 0.25);
+	}
+
+	@Benchmark
+	public double eval4() {
+		double p = next();
+		return noise.eval(p, p * 0.5, p * 0.25, p * 0.125);
+	}
+
+	@Benchmark
+	public double eval4_XYBeforeZW() {
+		double p = next();
+		return noise.eval4_XYBeforeZW(p, p * 0.5, p * 0.25, p * 0.125);
+	}
+
+	@Benchmark
+	public double eval4_XZBeforeYW() {
+		double p = next();
+		return noise.eval4_XZBeforeYW(p, p * 0.5, p * 0.25, p * 0.125);
+	}
+
+	@Benchmark
+	public double eval4_XYZBeforeW() {
+		double p = next();
+		return noise.eval4_XYZBeforeW(p, p * 0.5, p * 0.25, p * 0.125);
+	}
+
+	@Benchmark
+	public float[] evalGrid() {
+		noise.evalGrid(grid, 0, next(), 0, 1, GRID_SIZE, GRID_SIZE);
+		return grid;
+	}
+
+	@Benchmark
+	public float[] evalGridFloat() {
+		floatNoise.evalGrid(grid, 0, next(), 0, 1, GRID_SIZE, GRID_SIZE);
+		return grid;
+	}
+
+	/**
+	 * What {@link FractalNoise} evaluates for each octave of terrain.
+	 */
+	@Benchmark
+	public float[] evalGridFloatWithDerivatives() {
+		floatNoise.evalGridWithDerivatives(grid, gridDx, gridDy, 0, next(), 0, 1, GRID_SIZE, GRID_SIZE, 1, 0, 0);
+		return grid;
+	}
+}
@@ -0,0 +1,44 @@
+package nl.andrewl.infinirails.model;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node selection for the quadtree terrain renderer, as the camera moves, at
+ * increasing view distances. The number of selected nodes and triangles is
+ * printed after each trial, and should only grow by a constant for each
+ * doubling of the view distance. Nothing here touches OpenGL.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuadtreeBenchmark {
+	@Param({"1024", "4096", "16384", "65536"})
+	public float viewDistance;
+
+	private TerrainQuadtree quadtree;
+	private final TerrainQuadtree.Selection selection = new TerrainQuadtree.Selection();
+	private int frame;
+
+	@Setup
+	public void setup() {
+		quadtree = new TerrainQuadtree(QuadtreeTerrainRenderer.LEAF_SIZE, QuadtreeTerrainRenderer.LEAF_RANGE, viewDistance);
+	}
+
+	@TearDown
+	public void tearDown() {
+		int triangles = selection.getCount() * QuadtreeTerrainRenderer.PATCH_SIZE * QuadtreeTerrainRenderer.PATCH_SIZE * 2;
+		System.out.printf("%n%d levels, %d nodes and %d triangles selected.%n", quadtree.getLevelCount(), selection.getCount(), triangles);
+	}
+
+	@Benchmark
+	public int select() {
+		frame++;
+		quadtree.select(frame * 0.37f % 5000, frame * 0.11f % 5000, selection);
+		return selection.getCount();
+	}
+}
@@ -0,0 +1,121 @@
+package nl.andrewl.infinirails.model;
+
+import nl.andrewl.infinirails.FractalNoise;
+import nl.andrewl.infinirails.OpenSimplexNoise;
+import nl.andrewl.infinirails.terrain.CompiledTerrainFunction;
+import nl.andrewl.infinirails.terrain.SamplingMode;
+import nl.andrewl.infinirails.terrain.TerrainFunction;
+import nl.andrewl.infinirails.util.LongHashMap;
+import org.joml.Vector2f;
+import org.joml.Vector2i;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU side of generating a terrain fragment: building its heightmap and
+ * normals, and turning that into vertex data. Nothing here touches OpenGL.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TerrainBenchmark {
+	private CompiledTerrainFunction terrain;
+	private SamplingMode coarse;
+	private Heightmap heightmap;
+	private TerrainMeshBuilder meshBuilder;
+	private TerrainMeshDecimator meshDecimator;
+	private final Vector2f position = new Vector2f();
+	private int fragment;
+	/**
+	 * Stands in for the world's fragment map, with more fragments than are
+	 * ever loaded around the camera.
+	 */
+	private final LongHashMap<Vector2i> fragments = new LongHashMap<>();
+
+	@Setup
+	public void setup() {
+		// The same terrain as the world uses.
+		var noise = FractalNoise.of(new OpenSimplexNoise(0L), FractalNoise.Mode.FBM, 8, 1 / 40.0, 10, 2, 0.5f, 0.01f);
+		terrain = TerrainFunction.noise(noise).compile();
+		coarse = SamplingMode.of(4, SamplingMode.Interpolation.BICUBIC);
+		heightmap = Heightmap.generate(terrain, new Vector2i(0, 0), SamplingMode.FULL);
+		meshBuilder = new TerrainMeshBuilder();
+		meshDecimator = new TerrainMeshDecimator();
+		for (int x = -8; x <= 8; x++) {
+			for (int y = -8; y <= 8; y++) {
+				fragments.put(World.getFragmentKey(x, y), new Vector2i(x, y));
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		meshBuilder.free();
+		meshDecimator.free();
+	}
+
+	private Vector2i nextIndex() {
+		fragment++;
+		return new Vector2i(fragment % 64 - 32, fragment / 64 % 64 - 32);
+	}
+
+	/**
+	 * Heights and normals for one fragment, sampling every vertex.
+	 */
+	@Benchmark
+	public Heightmap heightmap() {
+		return Heightmap.generate(terrain, nextIndex(), SamplingMode.FULL);
+	}
+
+	@Benchmark
+	public Heightmap heightmapCoarse() {
+		return Heightmap.generate(terrain, nextIndex(), coarse);
+	}
+
+	@Benchmark
+	public ByteBuffer buildMesh() {
+		float skirtDepth = TerrainMeshBuilder.skirtDepth(heightmap.getHeights());
+		return meshBuilder.build(heightmap.getHeights(), heightmap.getNormals(), skirtDepth);
+	}
+
+	/**
+	 * Error-bounded indices for one fragment's mesh.
+	 */
+	@Benchmark
+	public ShortBuffer decimate() {
+		return meshDecimator.decimate(heightmap.getHeights());
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Vector2i getTerrainFragmentIndex() {
+		fragment++;
+		position.set(fragment * 7.3f % 2000 - 1000, fragment * 3.1f % 2000 - 1000);
+		return World.getTerrainFragmentIndex(position);
+	}
+
+	/**
+	 * Looking up every fragment around the camera, as the world does a few
+	 * times each frame.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public int lookUpFragmentsNearCamera() {
+		fragment++;
+		int centerX = fragment % 11 - 5;
+		int centerY = fragment / 11 % 11 - 5;
+		int found = 0;
+		for (int x = centerX - World.LOADED_RINGS; x <= centerX + World.LOADED_RINGS; x++) {
+			for (int y = centerY - World.LOADED_RINGS; y <= centerY + World.LOADED_RINGS; y++) {
+				if (fragments.get(World.getFragmentKey(x, y)) != null) found++;
+			}
+		}
+		return found;
+	}
+}
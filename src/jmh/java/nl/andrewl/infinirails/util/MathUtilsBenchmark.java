@@ -0,0 +1,24 @@
+package nl.andrewl.infinirails.util;
+
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MathUtilsBenchmark {
+	private final Vector3f topLeft = new Vector3f(0, 1.2f, 0);
+	private final Vector3f topRight = new Vector3f(1, 0.7f, 0);
+	private final Vector3f bottomLeft = new Vector3f(0, 1.9f, 1);
+	private final Vector3f bottomRight = new Vector3f(1, 1.1f, 1);
+
+	@Benchmark
+	public Vector3f computeFaceNormal() {
+		return MathUtils.computeFaceNormal(topLeft, topRight, bottomLeft, bottomRight);
+	}
+}
@@ -0,0 +1,381 @@
+package nl.andrewl.infinirails;
+
+/**
+ * Single-precision variant of {@link OpenSimplexNoise}'s 2D noise, for use
+ * where results are stored as floats anyway, like terrain heightmaps. This is
+ * what {@link FractalNoise} evaluates its octaves with.
+ * <p>
+ *     Input coordinates are still skewed and floored in double precision, so
+ *     that a point gets the same lattice cell and the same value no matter
+ *     which grid it was evaluated as part of, even far from the origin. Only
+ *     the position within the cell and everything after it, including the
+ *     gradient tables, are float. Compared to {@link OpenSimplexNoise#eval(double, double)}
+ *     for the same seed, the absolute error stays below {@link #MAX_ERROR}.
+ * </p>
+ * <p>
+ *     Like the double-precision noise, grids are evaluated with vectors when
+ *     the {@code jdk.incubator.vector} module is available, both with and
+ *     without derivatives. The results are the same either way.
+ * </p>
+ */
+public class FloatOpenSimplexNoise {
+	private static final double STRETCH_CONSTANT_2D = -0.211324865405187;
+	private static final float SQUISH_CONSTANT_2D = 0.366025403784439f;
+
+	/**
+	 * The largest absolute difference from the double-precision noise, out of
+	 * a total range of roughly [-1, 1]. The largest observed error over many
+	 * millions of samples is around 7e-7.
+	 */
+	public static final float MAX_ERROR = 1e-6f;
+	/**
+	 * The largest absolute difference from the double-precision derivatives,
+	 * which range over roughly [-3, 3] per unit of noise space.
+	 */
+	public static final float MAX_DERIVATIVE_ERROR = 4e-6f;
+
+	private static final int PMASK = 2047;
+
+	/**
+	 * Vectorized grid evaluators, or null when the {@code jdk.incubator.vector}
+	 * module isn't available, loaded the same way as {@link OpenSimplexNoise}'s.
+	 */
+	private static final FloatVectorNoiseKernel VECTOR_KERNEL = loadVectorKernel();
+
+	final short[] perm;
+	final float[] permGrad2;
+	/**
+	 * The cell that {@link #eval(double, double)} caches gradients in, per
+	 * thread, so that evaluating single points doesn't allocate.
+	 */
+	private final ThreadLocal<GridCell> pointCells = ThreadLocal.withInitial(GridCell::new);
+
+	/**
+	 * Creates a float variant with the same permutation, and thus the same
+	 * noise, as the given double-precision noise.
+	 * @param noise The noise to copy.
+	 */
+	public FloatOpenSimplexNoise(OpenSimplexNoise noise) {
+		this.perm = noise.perm;
+		this.permGrad2 = new float[noise.permGrad2.length];
+		for (int i = 0; i < permGrad2.length; i++) {
+			permGrad2[i] = (float) noise.permGrad2[i];
+		}
+	}
+
+	public FloatOpenSimplexNoise(long seed) {
+		this(new OpenSimplexNoise(seed));
+	}
+
+	private static FloatVectorNoiseKernel loadVectorKernel() {
+		if (!Boolean.parseBoolean(System.getProperty("infinirails.noise.vector", "true"))) return null;
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return null;
+		try {
+			return FloatVectorNoiseKernel.create();
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Whether the grid evaluators are using the Java Vector API.
+	 */
+	public static boolean isVectorized() {
+		return VECTOR_KERNEL != null;
+	}
+
+	/**
+	 * Evaluates 2D noise at a single point.
+	 */
+	public float eval(double x, double y) {
+		return evalCached(x, y, pointCells.get());
+	}
+
+	/**
+	 * Evaluates 2D noise over a regular grid, the same way as
+	 * {@link OpenSimplexNoise#evalGrid(float[], int, double, double, double, int, int)}.
+	 * Sample (i, j) is taken at (originX + j * step, originY + i * step) and
+	 * written to out[offset + i * width + j].
+	 */
+	public void evalGrid(float[] out, int offset, double originX, double originY, double step, int width, int height) {
+		evalGrid(out, offset, originX, originY, step, width, height, 1, 0, 0);
+	}
+
+	/**
+	 * Same as the above, but with the grid scaled and shifted the same way as
+	 * {@link OpenSimplexNoise#evalGrid(float[], int, double, double, double, int, int, double, double, double)},
+	 * so that a point gets the same noise coordinates in every grid that
+	 * contains it.
+	 */
+	public void evalGrid(float[] out, int offset, double originX, double originY, double step, int width, int height, double frequency, double shiftX, double shiftY) {
+		if (VECTOR_KERNEL != null && width >= VECTOR_KERNEL.lanes()) {
+			VECTOR_KERNEL.evalGrid2(this, out, null, null, offset, originX, originY, step, width, height, frequency, shiftX, shiftY);
+			return;
+		}
+		GridCell cell = new GridCell();
+		for (int i = 0; i < height; i++) {
+			double y = (originY + i * step) * frequency + shiftY;
+			int rowOffset = offset + i * width;
+			for (int j = 0; j < width; j++) {
+				out[rowOffset + j] = evalCached((originX + j * step) * frequency + shiftX, y, cell);
+			}
+		}
+	}
+
+	/**
+	 * Evaluates 2D noise and its partial derivatives over a regular grid,
+	 * scaled and shifted like {@link #evalGrid(float[], int, double, double, double, int, int, double, double, double)}.
+	 * The derivatives are with respect to the unscaled grid coordinates, so
+	 * they're multiplied by the frequency, as a float.
+	 */
+	public void evalGridWithDerivatives(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height, double frequency, double shiftX, double shiftY) {
+		if (VECTOR_KERNEL != null && width >= VECTOR_KERNEL.lanes()) {
+			VECTOR_KERNEL.evalGrid2(this, out, outDx, outDy, offset, originX, originY, step, width, height, frequency, shiftX, shiftY);
+			return;
+		}
+		GridCell cell = new GridCell();
+		float[] result = new float[3];
+		float scale = (float) frequency;
+		for (int i = 0; i < height; i++) {
+			double y = (originY + i * step) * frequency + shiftY;
+			int rowOffset = offset + i * width;
+			for (int j = 0; j < width; j++) {
+				evalCachedWithDerivatives((originX + j * step) * frequency + shiftX, y, cell, result);
+				out[rowOffset + j] = result[0];
+				outDx[rowOffset + j] = result[1] * scale;
+				outDy[rowOffset + j] = result[2] * scale;
+			}
+		}
+	}
+
+	float evalCached(double x, double y, GridCell cell) {
+		// Place input coordinates onto grid, and find the rhombus super-cell, in double precision.
+		double stretchOffset = (x + y) * STRETCH_CONSTANT_2D;
+		double xs = x + stretchOffset;
+		double ys = y + stretchOffset;
+		int xsb = fastFloor(xs);
+		int ysb = fastFloor(ys);
+		if (!cell.loaded || cell.xsb != xsb || cell.ysb != ysb) {
+			loadCell(cell, xsb, ysb);
+		}
+
+		// From here on, everything is relative to the super-cell and done in single precision.
+		float xins = (float) (xs - xsb);
+		float yins = (float) (ys - ysb);
+		float inSum = xins + yins;
+		float squishOffsetIns = inSum * SQUISH_CONSTANT_2D;
+		float dx0 = xins + squishOffsetIns;
+		float dy0 = yins + squishOffsetIns;
+
+		float dx_ext, dy_ext;
+		float gx_ext, gy_ext;
+		float gx0, gy0;
+
+		float value = 0;
+
+		// Contribution (1,0)
+		float dx1 = dx0 - 1 - SQUISH_CONSTANT_2D;
+		float dy1 = dy0 - SQUISH_CONSTANT_2D;
+		float attn1 = 2 - dx1 * dx1 - dy1 * dy1;
+		if (attn1 > 0) {
+			attn1 *= attn1;
+			value += attn1 * attn1 * (cell.gx10 * dx1 + cell.gy10 * dy1);
+		}
+
+		// Contribution (0,1)
+		float dx2 = dx0 - SQUISH_CONSTANT_2D;
+		float dy2 = dy0 - 1 - SQUISH_CONSTANT_2D;
+		float attn2 = 2 - dx2 * dx2 - dy2 * dy2;
+		if (attn2 > 0) {
+			attn2 *= attn2;
+			value += attn2 * attn2 * (cell.gx01 * dx2 + cell.gy01 * dy2);
+		}
+
+		if (inSum <= 1) { // We're inside the triangle (2-Simplex) at (0,0)
+			float zins = 1 - inSum;
+			if (zins > xins || zins > yins) { // (0,0) is one of the closest two triangular vertices
+				if (xins > yins) {
+					gx_ext = cell.gx1m; gy_ext = cell.gy1m;
+					dx_ext = dx0 - 1;
+					dy_ext = dy0 + 1;
+				} else {
+					gx_ext = cell.gxm1; gy_ext = cell.gym1;
+					dx_ext = dx0 + 1;
+					dy_ext = dy0 - 1;
+				}
+			} else { // (1,0) and (0,1) are the closest two vertices.
+				gx_ext = cell.gx11; gy_ext = cell.gy11;
+				dx_ext = dx0 - 1 - 2 * SQUISH_CONSTANT_2D;
+				dy_ext = dy0 - 1 - 2 * SQUISH_CONSTANT_2D;
+			}
+			gx0 = cell.gx00; gy0 = cell.gy00;
+		} else { // We're inside the triangle (2-Simplex) at (1,1)
+			float zins = 2 - inSum;
+			if (zins < xins || zins < yins) { // (0,0) is one of the closest two triangular vertices
+				if (xins > yins) {
+					gx_ext = cell.gx20; gy_ext = cell.gy20;
+					dx_ext = dx0 - 2 - 2 * SQUISH_CONSTANT_2D;
+					dy_ext = dy0 - 2 * SQUISH_CONSTANT_2D;
+				} else {
+					gx_ext = cell.gx02; gy_ext = cell.gy02;
+					dx_ext = dx0 - 2 * SQUISH_CONSTANT_2D;
+					dy_ext = dy0 - 2 - 2 * SQUISH_CONSTANT_2D;
+				}
+			} else { // (1,0) and (0,1) are the closest two vertices.
+				gx_ext = cell.gx00; gy_ext = cell.gy00;
+				dx_ext = dx0;
+				dy_ext = dy0;
+			}
+			gx0 = cell.gx11; gy0 = cell.gy11;
+			dx0 = dx0 - 1 - 2 * SQUISH_CONSTANT_2D;
+			dy0 = dy0 - 1 - 2 * SQUISH_CONSTANT_2D;
+		}
+
+		// Contribution (0,0) or (1,1)
+		float attn0 = 2 - dx0 * dx0 - dy0 * dy0;
+		if (attn0 > 0) {
+			attn0 *= attn0;
+			value += attn0 * attn0 * (gx0 * dx0 + gy0 * dy0);
+		}
+
+		// Extra Vertex
+		float attn_ext = 2 - dx_ext * dx_ext - dy_ext * dy_ext;
+		if (attn_ext > 0) {
+			attn_ext *= attn_ext;
+			value += attn_ext * attn_ext * (gx_ext * dx_ext + gy_ext * dy_ext);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Same as {@link #evalCached(double, double, GridCell)}, but also
+	 * differentiates each contribution, the same way as the double-precision
+	 * evaluator, writing the value and its partial derivatives with respect
+	 * to x and y to the result.
+	 */
+	void evalCachedWithDerivatives(double x, double y, GridCell cell, float[] result) {
+		double stretchOffset = (x + y) * STRETCH_CONSTANT_2D;
+		double xs = x + stretchOffset;
+		double ys = y + stretchOffset;
+		int xsb = fastFloor(xs);
+		int ysb = fastFloor(ys);
+		if (!cell.loaded || cell.xsb != xsb || cell.ysb != ysb) {
+			loadCell(cell, xsb, ysb);
+		}
+
+		float xins = (float) (xs - xsb);
+		float yins = (float) (ys - ysb);
+		float inSum = xins + yins;
+		float squishOffsetIns = inSum * SQUISH_CONSTANT_2D;
+		float dx0 = xins + squishOffsetIns;
+		float dy0 = yins + squishOffsetIns;
+
+		float dx_ext, dy_ext;
+		float gx_ext, gy_ext;
+		float gx0, gy0;
+
+		result[0] = 0;
+		result[1] = 0;
+		result[2] = 0;
+
+		// Contribution (1,0)
+		contribute(result, dx0 - 1 - SQUISH_CONSTANT_2D, dy0 - SQUISH_CONSTANT_2D, cell.gx10, cell.gy10);
+
+		// Contribution (0,1)
+		contribute(result, dx0 - SQUISH_CONSTANT_2D, dy0 - 1 - SQUISH_CONSTANT_2D, cell.gx01, cell.gy01);
+
+		if (inSum <= 1) {
+			float zins = 1 - inSum;
+			if (zins > xins || zins > yins) {
+				if (xins > yins) {
+					gx_ext = cell.gx1m; gy_ext = cell.gy1m;
+					dx_ext = dx0 - 1;
+					dy_ext = dy0 + 1;
+				} else {
+					gx_ext = cell.gxm1; gy_ext = cell.gym1;
+					dx_ext = dx0 + 1;
+					dy_ext = dy0 - 1;
+				}
+			} else {
+				gx_ext = cell.gx11; gy_ext = cell.gy11;
+				dx_ext = dx0 - 1 - 2 * SQUISH_CONSTANT_2D;
+				dy_ext = dy0 - 1 - 2 * SQUISH_CONSTANT_2D;
+			}
+			gx0 = cell.gx00; gy0 = cell.gy00;
+		} else {
+			float zins = 2 - inSum;
+			if (zins < xins || zins < yins) {
+				if (xins > yins) {
+					gx_ext = cell.gx20; gy_ext = cell.gy20;
+					dx_ext = dx0 - 2 - 2 * SQUISH_CONSTANT_2D;
+					dy_ext = dy0 - 2 * SQUISH_CONSTANT_2D;
+				} else {
+					gx_ext = cell.gx02; gy_ext = cell.gy02;
+					dx_ext = dx0 - 2 * SQUISH_CONSTANT_2D;
+					dy_ext = dy0 - 2 - 2 * SQUISH_CONSTANT_2D;
+				}
+			} else {
+				gx_ext = cell.gx00; gy_ext = cell.gy00;
+				dx_ext = dx0;
+				dy_ext = dy0;
+			}
+			gx0 = cell.gx11; gy0 = cell.gy11;
+			dx0 = dx0 - 1 - 2 * SQUISH_CONSTANT_2D;
+			dy0 = dy0 - 1 - 2 * SQUISH_CONSTANT_2D;
+		}
+
+		// Contribution (0,0) or (1,1)
+		contribute(result, dx0, dy0, gx0, gy0);
+
+		// Extra Vertex
+		contribute(result, dx_ext, dy_ext, gx_ext, gy_ext);
+	}
+
+	private static void contribute(float[] result, float dx, float dy, float gx, float gy) {
+		float attn = 2 - dx * dx - dy * dy;
+		if (attn > 0) {
+			float attnSq = attn * attn;
+			float extrapolation = gx * dx + gy * dy;
+			float falloff = -8 * attnSq * attn * extrapolation;
+			result[0] += attnSq * attnSq * extrapolation;
+			result[1] += attnSq * attnSq * gx + falloff * dx;
+			result[2] += attnSq * attnSq * gy + falloff * dy;
+		}
+	}
+
+	void loadCell(GridCell cell, int xsb, int ysb) {
+		float[] g = permGrad2;
+		int i;
+		i = gradient2(xsb, ysb);         cell.gx00 = g[i]; cell.gy00 = g[i + 1];
+		i = gradient2(xsb + 1, ysb);     cell.gx10 = g[i]; cell.gy10 = g[i + 1];
+		i = gradient2(xsb, ysb + 1);     cell.gx01 = g[i]; cell.gy01 = g[i + 1];
+		i = gradient2(xsb + 1, ysb + 1); cell.gx11 = g[i]; cell.gy11 = g[i + 1];
+		i = gradient2(xsb + 1, ysb - 1); cell.gx1m = g[i]; cell.gy1m = g[i + 1];
+		i = gradient2(xsb - 1, ysb + 1); cell.gxm1 = g[i]; cell.gym1 = g[i + 1];
+		i = gradient2(xsb + 2, ysb);     cell.gx20 = g[i]; cell.gy20 = g[i + 1];
+		i = gradient2(xsb, ysb + 2);     cell.gx02 = g[i]; cell.gy02 = g[i + 1];
+		cell.xsb = xsb;
+		cell.ysb = ysb;
+		cell.loaded = true;
+	}
+
+	int gradient2(int xsb, int ysb) {
+		return (perm[xsb & PMASK] ^ (ysb & PMASK)) * 2;
+	}
+
+	static int fastFloor(double x) {
+		int xi = (int) x;
+		return x < xi ? xi - 1 : xi;
+	}
+
+	/**
+	 * Float version of {@link OpenSimplexNoise}'s grid cell cache.
+	 */
+	static final class GridCell {
+		boolean loaded;
+		int xsb, ysb;
+		float gx00, gy00, gx10, gy10, gx01, gy01, gx11, gy11;
+		float gx1m, gy1m, gxm1, gym1, gx20, gy20, gx02, gy02;
+	}
+}
@@ -0,0 +1,226 @@
+package nl.andrewl.infinirails;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vectorized versions of the {@link FloatOpenSimplexNoise} grid evaluators,
+ * with and without derivatives, which compute one sample per vector lane
+ * using the incubating Java Vector API.
+ * <p>
+ *     Like {@link VectorNoiseKernel}, this class may only be loaded once the
+ *     {@code jdk.incubator.vector} module is known to be present. Unlike
+ *     that kernel, the region logic isn't done with blends: samples are
+ *     skewed, floored and sorted into regions lane by lane, exactly as the
+ *     scalar evaluator does, and only the contributions' arithmetic is
+ *     vectorized. That keeps each vectorized method small enough for the JIT
+ *     to inline every vector operation, so that no vectors are boxed.
+ * </p>
+ */
+final class FloatVectorNoiseKernel {
+	private static final double STRETCH_CONSTANT_2D = -0.211324865405187;
+	private static final float SQUISH_CONSTANT_2D = 0.366025403784439f;
+
+	/**
+	 * The species must be a constant for the JIT to compile vector operations
+	 * down to instructions.
+	 */
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	private final int lanes;
+
+	private FloatVectorNoiseKernel() {
+		this.lanes = SPECIES.length();
+	}
+
+	/**
+	 * Creates the kernel. Callers must first check that the
+	 * {@code jdk.incubator.vector} module is present.
+	 * @return The kernel, or null if vectors are too narrow to be of use.
+	 */
+	static FloatVectorNoiseKernel create() {
+		var kernel = new FloatVectorNoiseKernel();
+		return kernel.lanes > 1 ? kernel : null;
+	}
+
+	int lanes() {
+		return lanes;
+	}
+
+	/**
+	 * Vectorized equivalent of both of {@link FloatOpenSimplexNoise}'s scaled
+	 * grid evaluators. Each vector of samples is done in two passes: first,
+	 * lane by lane, each sample's position relative to its four contributing
+	 * vertices is worked out, along with their gradients, exactly like the
+	 * scalar evaluator does. Then the contributions, which are most of the
+	 * arithmetic, are computed for all lanes at once, with the range check
+	 * replaced by masked adds. The results are bit-identical to the scalar
+	 * evaluator's.
+	 * @param outDx Where to write d/dx, or null to only evaluate values, in
+	 *              which case outDy is ignored too.
+	 */
+	void evalGrid2(FloatOpenSimplexNoise noise, float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height, double frequency, double shiftX, double shiftY) {
+		final int n = lanes;
+		final boolean derivatives = outDx != null;
+		final float scale = (float) frequency;
+		// For each of the four vertices in turn, each lane's offset from it and its gradient.
+		float[] dx = new float[4 * n], dy = new float[4 * n], gx = new float[4 * n], gy = new float[4 * n];
+		FloatOpenSimplexNoise.GridCell cell = new FloatOpenSimplexNoise.GridCell();
+		float[] point = new float[3];
+		int vectorWidth = width - width % n;
+
+		for (int i = 0; i < height; i++) {
+			double y = (originY + i * step) * frequency + shiftY;
+			int rowOffset = offset + i * width;
+			for (int j = 0; j < vectorWidth; j += n) {
+				for (int k = 0; k < n; k++) {
+					setUpLane(noise, cell, (originX + (j + k) * step) * frequency + shiftX, y, k, dx, dy, gx, gy);
+				}
+				if (derivatives) {
+					contributeWithDerivatives(dx, dy, gx, gy, scale, out, outDx, outDy, rowOffset + j);
+				} else {
+					contribute(dx, dy, gx, gy, out, rowOffset + j);
+				}
+			}
+			for (int j = vectorWidth; j < width; j++) {
+				double x = (originX + j * step) * frequency + shiftX;
+				if (derivatives) {
+					noise.evalCachedWithDerivatives(x, y, cell, point);
+					out[rowOffset + j] = point[0];
+					outDx[rowOffset + j] = point[1] * scale;
+					outDy[rowOffset + j] = point[2] * scale;
+				} else {
+					out[rowOffset + j] = noise.evalCached(x, y, cell);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Works out which four vertices contribute to the sample at (x, y), and
+	 * writes its offset from each and their gradients to the given lane of
+	 * the vertex arrays, following the scalar evaluator operation for
+	 * operation. Vertices are in the order (1,0), (0,1), (0,0) or (1,1), and
+	 * then the extra vertex, just like the scalar evaluator adds them.
+	 */
+	private void setUpLane(FloatOpenSimplexNoise noise, FloatOpenSimplexNoise.GridCell cell, double x, double y, int lane, float[] dx, float[] dy, float[] gx, float[] gy) {
+		final int n = lanes;
+		double stretchOffset = (x + y) * STRETCH_CONSTANT_2D;
+		double xs = x + stretchOffset;
+		double ys = y + stretchOffset;
+		int xsb = FloatOpenSimplexNoise.fastFloor(xs);
+		int ysb = FloatOpenSimplexNoise.fastFloor(ys);
+		if (!cell.loaded || cell.xsb != xsb || cell.ysb != ysb) {
+			noise.loadCell(cell, xsb, ysb);
+		}
+		float xins = (float) (xs - xsb);
+		float yins = (float) (ys - ysb);
+		float inSum = xins + yins;
+		float squishOffsetIns = inSum * SQUISH_CONSTANT_2D;
+		float dx0 = xins + squishOffsetIns;
+		float dy0 = yins + squishOffsetIns;
+
+		dx[lane] = dx0 - 1 - SQUISH_CONSTANT_2D;
+		dy[lane] = dy0 - SQUISH_CONSTANT_2D;
+		gx[lane] = cell.gx10;
+		gy[lane] = cell.gy10;
+
+		dx[n + lane] = dx0 - SQUISH_CONSTANT_2D;
+		dy[n + lane] = dy0 - 1 - SQUISH_CONSTANT_2D;
+		gx[n + lane] = cell.gx01;
+		gy[n + lane] = cell.gy01;
+
+		int ext = 3 * n + lane;
+		if (inSum <= 1) {
+			float zins = 1 - inSum;
+			if (zins > xins || zins > yins) {
+				if (xins > yins) {
+					gx[ext] = cell.gx1m; gy[ext] = cell.gy1m;
+					dx[ext] = dx0 - 1;
+					dy[ext] = dy0 + 1;
+				} else {
+					gx[ext] = cell.gxm1; gy[ext] = cell.gym1;
+					dx[ext] = dx0 + 1;
+					dy[ext] = dy0 - 1;
+				}
+			} else {
+				gx[ext] = cell.gx11; gy[ext] = cell.gy11;
+				dx[ext] = dx0 - 1 - 2 * SQUISH_CONSTANT_2D;
+				dy[ext] = dy0 - 1 - 2 * SQUISH_CONSTANT_2D;
+			}
+			gx[2 * n + lane] = cell.gx00; gy[2 * n + lane] = cell.gy00;
+		} else {
+			float zins = 2 - inSum;
+			if (zins < xins || zins < yins) {
+				if (xins > yins) {
+					gx[ext] = cell.gx20; gy[ext] = cell.gy20;
+					dx[ext] = dx0 - 2 - 2 * SQUISH_CONSTANT_2D;
+					dy[ext] = dy0 - 2 * SQUISH_CONSTANT_2D;
+				} else {
+					gx[ext] = cell.gx02; gy[ext] = cell.gy02;
+					dx[ext] = dx0 - 2 * SQUISH_CONSTANT_2D;
+					dy[ext] = dy0 - 2 - 2 * SQUISH_CONSTANT_2D;
+				}
+			} else {
+				gx[ext] = cell.gx00; gy[ext] = cell.gy00;
+				dx[ext] = dx0;
+				dy[ext] = dy0;
+			}
+			gx[2 * n + lane] = cell.gx11; gy[2 * n + lane] = cell.gy11;
+			dx0 = dx0 - 1 - 2 * SQUISH_CONSTANT_2D;
+			dy0 = dy0 - 1 - 2 * SQUISH_CONSTANT_2D;
+		}
+		dx[2 * n + lane] = dx0;
+		dy[2 * n + lane] = dy0;
+	}
+
+	/**
+	 * Sums the contributions of the four vertices set up for each lane, for
+	 * those lanes where each vertex is in range, and writes the values out.
+	 */
+	private void contribute(float[] dx, float[] dy, float[] gx, float[] gy, float[] out, int index) {
+		FloatVector value = FloatVector.zero(SPECIES);
+		for (int v = 0; v < 4 * lanes; v += lanes) {
+			FloatVector vdx = FloatVector.fromArray(SPECIES, dx, v);
+			FloatVector vdy = FloatVector.fromArray(SPECIES, dy, v);
+			FloatVector attn = FloatVector.broadcast(SPECIES, 2).sub(vdx.mul(vdx)).sub(vdy.mul(vdy));
+			VectorMask<Float> inRange = attn.compare(VectorOperators.GT, 0);
+			attn = attn.mul(attn);
+			FloatVector extrapolation = FloatVector.fromArray(SPECIES, gx, v).mul(vdx)
+					.add(FloatVector.fromArray(SPECIES, gy, v).mul(vdy));
+			value = value.add(attn.mul(attn).mul(extrapolation), inRange);
+		}
+		value.intoArray(out, index);
+	}
+
+	/**
+	 * Same as the above, but also sums the contributions' partial
+	 * derivatives, the same way as {@link FloatOpenSimplexNoise}'s scalar
+	 * contribute, and scales them by the grid's frequency.
+	 */
+	private void contributeWithDerivatives(float[] dx, float[] dy, float[] gx, float[] gy, float scale, float[] out, float[] outDx, float[] outDy, int index) {
+		FloatVector value = FloatVector.zero(SPECIES);
+		FloatVector valueDx = FloatVector.zero(SPECIES);
+		FloatVector valueDy = FloatVector.zero(SPECIES);
+		for (int v = 0; v < 4 * lanes; v += lanes) {
+			FloatVector vdx = FloatVector.fromArray(SPECIES, dx, v);
+			FloatVector vdy = FloatVector.fromArray(SPECIES, dy, v);
+			FloatVector vgx = FloatVector.fromArray(SPECIES, gx, v);
+			FloatVector vgy = FloatVector.fromArray(SPECIES, gy, v);
+			FloatVector attn = FloatVector.broadcast(SPECIES, 2).sub(vdx.mul(vdx)).sub(vdy.mul(vdy));
+			VectorMask<Float> inRange = attn.compare(VectorOperators.GT, 0);
+			FloatVector attnSq = attn.mul(attn);
+			FloatVector attnQuad = attnSq.mul(attnSq);
+			FloatVector extrapolation = vgx.mul(vdx).add(vgy.mul(vdy));
+			FloatVector falloff = attnSq.mul(-8).mul(attn).mul(extrapolation);
+			value = value.add(attnQuad.mul(extrapolation), inRange);
+			valueDx = valueDx.add(attnQuad.mul(vgx).add(falloff.mul(vdx)), inRange);
+			valueDy = valueDy.add(attnQuad.mul(vgy).add(falloff.mul(vdy)), inRange);
+		}
+		value.intoArray(out, index);
+		valueDx.mul(scale).intoArray(outDx, index);
+		valueDy.mul(scale).intoArray(outDy, index);
+	}
+}
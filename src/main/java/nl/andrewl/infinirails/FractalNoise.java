@@ -0,0 +1,277 @@
+package nl.andrewl.infinirails;
+
+/**
+ * Fractal noise, made by summing several octaves of a single
+ * {@link OpenSimplexNoise}, each with its own frequency and amplitude.
+ * <p>
+ *     All octaves share the one noise instance and its permutation tables,
+ *     and are decorrelated by shifting each octave's coordinates instead.
+ *     Octaves are evaluated one whole grid at a time, so each one still gets
+ *     the batched and vectorized grid evaluation. They're evaluated in single
+ *     precision with {@link FloatOpenSimplexNoise}, since the sums are floats
+ *     anyway.
+ * </p>
+ * <p>
+ *     Octaves are skipped when they can't make a difference: trailing octaves
+ *     whose summed amplitude is below half the given quantum are dropped when
+ *     the noise is created, and octaves whose wavelength is shorter than two
+ *     samples of a grid are dropped for that grid, since they'd only alias.
+ *     Instances are immutable, and may be shared between threads.
+ * </p>
+ */
+public class FractalNoise {
+	public enum Mode {
+		/**
+		 * Fractional Brownian motion: the plain sum of the octaves.
+		 */
+		FBM,
+		/**
+		 * Ridged noise: each octave contributes (1 - |n|)^2, which gives sharp
+		 * crests wherever the noise crosses zero.
+		 */
+		RIDGED
+	}
+
+	/**
+	 * The largest magnitude of a single octave of noise, used to bound what
+	 * the remaining octaves can add.
+	 */
+	private static final float OCTAVE_RANGE = 1.0f;
+
+	private final FloatOpenSimplexNoise noise;
+	private final Mode mode;
+	private final double[] frequencies;
+	private final float[] amplitudes;
+	private final double[] shifts;
+	private final int octaveCount;
+
+	/**
+	 * Creates fractal noise from explicit octaves.
+	 * @param noise The noise to use for all octaves.
+	 * @param mode How octaves are combined.
+	 * @param frequencies The frequency of each octave, in ascending order.
+	 * @param amplitudes The amplitude of each octave.
+	 * @param quantum The smallest change in output that matters. Trailing
+	 *                octaves which together can't change the output by half
+	 *                of this are never evaluated. Use 0 to keep all octaves.
+	 */
+	public FractalNoise(OpenSimplexNoise noise, Mode mode, double[] frequencies, float[] amplitudes, float quantum) {
+		if (frequencies.length != amplitudes.length) {
+			throw new IllegalArgumentException("Each octave needs both a frequency and an amplitude.");
+		}
+		this.noise = new FloatOpenSimplexNoise(noise);
+		this.mode = mode;
+		this.frequencies = frequencies.clone();
+		this.amplitudes = amplitudes.clone();
+		this.shifts = new double[frequencies.length * 2];
+		for (int k = 1; k < frequencies.length; k++) {
+			// Arbitrary irrational-ish offsets, so octaves don't all have a lattice vertex at the origin.
+			shifts[k * 2] = k * 131.71;
+			shifts[k * 2 + 1] = k * -97.37;
+		}
+		int count = amplitudes.length;
+		float remaining = 0;
+		while (count > 1 && remaining + Math.abs(amplitudes[count - 1]) * OCTAVE_RANGE < quantum / 2) {
+			remaining += Math.abs(amplitudes[count - 1]) * OCTAVE_RANGE;
+			count--;
+		}
+		this.octaveCount = count;
+	}
+
+	/**
+	 * Creates fractal noise whose octaves each have lacunarity times the
+	 * frequency, and gain times the amplitude, of the one before.
+	 */
+	public static FractalNoise of(OpenSimplexNoise noise, Mode mode, int octaves, double frequency, float amplitude, double lacunarity, float gain, float quantum) {
+		double[] frequencies = new double[octaves];
+		float[] amplitudes = new float[octaves];
+		for (int k = 0; k < octaves; k++) {
+			frequencies[k] = frequency;
+			amplitudes[k] = amplitude;
+			frequency *= lacunarity;
+			amplitude *= gain;
+		}
+		return new FractalNoise(noise, mode, frequencies, amplitudes, quantum);
+	}
+
+	/**
+	 * @return The number of octaves left after dropping those below the
+	 * quantum. This is the most that any evaluation will use.
+	 */
+	public int getOctaveCount() {
+		return octaveCount;
+	}
+
+	/**
+	 * Gets the number of octaves that are worth evaluating for samples the
+	 * given distance apart, which is every octave with a wavelength of at
+	 * least two samples. The first octave is always included.
+	 * @param step The distance between samples.
+	 * @return The number of octaves.
+	 */
+	public int octavesForStep(double step) {
+		int count = 1;
+		while (count < octaveCount && frequencies[count] * step * 2 <= 1) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Evaluates the fractal noise over a regular grid, using as many octaves
+	 * as the grid's step can resolve. Sample (i, j) is taken at
+	 * (originX + j * step, originY + i * step) and written to
+	 * out[offset + i * width + j].
+	 */
+	public void evalGrid(float[] out, int offset, double originX, double originY, double step, int width, int height) {
+		evalGrid(out, offset, originX, originY, step, width, height, octavesForStep(step));
+	}
+
+	/**
+	 * Evaluates the fractal noise over a regular grid, using at most the
+	 * given number of octaves. Callers may use fewer octaves for terrain that
+	 * is far away, but grids which share an edge must use the same number of
+	 * octaves to agree on it.
+	 */
+	public void evalGrid(float[] out, int offset, double originX, double originY, double step, int width, int height, int maxOctaves) {
+		evalGrid(out, offset, originX, originY, step, width, height, maxOctaves, new float[][]{new float[width * height]});
+	}
+
+	/**
+	 * Same as the above, but using the given scratch space for each octave's
+	 * samples instead of allocating it, for callers that evaluate many grids.
+	 * @param scratch At least one array of at least width * height floats.
+	 */
+	public void evalGrid(float[] out, int offset, double originX, double originY, double step, int width, int height, int maxOctaves, float[][] scratch) {
+		int octaves = Math.min(maxOctaves, octaveCount);
+		int n = width * height;
+		float[] octave = scratch[0];
+		for (int i = 0; i < n; i++) out[offset + i] = 0;
+		for (int k = 0; k < octaves; k++) {
+			noise.evalGrid(octave, 0, originX, originY, step, width, height, frequencies[k], shifts[k * 2], shifts[k * 2 + 1]);
+			float amplitude = amplitudes[k];
+			if (mode == Mode.FBM) {
+				for (int i = 0; i < n; i++) {
+					out[offset + i] += octave[i] * amplitude;
+				}
+			} else {
+				for (int i = 0; i < n; i++) {
+					float r = 1 - Math.abs(octave[i]);
+					out[offset + i] += r * r * amplitude;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the fractal noise and its partial derivatives with respect
+	 * to x and y over a regular grid, laid out the same way as
+	 * {@link #evalGrid(float[], int, double, double, double, int, int)}.
+	 */
+	public void evalGridWithDerivatives(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height) {
+		evalGridWithDerivatives(out, outDx, outDy, offset, originX, originY, step, width, height, octavesForStep(step));
+	}
+
+	/**
+	 * Same as the above, but using at most the given number of octaves.
+	 */
+	public void evalGridWithDerivatives(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height, int maxOctaves) {
+		int n = width * height;
+		float[][] scratch = {new float[n], new float[n], new float[n]};
+		evalGridWithDerivatives(out, outDx, outDy, offset, originX, originY, step, width, height, maxOctaves, scratch);
+	}
+
+	/**
+	 * Same as the above, but using the given scratch space for each octave's
+	 * samples and derivatives instead of allocating it.
+	 * @param scratch At least three arrays of at least width * height floats.
+	 */
+	public void evalGridWithDerivatives(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height, int maxOctaves, float[][] scratch) {
+		int octaves = Math.min(maxOctaves, octaveCount);
+		int n = width * height;
+		float[] octave = scratch[0];
+		float[] octaveDx = scratch[1];
+		float[] octaveDy = scratch[2];
+		for (int i = 0; i < n; i++) {
+			out[offset + i] = 0;
+			outDx[offset + i] = 0;
+			outDy[offset + i] = 0;
+		}
+		for (int k = 0; k < octaves; k++) {
+			noise.evalGridWithDerivatives(octave, octaveDx, octaveDy, 0, originX, originY, step, width, height, frequencies[k], shifts[k * 2], shifts[k * 2 + 1]);
+			float amplitude = amplitudes[k];
+			if (mode == Mode.FBM) {
+				for (int i = 0; i < n; i++) {
+					out[offset + i] += octave[i] * amplitude;
+					outDx[offset + i] += octaveDx[i] * amplitude;
+					outDy[offset + i] += octaveDy[i] * amplitude;
+				}
+			} else {
+				for (int i = 0; i < n; i++) {
+					float r = 1 - Math.abs(octave[i]);
+					// d/dx (1 - |n|)^2 = -2 * (1 - |n|) * sign(n) * dn/dx
+					float slope = -2 * r * Math.signum(octave[i]) * amplitude;
+					out[offset + i] += r * r * amplitude;
+					outDx[offset + i] += slope * octaveDx[i];
+					outDy[offset + i] += slope * octaveDy[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a sampler for evaluating this noise at individual points, for
+	 * when samples don't lie on a regular grid.
+	 */
+	public Sampler sampler() {
+		return new Sampler();
+	}
+
+	/**
+	 * Evaluates fractal noise at individual points without allocating. Each
+	 * sampler keeps its own working state, so it must only be used by one
+	 * thread at a time.
+	 */
+	public final class Sampler {
+		private final FloatOpenSimplexNoise.GridCell cell = new FloatOpenSimplexNoise.GridCell();
+		private final float[] octave = new float[3];
+
+		private Sampler() {}
+
+		/**
+		 * Evaluates the noise and its partial derivatives at a point, taking
+		 * each octave at the same coordinates as the grid evaluators would.
+		 * @param x The x coordinate.
+		 * @param y The y coordinate.
+		 * @param maxOctaves The most octaves to use.
+		 * @param result The array to write the value, d/dx and d/dy to.
+		 */
+		public void evalWithDerivatives(double x, double y, int maxOctaves, double[] result) {
+			int octaves = Math.min(maxOctaves, octaveCount);
+			// Accumulate in float, exactly like the grid evaluators do.
+			float sum = 0, sumDx = 0, sumDy = 0;
+			for (int k = 0; k < octaves; k++) {
+				double frequency = frequencies[k];
+				noise.evalCachedWithDerivatives(x * frequency + shifts[k * 2], y * frequency + shifts[k * 2 + 1], cell, octave);
+				float value = octave[0];
+				float dx = octave[1] * (float) frequency;
+				float dy = octave[2] * (float) frequency;
+				float amplitude = amplitudes[k];
+				if (mode == Mode.FBM) {
+					sum += value * amplitude;
+					sumDx += dx * amplitude;
+					sumDy += dy * amplitude;
+				} else {
+					float r = 1 - Math.abs(value);
+					float slope = -2 * r * Math.signum(value) * amplitude;
+					sum += r * r * amplitude;
+					sumDx += slope * dx;
+					sumDy += slope * dy;
+				}
+			}
+			result[0] = sum;
+			result[1] = sumDx;
+			result[2] = sumDy;
+		}
+	}
+}
@@ -1,5 +1,10 @@
 package nl.andrewl.infinirails;
 
+import nl.andrewl.infinirails.model.HeightTextureTerrainRenderer;
+import nl.andrewl.infinirails.model.IndirectTerrainRenderer;
+import nl.andrewl.infinirails.model.QuadtreeTerrainRenderer;
+import nl.andrewl.infinirails.model.TerrainRenderMode;
+import nl.andrewl.infinirails.model.TessellationTerrainRenderer;
 import nl.andrewl.infinirails.model.World;
 import org.joml.Matrix4f;
 import org.joml.Vector2i;
@@ -28,6 +33,15 @@ public class InfiniRails {
 
 		World world = new World();
 		world.getCamera().setPosition(50, 20, 50);
+		if (world.getRenderMode() == TerrainRenderMode.TESSELLATION) {
+			// Tessellation shaders need a 4.0 context, which software drivers like Mesa's only give for the core profile.
+			glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 4);
+			glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 0);
+			glfwWindowHint(GLFW_OPENGL_PROFILE, GLFW_OPENGL_CORE_PROFILE);
+			glfwWindowHint(GLFW_OPENGL_FORWARD_COMPAT, GLFW_TRUE);
+		}
+		// Stops after this many frames, if it's more than 0, for checking that a render mode works.
+		int frameLimit = Integer.getInteger("infinirails.frames", 0);
 
 		long windowHandle = glfwCreateWindow(1200, 800, "InfiniRails", NULL, NULL);
 		if (windowHandle == NULL) throw new RuntimeException("Failed to create GLFW window.");
@@ -67,20 +81,56 @@ public class InfiniRails {
 
 
 		GL.createCapabilities();
+		if (world.getRenderMode() == TerrainRenderMode.TESSELLATION && !GL.getCapabilities().OpenGL40) {
+			throw new IllegalStateException("Tessellation rendering needs OpenGL 4.0, but only " + glGetString(GL_VERSION) + " is available.");
+		}
 		glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
 		glEnable(GL_CULL_FACE);
 		glEnable(GL_DEPTH_TEST);
 		glCullFace(GL_BACK);
 
-		world.generateFragment(new Vector2i(0, 0));
+		float viewDistance = 1000.0f;
+		if (world.getRenderMode() == TerrainRenderMode.QUADTREE) {
+			viewDistance = QuadtreeTerrainRenderer.VIEW_DISTANCE;
+		} else {
+			world.generateFragment(new Vector2i(0, 0));
+		}
 
 		Matrix4f projectionTransform = new Matrix4f();
-		projectionTransform.perspective(70, 800 / 600.0f, 0.01f, 1000.0f);
+		projectionTransform.perspective(70, 800 / 600.0f, 0.01f, viewDistance);
 
 		Vector3f lightPosition = new Vector3f(0, -10000000, 0);
 		Vector3f lightColor = new Vector3f(1.0f, 0.8f, 0.8f);
+		Vector3f terrainColor = new Vector3f(0.1f, 0.8f, 0.2f);
 
-		int prog = createShaderProgram();
+		HeightTextureTerrainRenderer heightTextureRenderer = null;
+		QuadtreeTerrainRenderer quadtreeRenderer = null;
+		TessellationTerrainRenderer tessellationRenderer = null;
+		IndirectTerrainRenderer indirectRenderer = null;
+		int prog;
+		if (world.getRenderMode() == TerrainRenderMode.TESSELLATION) {
+			tessellationRenderer = new TessellationTerrainRenderer(world);
+			prog = createShaderProgram("shader/tess_vertex.glsl", "shader/tess_control.glsl", "shader/tess_evaluation.glsl");
+			int[] framebufferWidth = new int[1];
+			int[] framebufferHeight = new int[1];
+			glfwGetFramebufferSize(windowHandle, framebufferWidth, framebufferHeight);
+			TessellationTerrainRenderer.setUniforms(prog, framebufferHeight[0]);
+		} else if (world.getRenderMode() == TerrainRenderMode.QUADTREE) {
+			quadtreeRenderer = new QuadtreeTerrainRenderer(world.getTerrain(), world.getGenerationPool());
+			prog = createShaderProgram("shader/quadtree_vertex.glsl");
+			glUniform1i(glGetUniformLocation(prog, "heightTextures"), QuadtreeTerrainRenderer.HEIGHT_TEXTURE_UNIT);
+			glUniform1i(glGetUniformLocation(prog, "normalTextures"), QuadtreeTerrainRenderer.NORMAL_TEXTURE_UNIT);
+		} else if (world.getRenderMode() == TerrainRenderMode.HEIGHT_TEXTURE) {
+			heightTextureRenderer = new HeightTextureTerrainRenderer(world);
+			prog = createShaderProgram("shader/height_texture_vertex.glsl");
+			glUniform1i(glGetUniformLocation(prog, "heightTextures"), HeightTextureTerrainRenderer.HEIGHT_TEXTURE_UNIT);
+			glUniform1i(glGetUniformLocation(prog, "normalTextures"), HeightTextureTerrainRenderer.NORMAL_TEXTURE_UNIT);
+		} else if (IndirectTerrainRenderer.isSupported()) {
+			indirectRenderer = new IndirectTerrainRenderer(world);
+			prog = createShaderProgram("shader/indirect_vertex.glsl");
+		} else {
+			prog = createShaderProgram("shader/vertex.glsl");
+		}
 		int modelTransformUniform = glGetUniformLocation(prog, "modelTransform");
 		int normalTransformUniform = glGetUniformLocation(prog, "normalTransform");
 		int projectionTransformUniform = glGetUniformLocation(prog, "projectionTransform");
@@ -89,26 +139,50 @@ public class InfiniRails {
 		int lightPositionUniform = glGetUniformLocation(prog, "lightPosition");
 		int lightColorUniform = glGetUniformLocation(prog, "lightColor");
 		int cameraPositionUniform = glGetUniformLocation(prog, "cameraPosition");
+		int terrainColorUniform = glGetUniformLocation(prog, "terrainColor");
 
 		glUniformMatrix4fv(projectionTransformUniform, false, projectionTransform.get(new float[16]));
 
 		glUniform3fv(lightPositionUniform, toArray(lightPosition));
 		glUniform3fv(lightColorUniform, toArray(lightColor));
+		glUniform3fv(terrainColorUniform, toArray(terrainColor));
 
+		int frame = 0;
 		while (!glfwWindowShouldClose(windowHandle)) {
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
 			glUniformMatrix4fv(viewTransformUniform, false, world.getCamera().getViewTransformValues());
 			glUniform3fv(cameraPositionUniform, world.getCamera().getPositionValues());
+			world.uploadFragments();
+			world.updateResidency();
 
-			for (var terrainFragment : world.getFragmentsNearPlayer()) {
-				glUniformMatrix4fv(modelTransformUniform, false, terrainFragment.getWorldTransform().get(new float[16]));
-				glUniformMatrix3fv(normalTransformUniform, false, terrainFragment.getNormalTransform().get(new float[9]));
-				terrainFragment.draw();
+			if (tessellationRenderer != null) {
+				tessellationRenderer.draw(world.getFragmentsNearPlayer());
+			} else if (quadtreeRenderer != null) {
+				quadtreeRenderer.draw(world.getCamera());
+			} else if (heightTextureRenderer != null) {
+				heightTextureRenderer.draw(world.getFragmentsNearPlayer());
+			} else if (indirectRenderer != null) {
+				indirectRenderer.draw(world.getFragmentsNearPlayer());
+			} else {
+				for (var terrainFragment : world.getFragmentsNearPlayer()) {
+					glUniformMatrix4fv(modelTransformUniform, false, terrainFragment.getWorldTransform().get(new float[16]));
+					glUniformMatrix3fv(normalTransformUniform, false, terrainFragment.getNormalTransform().get(new float[9]));
+					terrainFragment.draw(world.getLodLevel(terrainFragment));
+				}
 			}
 
 			glfwSwapBuffers(windowHandle);
 			glfwPollEvents();
+			frame++;
+			int error = glGetError();
+			if (error != GL_NO_ERROR) {
+				throw new IllegalStateException("OpenGL error " + error + " in frame " + frame + ".");
+			}
+			if (frame == frameLimit) {
+				System.out.printf("Rendered %d frames in %s mode.\n", frame, world.getRenderMode());
+				glfwSetWindowShouldClose(windowHandle, true);
+			}
 
 			if (glfwGetKey(windowHandle, GLFW_KEY_W) == GLFW_PRESS) {
 				world.updateCameraPosition(new Vector3f(0, 0, -1));
@@ -130,6 +204,11 @@ public class InfiniRails {
 			}
 		}
 
+		if (heightTextureRenderer != null) heightTextureRenderer.free();
+		if (quadtreeRenderer != null) quadtreeRenderer.free();
+		if (tessellationRenderer != null) tessellationRenderer.free();
+		if (indirectRenderer != null) indirectRenderer.free();
+		world.free();
 		Callbacks.glfwFreeCallbacks(windowHandle);
 		glfwDestroyWindow(windowHandle);
 		glfwTerminate();
@@ -144,23 +223,37 @@ public class InfiniRails {
 		return s;
 	}
 
-	public static int createShaderProgram() throws IOException {
+	/**
+	 * Compiles and links a shader program from the given stages, which are
+	 * all followed by the common fragment shader, and starts using it.
+	 * @param shaders The classpath resources of the vertex shader and, if
+	 *                given, the tessellation control and evaluation shaders.
+	 */
+	public static int createShaderProgram(String... shaders) throws IOException {
+		int[] stages = {GL_VERTEX_SHADER, GL_TESS_CONTROL_SHADER, GL_TESS_EVALUATION_SHADER};
 		int prog = glCreateProgram();
-		int fragShader = glCreateShader(GL_FRAGMENT_SHADER);
-		glShaderSource(fragShader, readClasspathFile("shader/fragment.glsl"));
-		glCompileShader(fragShader);
-		glAttachShader(prog, fragShader);
-		int vertShader = glCreateShader(GL_VERTEX_SHADER);
-		glShaderSource(vertShader, readClasspathFile("shader/vertex.glsl"));
-		glCompileShader(vertShader);
-		glAttachShader(prog, vertShader);
-
-		glValidateProgram(prog);
+		attachShader(prog, GL_FRAGMENT_SHADER, "shader/fragment.glsl");
+		for (int i = 0; i < shaders.length; i++) {
+			attachShader(prog, stages[i], shaders[i]);
+		}
 		glLinkProgram(prog);
+		if (glGetProgrami(prog, GL_LINK_STATUS) == GL_FALSE) {
+			throw new IllegalStateException("Could not link shader program: " + glGetProgramInfoLog(prog));
+		}
 		glUseProgram(prog);
 		return prog;
 	}
 
+	private static void attachShader(int prog, int type, String resource) throws IOException {
+		int shader = glCreateShader(type);
+		glShaderSource(shader, readClasspathFile(resource));
+		glCompileShader(shader);
+		if (glGetShaderi(shader, GL_COMPILE_STATUS) == GL_FALSE) {
+			throw new IllegalStateException("Could not compile " + resource + ": " + glGetShaderInfoLog(shader));
+		}
+		glAttachShader(prog, shader);
+	}
+
 	public static float[] toArray(Vector3f v) {
 		return new float[]{v.x, v.y, v.z};
 	}
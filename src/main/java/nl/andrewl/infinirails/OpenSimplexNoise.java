@@ -1,5 +1,7 @@
 package nl.andrewl.infinirails;
 
+import java.nio.FloatBuffer;
+
 /*
  * 2014 OpenSimplex Noise in Java.
  * by Kurt Spencer
@@ -32,33 +34,45 @@ public class OpenSimplexNoise {
 	private static final int PSIZE = 2048;
 	private static final int PMASK = 2047;
 
-	private short[] perm;
-	private Grad2[] permGrad2;
-	private Grad3[] permGrad3;
-	private Grad4[] permGrad4;
+	// Vectorized grid evaluators, or null when the jdk.incubator.vector module isn't available to this JVM.
+	// The game's terrain is evaluated in single precision by FloatOpenSimplexNoise, which has its own kernel, so
+	// these are only used by callers of the double-precision evalGrid, which are currently the benchmarks and tests.
+	// Run with --add-modules jdk.incubator.vector to enable them.
+	// Set -Dinfinirails.noise.vector=false to force the scalar code.
+	private static final VectorNoiseKernel VECTOR_KERNEL = loadVectorKernel();
+
+	// Gradients are stored interleaved in primitive arrays, so that each lookup reads adjacent doubles instead of
+	// following a reference to a separate object. Gradient i of permGrad3 is at permGrad3[i * 3 .. i * 3 + 2].
+	// None of these are modified after construction, and evaluation keeps all of its state on the stack or in
+	// caller-provided or per-thread caches, so a single instance may be shared by any number of threads.
+	final short[] perm;
+	final double[] permGrad2;
+	private final double[] permGrad3;
+	private final double[] permGrad4;
+	// The cell that evalWithDerivatives caches gradients in, per thread.
+	private final ThreadLocal<GridCell2> pointCells = ThreadLocal.withInitial(GridCell2::new);
 
 	public OpenSimplexNoise() {
 		this(DEFAULT_SEED);
 	}
 
+	// The given permutation is used directly, and must not be modified afterwards.
 	public OpenSimplexNoise(short[] perm) {
 		this.perm = perm;
-		permGrad2 = new Grad2[PSIZE];
-		permGrad3 = new Grad3[PSIZE];
-		permGrad4 = new Grad4[PSIZE];
+		permGrad2 = new double[PSIZE * 2];
+		permGrad3 = new double[PSIZE * 3];
+		permGrad4 = new double[PSIZE * 4];
 
 		for (int i = 0; i < PSIZE; i++) {
-			permGrad2[i] = GRADIENTS_2D[perm[i]];
-			permGrad3[i] = GRADIENTS_3D[perm[i]];
-			permGrad4[i] = GRADIENTS_4D[perm[i]];
+			setPermGradients(i);
 		}
 	}
 
 	public OpenSimplexNoise(long seed) {
 		perm = new short[PSIZE];
-		permGrad2 = new Grad2[PSIZE];
-		permGrad3 = new Grad3[PSIZE];
-		permGrad4 = new Grad4[PSIZE];
+		permGrad2 = new double[PSIZE * 2];
+		permGrad3 = new double[PSIZE * 3];
+		permGrad4 = new double[PSIZE * 4];
 		short[] source = new short[PSIZE];
 		for (short i = 0; i < PSIZE; i++)
 			source[i] = i;
@@ -68,13 +82,32 @@ public class OpenSimplexNoise {
 			if (r < 0)
 				r += (i + 1);
 			perm[i] = source[r];
-			permGrad2[i] = GRADIENTS_2D[perm[i]];
-			permGrad3[i] = GRADIENTS_3D[perm[i]];
-			permGrad4[i] = GRADIENTS_4D[perm[i]];
+			setPermGradients(i);
 			source[r] = source[i];
 		}
 	}
 
+	private void setPermGradients(int i) {
+		System.arraycopy(GRADIENTS_2D, perm[i] * 2, permGrad2, i * 2, 2);
+		System.arraycopy(GRADIENTS_3D, perm[i] * 3, permGrad3, i * 3, 3);
+		System.arraycopy(GRADIENTS_4D, perm[i] * 4, permGrad4, i * 4, 4);
+	}
+
+	private static VectorNoiseKernel loadVectorKernel() {
+		if (!Boolean.parseBoolean(System.getProperty("infinirails.noise.vector", "true"))) return null;
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return null;
+		try {
+			return VectorNoiseKernel.create();
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	// Whether the grid evaluators are using the Java Vector API.
+	public static boolean isVectorized() {
+		return VECTOR_KERNEL != null;
+	}
+
 	// 2D OpenSimplex Noise.
 	public double eval(double x, double y) {
 
@@ -186,6 +219,286 @@ public class OpenSimplexNoise {
 		return value;
 	}
 
+	// 2D OpenSimplex Noise over a regular grid of width * height samples.
+	// Sample (i, j) is taken at (originX + j * step, originY + i * step) and written to out[offset + i * width + j].
+	// Each sample is identical to what eval(x, y) returns for the same point, but gradients are only looked up
+	// when the samples cross into a new rhombus super-cell, which neighbouring samples mostly share.
+	public void evalGrid(float[] out, int offset, double originX, double originY, double step, int width, int height) {
+		evalGrid(out, offset, originX, originY, step, width, height, 1, 0, 0);
+	}
+
+	// Same as the above, but with sample (i, j) taken at ((originX + j * step) * frequency + shiftX,
+	// (originY + i * step) * frequency + shiftY). Scaling only after stepping means that a point gets exactly the
+	// same noise coordinates in every grid that contains it, so grids which share an edge agree on it exactly.
+	public void evalGrid(float[] out, int offset, double originX, double originY, double step, int width, int height, double frequency, double shiftX, double shiftY) {
+		if (VECTOR_KERNEL != null && width >= VECTOR_KERNEL.lanes()) {
+			VECTOR_KERNEL.evalGrid2(this, out, offset, originX, originY, step, width, height, frequency, shiftX, shiftY);
+			return;
+		}
+		GridCell2 cell = new GridCell2();
+		for (int i = 0; i < height; i++) {
+			double y = (originY + i * step) * frequency + shiftY;
+			int rowOffset = offset + i * width;
+			for (int j = 0; j < width; j++) {
+				out[rowOffset + j] = (float) evalCached((originX + j * step) * frequency + shiftX, y, cell);
+			}
+		}
+	}
+
+	// Same as the above, but writes the samples row by row to the buffer, starting at its current position.
+	public void evalGrid(FloatBuffer out, double originX, double originY, double step, int width, int height) {
+		GridCell2 cell = new GridCell2();
+		for (int i = 0; i < height; i++) {
+			double y = originY + i * step;
+			for (int j = 0; j < width; j++) {
+				out.put((float) evalCached(originX + j * step, y, cell));
+			}
+		}
+	}
+
+	// 2D OpenSimplex Noise, using the gradients cached in the given cell wherever possible.
+	// This follows eval(x, y) operation for operation, so that the results are exactly the same.
+	private double evalCached(double x, double y, GridCell2 cell) {
+		double stretchOffset = (x + y) * STRETCH_CONSTANT_2D;
+		double xs = x + stretchOffset;
+		double ys = y + stretchOffset;
+		int xsb = fastFloor(xs);
+		int ysb = fastFloor(ys);
+		if (!cell.loaded || cell.xsb != xsb || cell.ysb != ysb) {
+			loadCell(cell, xsb, ysb);
+		}
+		double xins = xs - xsb;
+		double yins = ys - ysb;
+		double inSum = xins + yins;
+		double squishOffsetIns = inSum * SQUISH_CONSTANT_2D;
+		double dx0 = xins + squishOffsetIns;
+		double dy0 = yins + squishOffsetIns;
+
+		double dx_ext, dy_ext;
+		double gx_ext, gy_ext;
+		double gx0, gy0;
+
+		double value = 0;
+
+		// Contribution (1,0)
+		double dx1 = dx0 - 1 - SQUISH_CONSTANT_2D;
+		double dy1 = dy0 - 0 - SQUISH_CONSTANT_2D;
+		double attn1 = 2 - dx1 * dx1 - dy1 * dy1;
+		if (attn1 > 0) {
+			attn1 *= attn1;
+			value += attn1 * attn1 * (cell.gx10 * dx1 + cell.gy10 * dy1);
+		}
+
+		// Contribution (0,1)
+		double dx2 = dx0 - 0 - SQUISH_CONSTANT_2D;
+		double dy2 = dy0 - 1 - SQUISH_CONSTANT_2D;
+		double attn2 = 2 - dx2 * dx2 - dy2 * dy2;
+		if (attn2 > 0) {
+			attn2 *= attn2;
+			value += attn2 * attn2 * (cell.gx01 * dx2 + cell.gy01 * dy2);
+		}
+
+		if (inSum <= 1) {
+			double zins = 1 - inSum;
+			if (zins > xins || zins > yins) {
+				if (xins > yins) {
+					gx_ext = cell.gx1m; gy_ext = cell.gy1m;
+					dx_ext = dx0 - 1;
+					dy_ext = dy0 + 1;
+				} else {
+					gx_ext = cell.gxm1; gy_ext = cell.gym1;
+					dx_ext = dx0 + 1;
+					dy_ext = dy0 - 1;
+				}
+			} else {
+				gx_ext = cell.gx11; gy_ext = cell.gy11;
+				dx_ext = dx0 - 1 - 2 * SQUISH_CONSTANT_2D;
+				dy_ext = dy0 - 1 - 2 * SQUISH_CONSTANT_2D;
+			}
+			gx0 = cell.gx00; gy0 = cell.gy00;
+		} else {
+			double zins = 2 - inSum;
+			if (zins < xins || zins < yins) {
+				if (xins > yins) {
+					gx_ext = cell.gx20; gy_ext = cell.gy20;
+					dx_ext = dx0 - 2 - 2 * SQUISH_CONSTANT_2D;
+					dy_ext = dy0 + 0 - 2 * SQUISH_CONSTANT_2D;
+				} else {
+					gx_ext = cell.gx02; gy_ext = cell.gy02;
+					dx_ext = dx0 + 0 - 2 * SQUISH_CONSTANT_2D;
+					dy_ext = dy0 - 2 - 2 * SQUISH_CONSTANT_2D;
+				}
+			} else {
+				gx_ext = cell.gx00; gy_ext = cell.gy00;
+				dx_ext = dx0;
+				dy_ext = dy0;
+			}
+			gx0 = cell.gx11; gy0 = cell.gy11;
+			dx0 = dx0 - 1 - 2 * SQUISH_CONSTANT_2D;
+			dy0 = dy0 - 1 - 2 * SQUISH_CONSTANT_2D;
+		}
+
+		// Contribution (0,0) or (1,1)
+		double attn0 = 2 - dx0 * dx0 - dy0 * dy0;
+		if (attn0 > 0) {
+			attn0 *= attn0;
+			value += attn0 * attn0 * (gx0 * dx0 + gy0 * dy0);
+		}
+
+		// Extra Vertex
+		double attn_ext = 2 - dx_ext * dx_ext - dy_ext * dy_ext;
+		if (attn_ext > 0) {
+			attn_ext *= attn_ext;
+			value += attn_ext * attn_ext * (gx_ext * dx_ext + gy_ext * dy_ext);
+		}
+
+		return value;
+	}
+
+	// 2D OpenSimplex Noise, along with its analytic partial derivatives, written to the caller's result array as
+	// result[0] (the value, identical to eval(x, y)), result[1] (d/dx) and result[2] (d/dy). Gradients are cached in a
+	// cell per thread, so that this doesn't allocate.
+	public void evalWithDerivatives(double x, double y, double[] result) {
+		evalCachedWithDerivatives(x, y, pointCells.get(), result);
+	}
+
+	// 2D OpenSimplex Noise and its partial derivatives over a regular grid, laid out the same way as evalGrid does.
+	// Values are identical to evalGrid's, and the derivatives are with respect to the noise coordinates.
+	public void evalGridWithDerivatives(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height) {
+		evalGridWithDerivatives(out, outDx, outDy, offset, originX, originY, step, width, height, 1, 0, 0);
+	}
+
+	// Same as the above, but with the grid scaled and shifted like the equivalent evalGrid does. The derivatives are
+	// with respect to the unscaled grid coordinates, so they're multiplied by the frequency.
+	public void evalGridWithDerivatives(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height, double frequency, double shiftX, double shiftY) {
+		GridCell2 cell = new GridCell2();
+		double[] result = new double[3];
+		for (int i = 0; i < height; i++) {
+			double y = (originY + i * step) * frequency + shiftY;
+			int rowOffset = offset + i * width;
+			for (int j = 0; j < width; j++) {
+				evalCachedWithDerivatives((originX + j * step) * frequency + shiftX, y, cell, result);
+				out[rowOffset + j] = (float) result[0];
+				outDx[rowOffset + j] = (float) (result[1] * frequency);
+				outDy[rowOffset + j] = (float) (result[2] * frequency);
+			}
+		}
+	}
+
+	// Same as evalCached, but also differentiates each contribution, writing the value and its derivatives to result.
+	// Since each (dx, dy) is just the input point minus a fixed lattice vertex, d(dx)/dx = d(dy)/dy = 1, and so a
+	// contribution attn^4 * (gx * dx + gy * dy) has d/dx = attn^4 * gx - 8 * attn^3 * dx * (gx * dx + gy * dy).
+	void evalCachedWithDerivatives(double x, double y, GridCell2 cell, double[] result) {
+		double stretchOffset = (x + y) * STRETCH_CONSTANT_2D;
+		double xs = x + stretchOffset;
+		double ys = y + stretchOffset;
+		int xsb = fastFloor(xs);
+		int ysb = fastFloor(ys);
+		if (!cell.loaded || cell.xsb != xsb || cell.ysb != ysb) {
+			loadCell(cell, xsb, ysb);
+		}
+		double xins = xs - xsb;
+		double yins = ys - ysb;
+		double inSum = xins + yins;
+		double squishOffsetIns = inSum * SQUISH_CONSTANT_2D;
+		double dx0 = xins + squishOffsetIns;
+		double dy0 = yins + squishOffsetIns;
+
+		double dx_ext, dy_ext;
+		double gx_ext, gy_ext;
+		double gx0, gy0;
+
+		result[0] = 0;
+		result[1] = 0;
+		result[2] = 0;
+
+		// Contribution (1,0)
+		contribute(result, dx0 - 1 - SQUISH_CONSTANT_2D, dy0 - 0 - SQUISH_CONSTANT_2D, cell.gx10, cell.gy10);
+
+		// Contribution (0,1)
+		contribute(result, dx0 - 0 - SQUISH_CONSTANT_2D, dy0 - 1 - SQUISH_CONSTANT_2D, cell.gx01, cell.gy01);
+
+		if (inSum <= 1) {
+			double zins = 1 - inSum;
+			if (zins > xins || zins > yins) {
+				if (xins > yins) {
+					gx_ext = cell.gx1m; gy_ext = cell.gy1m;
+					dx_ext = dx0 - 1;
+					dy_ext = dy0 + 1;
+				} else {
+					gx_ext = cell.gxm1; gy_ext = cell.gym1;
+					dx_ext = dx0 + 1;
+					dy_ext = dy0 - 1;
+				}
+			} else {
+				gx_ext = cell.gx11; gy_ext = cell.gy11;
+				dx_ext = dx0 - 1 - 2 * SQUISH_CONSTANT_2D;
+				dy_ext = dy0 - 1 - 2 * SQUISH_CONSTANT_2D;
+			}
+			gx0 = cell.gx00; gy0 = cell.gy00;
+		} else {
+			double zins = 2 - inSum;
+			if (zins < xins || zins < yins) {
+				if (xins > yins) {
+					gx_ext = cell.gx20; gy_ext = cell.gy20;
+					dx_ext = dx0 - 2 - 2 * SQUISH_CONSTANT_2D;
+					dy_ext = dy0 + 0 - 2 * SQUISH_CONSTANT_2D;
+				} else {
+					gx_ext = cell.gx02; gy_ext = cell.gy02;
+					dx_ext = dx0 + 0 - 2 * SQUISH_CONSTANT_2D;
+					dy_ext = dy0 - 2 - 2 * SQUISH_CONSTANT_2D;
+				}
+			} else {
+				gx_ext = cell.gx00; gy_ext = cell.gy00;
+				dx_ext = dx0;
+				dy_ext = dy0;
+			}
+			gx0 = cell.gx11; gy0 = cell.gy11;
+			dx0 = dx0 - 1 - 2 * SQUISH_CONSTANT_2D;
+			dy0 = dy0 - 1 - 2 * SQUISH_CONSTANT_2D;
+		}
+
+		// Contribution (0,0) or (1,1)
+		contribute(result, dx0, dy0, gx0, gy0);
+
+		// Extra Vertex
+		contribute(result, dx_ext, dy_ext, gx_ext, gy_ext);
+	}
+
+	private static void contribute(double[] result, double dx, double dy, double gx, double gy) {
+		double attn = 2 - dx * dx - dy * dy;
+		if (attn > 0) {
+			double attnSq = attn * attn;
+			double extrapolation = gx * dx + gy * dy;
+			double falloff = -8 * attnSq * attn * extrapolation;
+			result[0] += attnSq * attnSq * extrapolation;
+			result[1] += attnSq * attnSq * gx + falloff * dx;
+			result[2] += attnSq * attnSq * gy + falloff * dy;
+		}
+	}
+
+	// Looks up the gradients of every lattice vertex that a sample in the super-cell at (xsb, ysb) can use.
+	void loadCell(GridCell2 cell, int xsb, int ysb) {
+		double[] g = permGrad2;
+		int i;
+		i = gradient2(xsb, ysb);         cell.gx00 = g[i]; cell.gy00 = g[i + 1];
+		i = gradient2(xsb + 1, ysb);     cell.gx10 = g[i]; cell.gy10 = g[i + 1];
+		i = gradient2(xsb, ysb + 1);     cell.gx01 = g[i]; cell.gy01 = g[i + 1];
+		i = gradient2(xsb + 1, ysb + 1); cell.gx11 = g[i]; cell.gy11 = g[i + 1];
+		i = gradient2(xsb + 1, ysb - 1); cell.gx1m = g[i]; cell.gy1m = g[i + 1];
+		i = gradient2(xsb - 1, ysb + 1); cell.gxm1 = g[i]; cell.gym1 = g[i + 1];
+		i = gradient2(xsb + 2, ysb);     cell.gx20 = g[i]; cell.gy20 = g[i + 1];
+		i = gradient2(xsb, ysb + 2);     cell.gx02 = g[i]; cell.gy02 = g[i + 1];
+		cell.xsb = xsb;
+		cell.ysb = ysb;
+		cell.loaded = true;
+	}
+
+	// Index in permGrad2 of the gradient of the 2D lattice vertex (xsb, ysb).
+	int gradient2(int xsb, int ysb) {
+		return (perm[xsb & PMASK] ^ (ysb & PMASK)) * 2;
+	}
+
 	// 3D OpenSimplex Noise.
 	public double eval(double x, double y, double z) {
 
@@ -2115,20 +2428,29 @@ public class OpenSimplexNoise {
 
 	private double extrapolate(int xsb, int ysb, double dx, double dy)
 	{
-		Grad2 grad = permGrad2[perm[xsb & PMASK] ^ (ysb & PMASK)];
-		return grad.dx * dx + grad.dy * dy;
+		int i = (perm[xsb & PMASK] ^ (ysb & PMASK)) * 2;
+		return permGrad2[i] * dx + permGrad2[i + 1] * dy;
 	}
 
 	private double extrapolate(int xsb, int ysb, int zsb, double dx, double dy, double dz)
 	{
-		Grad3 grad = permGrad3[perm[perm[xsb & PMASK] ^ (ysb & PMASK)] ^ (zsb & PMASK)];
-		return grad.dx * dx + grad.dy * dy + grad.dz * dz;
+		int i = (perm[perm[xsb & PMASK] ^ (ysb & PMASK)] ^ (zsb & PMASK)) * 3;
+		return permGrad3[i] * dx + permGrad3[i + 1] * dy + permGrad3[i + 2] * dz;
 	}
 
 	private double extrapolate(int xsb, int ysb, int zsb, int wsb, double dx, double dy, double dz, double dw)
 	{
-		Grad4 grad = permGrad4[perm[perm[perm[xsb & PMASK] ^ (ysb & PMASK)] ^ (zsb & PMASK)] ^ (wsb & PMASK)];
-		return grad.dx * dx + grad.dy * dy + grad.dz * dz + grad.dw * dw;
+		int i = (perm[perm[perm[xsb & PMASK] ^ (ysb & PMASK)] ^ (zsb & PMASK)] ^ (wsb & PMASK)) * 4;
+		return permGrad4[i] * dx + permGrad4[i + 1] * dy + permGrad4[i + 2] * dz + permGrad4[i + 3] * dw;
+	}
+
+	// The gradients surrounding a single 2D super-cell, shared by consecutive evalCached calls.
+	// Names are the vertex offset from the cell origin, with m standing for -1.
+	static final class GridCell2 {
+		boolean loaded;
+		int xsb, ysb;
+		double gx00, gy00, gx10, gy10, gx01, gy01, gx11, gy11;
+		double gx1m, gy1m, gxm1, gym1, gx20, gy20, gx02, gy02;
 	}
 
 	private static int fastFloor(double x) {
@@ -2161,9 +2483,9 @@ public class OpenSimplexNoise {
 	private static final double N3 = 26.92263139946168;
 	private static final double N4 = 8.881759591352166;
 
-	private static final Grad2[] GRADIENTS_2D = new Grad2[PSIZE];
-	private static final Grad3[] GRADIENTS_3D = new Grad3[PSIZE];
-	private static final Grad4[] GRADIENTS_4D = new Grad4[PSIZE];
+	private static final double[] GRADIENTS_2D = new double[PSIZE * 2];
+	private static final double[] GRADIENTS_3D = new double[PSIZE * 3];
+	private static final double[] GRADIENTS_4D = new double[PSIZE * 4];
 	static {
 		Grad2[] grad2 = {
 				new Grad2( 0.130526192220052,  0.99144486137381),
@@ -2195,7 +2517,9 @@ public class OpenSimplexNoise {
 			grad2[i].dx /= N2; grad2[i].dy /= N2;
 		}
 		for (int i = 0; i < PSIZE; i++) {
-			GRADIENTS_2D[i] = grad2[i % grad2.length];
+			Grad2 g = grad2[i % grad2.length];
+			GRADIENTS_2D[i * 2] = g.dx;
+			GRADIENTS_2D[i * 2 + 1] = g.dy;
 		}
 
 		Grad3[] grad3 = {
@@ -2252,7 +2576,10 @@ public class OpenSimplexNoise {
 			grad3[i].dx /= N3; grad3[i].dy /= N3; grad3[i].dz /= N3;
 		}
 		for (int i = 0; i < PSIZE; i++) {
-			GRADIENTS_3D[i] = grad3[i % grad3.length];
+			Grad3 g = grad3[i % grad3.length];
+			GRADIENTS_3D[i * 3] = g.dx;
+			GRADIENTS_3D[i * 3 + 1] = g.dy;
+			GRADIENTS_3D[i * 3 + 2] = g.dz;
 		}
 
 		Grad4[] grad4 = {
@@ -2421,7 +2748,11 @@ public class OpenSimplexNoise {
 			grad4[i].dx /= N4; grad4[i].dy /= N4; grad4[i].dz /= N4; grad4[i].dw /= N4;
 		}
 		for (int i = 0; i < PSIZE; i++) {
-			GRADIENTS_4D[i] = grad4[i % grad4.length];
+			Grad4 g = grad4[i % grad4.length];
+			GRADIENTS_4D[i * 4] = g.dx;
+			GRADIENTS_4D[i * 4 + 1] = g.dy;
+			GRADIENTS_4D[i * 4 + 2] = g.dz;
+			GRADIENTS_4D[i * 4 + 3] = g.dw;
 		}
 	}
 
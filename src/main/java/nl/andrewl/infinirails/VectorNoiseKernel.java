@@ -0,0 +1,232 @@
+package nl.andrewl.infinirails;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vectorized versions of the {@link OpenSimplexNoise} grid evaluators, which
+ * compute one sample per vector lane using the incubating Java Vector API.
+ * <p>
+ *     This class may only be loaded when the {@code jdk.incubator.vector}
+ *     module is present, which {@link OpenSimplexNoise} checks before it
+ *     calls {@link #create()}. Gradient lookups are still done lane by lane,
+ *     since gathers aren't intrinsified for every platform, unless a whole
+ *     vector of samples shares the same super-cell.
+ * </p>
+ * <p>
+ *     Terrain doesn't use this kernel: {@link FractalNoise} evaluates its
+ *     octaves in single precision, with {@link FloatVectorNoiseKernel}. It's
+ *     kept for the double-precision {@link OpenSimplexNoise#evalGrid}, whose
+ *     only callers are the benchmarks and tests.
+ * </p>
+ */
+final class VectorNoiseKernel {
+	private static final double STRETCH_CONSTANT_2D = -0.211324865405187;
+	private static final double SQUISH_CONSTANT_2D = 0.366025403784439;
+	private static final double ROUNDING_CONSTANT = 6755399441055744.0;
+
+	/**
+	 * The species must be a constant for the JIT to compile vector operations
+	 * down to instructions, which is fine since this class is only loaded once
+	 * the module is known to be present.
+	 */
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	private final int lanes;
+	private final double[] iota;
+
+	private VectorNoiseKernel() {
+		this.lanes = SPECIES.length();
+		this.iota = new double[lanes];
+		for (int i = 0; i < lanes; i++) iota[i] = i;
+	}
+
+	/**
+	 * Creates the kernel. Callers must first check that the
+	 * {@code jdk.incubator.vector} module is present.
+	 * @return The kernel, or null if vectors are too narrow to be of use.
+	 */
+	static VectorNoiseKernel create() {
+		var kernel = new VectorNoiseKernel();
+		return kernel.lanes > 1 ? kernel : null;
+	}
+
+	int lanes() {
+		return lanes;
+	}
+
+	/**
+	 * Vectorized equivalent of {@link OpenSimplexNoise#evalGrid(float[], int, double, double, double, int, int, double, double, double)}.
+	 * Every lane follows the same operations as the scalar 2D evaluator, with
+	 * its branches replaced by blends, so the results are bit-identical.
+	 */
+	void evalGrid2(OpenSimplexNoise noise, float[] out, int offset, double originX, double originY, double step, int width, int height, double frequency, double shiftX, double shiftY) {
+		final int n = lanes;
+		double[] xsb = new double[n], ysb = new double[n];
+		double[] v0o = new double[n], exo = new double[n], eyo = new double[n];
+		double[] g1xs = new double[n], g1ys = new double[n], g2xs = new double[n], g2ys = new double[n];
+		double[] g0xs = new double[n], g0ys = new double[n], gexs = new double[n], geys = new double[n];
+		double[] result = new double[n];
+		OpenSimplexNoise.GridCell2 cell = new OpenSimplexNoise.GridCell2();
+		DoubleVector laneIndex = DoubleVector.fromArray(SPECIES, iota, 0);
+		int vectorWidth = width - width % n;
+
+		for (int i = 0; i < height; i++) {
+			double y = (originY + i * step) * frequency + shiftY;
+			int rowOffset = offset + i * width;
+			DoubleVector yv = DoubleVector.broadcast(SPECIES, y);
+			for (int j = 0; j < vectorWidth; j += n) {
+				DoubleVector xv = laneIndex.add(j).mul(step).add(originX).mul(frequency).add(shiftX);
+
+				// Place input coordinates onto grid.
+				DoubleVector stretchOffset = xv.add(yv).mul(STRETCH_CONSTANT_2D);
+				DoubleVector xs = xv.add(stretchOffset);
+				DoubleVector ys = yv.add(stretchOffset);
+				DoubleVector xsbv = floor(xs);
+				DoubleVector ysbv = floor(ys);
+				DoubleVector xins = xs.sub(xsbv);
+				DoubleVector yins = ys.sub(ysbv);
+				DoubleVector inSum = xins.add(yins);
+				DoubleVector squishOffsetIns = inSum.mul(SQUISH_CONSTANT_2D);
+				DoubleVector dx0 = xins.add(squishOffsetIns);
+				DoubleVector dy0 = yins.add(squishOffsetIns);
+
+				// Contributions (1,0) and (0,1).
+				DoubleVector dx1 = dx0.sub(1).sub(SQUISH_CONSTANT_2D);
+				DoubleVector dy1 = dy0.sub(0).sub(SQUISH_CONSTANT_2D);
+				DoubleVector dx2 = dx0.sub(0).sub(SQUISH_CONSTANT_2D);
+				DoubleVector dy2 = dy0.sub(1).sub(SQUISH_CONSTANT_2D);
+
+				// Work out both triangles' extra vertex, and pick one per lane.
+				VectorMask<Double> lower = inSum.compare(VectorOperators.LE, 1);
+				VectorMask<Double> xGreater = xins.compare(VectorOperators.GT, yins);
+
+				DoubleVector zinsLower = DoubleVector.broadcast(SPECIES, 1).sub(inSum);
+				VectorMask<Double> nearOriginLower = zinsLower.compare(VectorOperators.GT, xins)
+						.or(zinsLower.compare(VectorOperators.GT, yins));
+				DoubleVector dxExtLower = dx0.add(1).blend(dx0.sub(1), xGreater)
+						.blend(dx0.sub(1).sub(2 * SQUISH_CONSTANT_2D), nearOriginLower.not());
+				DoubleVector dyExtLower = dy0.sub(1).blend(dy0.add(1), xGreater)
+						.blend(dy0.sub(1).sub(2 * SQUISH_CONSTANT_2D), nearOriginLower.not());
+				DoubleVector exLower = DoubleVector.broadcast(SPECIES, -1).blend(1, xGreater)
+						.blend(1, nearOriginLower.not());
+				DoubleVector eyLower = DoubleVector.broadcast(SPECIES, 1).blend(-1, xGreater)
+						.blend(1, nearOriginLower.not());
+
+				DoubleVector zinsUpper = DoubleVector.broadcast(SPECIES, 2).sub(inSum);
+				VectorMask<Double> nearOriginUpper = zinsUpper.compare(VectorOperators.LT, xins)
+						.or(zinsUpper.compare(VectorOperators.LT, yins));
+				DoubleVector dxExtUpper = dx0.add(0).sub(2 * SQUISH_CONSTANT_2D)
+						.blend(dx0.sub(2).sub(2 * SQUISH_CONSTANT_2D), xGreater)
+						.blend(dx0, nearOriginUpper.not());
+				DoubleVector dyExtUpper = dy0.sub(2).sub(2 * SQUISH_CONSTANT_2D)
+						.blend(dy0.add(0).sub(2 * SQUISH_CONSTANT_2D), xGreater)
+						.blend(dy0, nearOriginUpper.not());
+				DoubleVector exUpper = DoubleVector.broadcast(SPECIES, 0).blend(2, xGreater)
+						.blend(0, nearOriginUpper.not());
+				DoubleVector eyUpper = DoubleVector.broadcast(SPECIES, 2).blend(0, xGreater)
+						.blend(0, nearOriginUpper.not());
+
+				DoubleVector dxExt = dxExtUpper.blend(dxExtLower, lower);
+				DoubleVector dyExt = dyExtUpper.blend(dyExtLower, lower);
+				DoubleVector dx0c = dx0.sub(1).sub(2 * SQUISH_CONSTANT_2D).blend(dx0, lower);
+				DoubleVector dy0c = dy0.sub(1).sub(2 * SQUISH_CONSTANT_2D).blend(dy0, lower);
+
+				xsbv.intoArray(xsb, 0);
+				ysbv.intoArray(ysb, 0);
+				DoubleVector g1x, g1y, g2x, g2y, g0x, g0y, gex, gey;
+				// Within a row, xs only increases and ys only decreases, so if the first and last lanes share a
+				// super-cell then all lanes do, and its gradients can be broadcast and picked per lane with blends.
+				if (xsb[0] == xsb[n - 1] && ysb[0] == ysb[n - 1]) {
+					int xb = (int) xsb[0], yb = (int) ysb[0];
+					if (!cell.loaded || cell.xsb != xb || cell.ysb != yb) {
+						noise.loadCell(cell, xb, yb);
+					}
+					g1x = DoubleVector.broadcast(SPECIES, cell.gx10);
+					g1y = DoubleVector.broadcast(SPECIES, cell.gy10);
+					g2x = DoubleVector.broadcast(SPECIES, cell.gx01);
+					g2y = DoubleVector.broadcast(SPECIES, cell.gy01);
+					DoubleVector gx00 = DoubleVector.broadcast(SPECIES, cell.gx00);
+					DoubleVector gy00 = DoubleVector.broadcast(SPECIES, cell.gy00);
+					DoubleVector gx11 = DoubleVector.broadcast(SPECIES, cell.gx11);
+					DoubleVector gy11 = DoubleVector.broadcast(SPECIES, cell.gy11);
+					g0x = gx11.blend(gx00, lower);
+					g0y = gy11.blend(gy00, lower);
+					DoubleVector gexLower = DoubleVector.broadcast(SPECIES, cell.gxm1)
+							.blend(DoubleVector.broadcast(SPECIES, cell.gx1m), xGreater)
+							.blend(gx11, nearOriginLower.not());
+					DoubleVector geyLower = DoubleVector.broadcast(SPECIES, cell.gym1)
+							.blend(DoubleVector.broadcast(SPECIES, cell.gy1m), xGreater)
+							.blend(gy11, nearOriginLower.not());
+					DoubleVector gexUpper = DoubleVector.broadcast(SPECIES, cell.gx02)
+							.blend(DoubleVector.broadcast(SPECIES, cell.gx20), xGreater)
+							.blend(gx00, nearOriginUpper.not());
+					DoubleVector geyUpper = DoubleVector.broadcast(SPECIES, cell.gy02)
+							.blend(DoubleVector.broadcast(SPECIES, cell.gy20), xGreater)
+							.blend(gy00, nearOriginUpper.not());
+					gex = gexUpper.blend(gexLower, lower);
+					gey = geyUpper.blend(geyLower, lower);
+				} else {
+					// Otherwise, look up the gradients of the four contributing vertices lane by lane.
+					DoubleVector.broadcast(SPECIES, 1).blend(0, lower).intoArray(v0o, 0);
+					exUpper.blend(exLower, lower).intoArray(exo, 0);
+					eyUpper.blend(eyLower, lower).intoArray(eyo, 0);
+					double[] g = noise.permGrad2;
+					for (int k = 0; k < n; k++) {
+						int xb = (int) xsb[k], yb = (int) ysb[k], o = (int) v0o[k];
+						int gi;
+						gi = noise.gradient2(xb + 1, yb); g1xs[k] = g[gi]; g1ys[k] = g[gi + 1];
+						gi = noise.gradient2(xb, yb + 1); g2xs[k] = g[gi]; g2ys[k] = g[gi + 1];
+						gi = noise.gradient2(xb + o, yb + o); g0xs[k] = g[gi]; g0ys[k] = g[gi + 1];
+						gi = noise.gradient2(xb + (int) exo[k], yb + (int) eyo[k]); gexs[k] = g[gi]; geys[k] = g[gi + 1];
+					}
+					g1x = DoubleVector.fromArray(SPECIES, g1xs, 0);
+					g1y = DoubleVector.fromArray(SPECIES, g1ys, 0);
+					g2x = DoubleVector.fromArray(SPECIES, g2xs, 0);
+					g2y = DoubleVector.fromArray(SPECIES, g2ys, 0);
+					g0x = DoubleVector.fromArray(SPECIES, g0xs, 0);
+					g0y = DoubleVector.fromArray(SPECIES, g0ys, 0);
+					gex = DoubleVector.fromArray(SPECIES, gexs, 0);
+					gey = DoubleVector.fromArray(SPECIES, geys, 0);
+				}
+
+				DoubleVector value = DoubleVector.zero(SPECIES);
+				value = contribute(value, dx1, dy1, g1x, g1y);
+				value = contribute(value, dx2, dy2, g2x, g2y);
+				value = contribute(value, dx0c, dy0c, g0x, g0y);
+				value = contribute(value, dxExt, dyExt, gex, gey);
+				value.intoArray(result, 0);
+				for (int k = 0; k < n; k++) {
+					out[rowOffset + j + k] = (float) result[k];
+				}
+			}
+			for (int j = vectorWidth; j < width; j++) {
+				out[rowOffset + j] = (float) noise.eval((originX + j * step) * frequency + shiftX, y);
+			}
+		}
+	}
+
+	/**
+	 * Adds a single vertex's contribution to each lane's value, for those
+	 * lanes where the vertex is in range.
+	 */
+	private static DoubleVector contribute(DoubleVector value, DoubleVector dx, DoubleVector dy, DoubleVector gx, DoubleVector gy) {
+		DoubleVector attn = DoubleVector.broadcast(SPECIES, 2).sub(dx.mul(dx)).sub(dy.mul(dy));
+		VectorMask<Double> inRange = attn.compare(VectorOperators.GT, 0);
+		attn = attn.mul(attn);
+		DoubleVector extrapolation = gx.mul(dx).add(gy.mul(dy));
+		return value.add(attn.mul(attn).mul(extrapolation), inRange);
+	}
+
+	/**
+	 * Lane-wise equivalent of {@code OpenSimplexNoise.fastFloor}. Adding and
+	 * subtracting 1.5 * 2^52 rounds to the nearest integer without a double to
+	 * long conversion, which C2 can't yet compile to vector instructions.
+	 */
+	private static DoubleVector floor(DoubleVector v) {
+		DoubleVector rounded = v.add(ROUNDING_CONSTANT).sub(ROUNDING_CONSTANT);
+		return rounded.sub(1, rounded.compare(VectorOperators.GT, v));
+	}
+}
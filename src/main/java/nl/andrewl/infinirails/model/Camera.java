@@ -59,6 +59,17 @@ public class Camera {
 		updateViewTransform();
 	}
 
+	/**
+	 * Gets the horizontal direction that the camera faces, which is also the
+	 * direction it moves in when moving forward.
+	 * @param dest The vector to put the x and z components of the direction in.
+	 * @return The given vector, as a unit vector.
+	 */
+	public Vector2f getHorizontalDirection(Vector2f dest) {
+		float angle = Math.toRadians(orientation.x);
+		return dest.set(-Math.sin(angle), -Math.cos(angle));
+	}
+
 	public float[] getPositionValues() {
 		return new float[]{position.x, position.y, position.z};
 	}
@@ -0,0 +1,158 @@
+package nl.andrewl.infinirails.model;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.FloatBuffer;
+import java.util.BitSet;
+
+import static org.lwjgl.opengl.GL40.*;
+
+/**
+ * A pair of texture arrays that hold the heightmaps of terrain fragments, one
+ * fragment per layer, for {@link TerrainRenderMode#HEIGHT_TEXTURE} rendering.
+ * Heights are stored as R32F, and normals as RG16_SNORM with just their x and
+ * z components, since a heightmap's normals always point upwards and y can be
+ * recomputed. Textures are linearly filtered, for shaders that sample them
+ * between heightmap points.
+ * <p>
+ *     When all layers are in use, the arrays are recreated with twice as
+ *     many, up to the most that the OpenGL implementation allows, and every
+ *     heightmap is uploaded again. All methods must be called on the thread
+ *     with the OpenGL context.
+ * </p>
+ */
+public class HeightTextureArray {
+	private static final int INITIAL_CAPACITY = 32;
+
+	private final int size;
+	private final int maxLayers;
+	private int heightTexture;
+	private int normalTexture;
+	private int capacity;
+	private final BitSet usedLayers = new BitSet();
+	private float[][][] layerHeights;
+	private float[][][] layerNormals;
+	private FloatBuffer staging;
+
+	/**
+	 * @param size The number of heightmap points along each side.
+	 */
+	public HeightTextureArray(int size) {
+		this.size = size;
+		this.maxLayers = glGetInteger(GL_MAX_ARRAY_TEXTURE_LAYERS);
+		this.staging = MemoryUtil.memAllocFloat(size * size * 2);
+		this.layerHeights = new float[0][][];
+		this.layerNormals = new float[0][][];
+		grow(Math.min(INITIAL_CAPACITY, maxLayers));
+	}
+
+	/**
+	 * Uploads a heightmap to a free layer. The arrays are kept, so that they
+	 * can be uploaded again if the texture arrays have to grow.
+	 * @return The layer that the heightmap was put in.
+	 * @throws IllegalStateException If every layer that OpenGL allows is in use.
+	 */
+	public int allocate(float[][] heights, float[][] normals) {
+		int layer = usedLayers.nextClearBit(0);
+		if (layer >= capacity) {
+			if (capacity == maxLayers) {
+				throw new IllegalStateException(String.format(
+						"Can't hold more than %d heightmaps, the most texture array layers that OpenGL allows.", maxLayers
+				));
+			}
+			grow(Math.min(capacity * 2, maxLayers));
+		}
+		usedLayers.set(layer);
+		layerHeights[layer] = heights;
+		layerNormals[layer] = normals;
+		upload(layer);
+		return layer;
+	}
+
+	/**
+	 * Uploads a layer's heightmap again, after it's been edited.
+	 */
+	public void update(int layer) {
+		upload(layer);
+	}
+
+	/**
+	 * Frees a layer for use by another heightmap.
+	 */
+	public void release(int layer) {
+		usedLayers.clear(layer);
+		layerHeights[layer] = null;
+		layerNormals[layer] = null;
+	}
+
+	/**
+	 * Binds the height and normal texture arrays to the given texture units.
+	 */
+	public void bind(int heightUnit, int normalUnit) {
+		glActiveTexture(GL_TEXTURE0 + heightUnit);
+		glBindTexture(GL_TEXTURE_2D_ARRAY, heightTexture);
+		glActiveTexture(GL_TEXTURE0 + normalUnit);
+		glBindTexture(GL_TEXTURE_2D_ARRAY, normalTexture);
+		glActiveTexture(GL_TEXTURE0);
+	}
+
+	public void free() {
+		glDeleteTextures(heightTexture);
+		glDeleteTextures(normalTexture);
+		MemoryUtil.memFree(staging);
+	}
+
+	private void grow(int newCapacity) {
+		if (heightTexture != 0) {
+			glDeleteTextures(heightTexture);
+			glDeleteTextures(normalTexture);
+		}
+		heightTexture = createTexture(GL_R32F, GL_RED, newCapacity);
+		normalTexture = createTexture(GL_RG16_SNORM, GL_RG, newCapacity);
+		var heights = new float[newCapacity][][];
+		var normals = new float[newCapacity][][];
+		System.arraycopy(layerHeights, 0, heights, 0, layerHeights.length);
+		System.arraycopy(layerNormals, 0, normals, 0, layerNormals.length);
+		layerHeights = heights;
+		layerNormals = normals;
+		capacity = newCapacity;
+		for (int layer = usedLayers.nextSetBit(0); layer >= 0; layer = usedLayers.nextSetBit(layer + 1)) {
+			upload(layer);
+		}
+	}
+
+	private int createTexture(int internalFormat, int format, int layers) {
+		int texture = glGenTextures();
+		glBindTexture(GL_TEXTURE_2D_ARRAY, texture);
+		glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, internalFormat, size, size, layers, 0, format, GL_FLOAT, (FloatBuffer) null);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAX_LEVEL, 0);
+		glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+		return texture;
+	}
+
+	private void upload(int layer) {
+		float[][] heights = layerHeights[layer];
+		float[][] normals = layerNormals[layer];
+		FloatBuffer b = staging.clear();
+		for (int i = 0; i < size; i++) {
+			b.put(heights[i], 0, size);
+		}
+		glBindTexture(GL_TEXTURE_2D_ARRAY, heightTexture);
+		glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, layer, size, size, 1, GL_RED, GL_FLOAT, b.flip());
+
+		b.clear();
+		for (int i = 0; i < size; i++) {
+			float[] row = normals[i];
+			for (int j = 0; j < size; j++) {
+				b.put(row[3 * j]).put(row[3 * j + 2]);
+			}
+		}
+		glBindTexture(GL_TEXTURE_2D_ARRAY, normalTexture);
+		glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, layer, size, size, 1, GL_RG, GL_FLOAT, b.flip());
+		glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+	}
+}
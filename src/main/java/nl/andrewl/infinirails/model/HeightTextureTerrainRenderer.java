@@ -0,0 +1,122 @@
+package nl.andrewl.infinirails.model;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Collection;
+
+import static org.lwjgl.opengl.GL40.*;
+
+/**
+ * Draws terrain fragments in {@link TerrainRenderMode#HEIGHT_TEXTURE} mode:
+ * a single flat grid mesh is drawn once per fragment with instancing, and
+ * each instance reads its heights and normals from its fragment's layer in
+ * the world's {@link HeightTextureArray}. Fragments are grouped by their
+ * level of detail, with one instanced draw call per level.
+ */
+public class HeightTextureTerrainRenderer {
+	public static final int HEIGHT_TEXTURE_UNIT = 0;
+	public static final int NORMAL_TEXTURE_UNIT = 1;
+
+	/**
+	 * Per-vertex data: the grid x and z, whether it's a skirt vertex, and
+	 * padding.
+	 */
+	private static final int SHORTS_PER_VERTEX = 4;
+	/**
+	 * Per-instance data: the x and z of the fragment's origin, its layer, and
+	 * its skirt depth.
+	 */
+	private static final int FLOATS_PER_INSTANCE = 4;
+
+	private final World world;
+	private final int gridBuffer;
+	private final int instanceBuffer;
+	private final int vertexArray;
+
+	public HeightTextureTerrainRenderer(World world) {
+		this.world = world;
+		int size = World.TERRAIN_FRAGMENT_SIZE + 1;
+		// The same vertices as a fragment mesh, but the shader lowers skirt vertices itself.
+		ByteBuffer grid = MemoryUtil.memAlloc(TerrainMeshBuilder.vertexCount(size) * SHORTS_PER_VERTEX * Short.BYTES);
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				grid.putShort((short) j).putShort((short) i).putShort((short) 0).putShort((short) 0);
+			}
+		}
+		for (int k = 0; k < 4 * size; k++) {
+			grid.putShort((short) TerrainMeshBuilder.skirtColumn(size, k))
+					.putShort((short) TerrainMeshBuilder.skirtRow(size, k))
+					.putShort((short) 1)
+					.putShort((short) 0);
+		}
+		gridBuffer = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, gridBuffer);
+		glBufferData(GL_ARRAY_BUFFER, grid.flip(), GL_STATIC_DRAW);
+		MemoryUtil.memFree(grid);
+		instanceBuffer = glGenBuffers();
+
+		vertexArray = glGenVertexArrays();
+		glBindVertexArray(vertexArray);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, world.getTerrainIndexBuffer().getId());
+		glBindBuffer(GL_ARRAY_BUFFER, gridBuffer);
+		glEnableVertexAttribArray(0);
+		glVertexAttribPointer(0, 3, GL_UNSIGNED_SHORT, false, SHORTS_PER_VERTEX * Short.BYTES, 0);
+		glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+		glEnableVertexAttribArray(3);
+		glVertexAttribPointer(3, FLOATS_PER_INSTANCE, GL_FLOAT, false, FLOATS_PER_INSTANCE * Float.BYTES, 0);
+		glVertexAttribDivisor(3, 1);
+		glBindVertexArray(0);
+	}
+
+	/**
+	 * Draws all the given fragments, with an instanced draw call for each
+	 * level of detail that's used.
+	 */
+	public void draw(Collection<TerrainFragment> fragments) {
+		if (fragments.isEmpty()) return;
+		// Instances are sorted by level, so that each level's instances are consecutive.
+		int[] levels = new int[TerrainMeshBuilder.LOD_COUNT + 1];
+		int[] fragmentLevels = new int[fragments.size()];
+		try (var stack = MemoryStack.stackPush()) {
+			int f = 0;
+			for (var fragment : fragments) {
+				fragmentLevels[f] = world.getLodLevel(fragment);
+				levels[fragmentLevels[f++] + 1]++;
+			}
+			for (int level = 1; level < levels.length; level++) levels[level] += levels[level - 1];
+			FloatBuffer instances = stack.mallocFloat(fragments.size() * FLOATS_PER_INSTANCE);
+			int[] next = levels.clone();
+			f = 0;
+			for (var fragment : fragments) {
+				int p = next[fragmentLevels[f++]]++ * FLOATS_PER_INSTANCE;
+				instances.put(p, fragment.getIndex().x * World.TERRAIN_FRAGMENT_SIZE)
+						.put(p + 1, fragment.getIndex().y * World.TERRAIN_FRAGMENT_SIZE)
+						.put(p + 2, fragment.getTextureLayer())
+						.put(p + 3, fragment.getSkirtDepth());
+			}
+			glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+			glBufferData(GL_ARRAY_BUFFER, instances, GL_STREAM_DRAW);
+		}
+		world.getHeightTextures().bind(HEIGHT_TEXTURE_UNIT, NORMAL_TEXTURE_UNIT);
+		var indices = world.getTerrainIndexBuffer();
+		glBindVertexArray(vertexArray);
+		for (int level = 0; level < TerrainMeshBuilder.LOD_COUNT; level++) {
+			int count = levels[level + 1] - levels[level];
+			if (count == 0) continue;
+			// Without a base instance, the instance data is pointed at this level's first fragment.
+			long instanceOffset = (long) levels[level] * FLOATS_PER_INSTANCE * Float.BYTES;
+			glVertexAttribPointer(3, FLOATS_PER_INSTANCE, GL_FLOAT, false, FLOATS_PER_INSTANCE * Float.BYTES, instanceOffset);
+			glDrawElementsInstanced(GL_TRIANGLES, indices.getCount(level), GL_UNSIGNED_SHORT, indices.getOffset(level), count);
+		}
+		glBindVertexArray(0);
+	}
+
+	public void free() {
+		glDeleteVertexArrays(vertexArray);
+		glDeleteBuffers(gridBuffer);
+		glDeleteBuffers(instanceBuffer);
+	}
+}
@@ -0,0 +1,111 @@
+package nl.andrewl.infinirails.model;
+
+import lombok.Getter;
+import nl.andrewl.infinirails.terrain.CompiledTerrainFunction;
+import nl.andrewl.infinirails.terrain.SamplingMode;
+import org.joml.Math;
+import org.joml.Vector2i;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * The heights and surface normals of a single terrain fragment. Generating a
+ * heightmap doesn't touch OpenGL, so it can happen on any thread, and many
+ * heightmaps can be generated in parallel.
+ */
+@Getter
+public class Heightmap {
+	private final Vector2i index;
+	private final SamplingMode samplingMode;
+	private final float[][] heights;
+	/**
+	 * The unit surface normal at each heightmap point, stored as consecutive
+	 * x, y, z components, so that row i holds 3 * (SIZE + 1) floats.
+	 */
+	private final float[][] normals;
+
+	private Heightmap(Vector2i index, SamplingMode samplingMode) {
+		this.index = index;
+		this.samplingMode = samplingMode;
+		this.heights = new float[World.TERRAIN_FRAGMENT_SIZE + 1][World.TERRAIN_FRAGMENT_SIZE + 1];
+		this.normals = new float[World.TERRAIN_FRAGMENT_SIZE + 1][3 * (World.TERRAIN_FRAGMENT_SIZE + 1)];
+	}
+
+	/**
+	 * Generates the heightmap for a fragment on the calling thread.
+	 */
+	public static Heightmap generate(CompiledTerrainFunction terrain, Vector2i index, SamplingMode samplingMode) {
+		return generate(terrain, index, samplingMode, null);
+	}
+
+	/**
+	 * Generates the heightmap for a fragment, splitting the work between the
+	 * threads of the given pool. The result is bit-identical to generating it
+	 * on a single thread.
+	 * @param pool The pool to use, or null to use only the calling thread.
+	 */
+	public static Heightmap generate(CompiledTerrainFunction terrain, Vector2i index, SamplingMode samplingMode, ForkJoinPool pool) {
+		var heightmap = new Heightmap(index, samplingMode);
+		int size = World.TERRAIN_FRAGMENT_SIZE + 1;
+		float originX = index.x * World.TERRAIN_FRAGMENT_SIZE;
+		float originY = index.y * World.TERRAIN_FRAGMENT_SIZE;
+		float[] heights = new float[size * size];
+		float[] dx = new float[size * size];
+		float[] dz = new float[size * size];
+		if (pool == null) {
+			terrain.evalGridWithDerivatives(heights, dx, dz, 0, originX, originY, 1, size, size, samplingMode);
+		} else {
+			terrain.evalGridWithDerivatives(heights, dx, dz, 0, originX, originY, 1, size, size, samplingMode, pool);
+		}
+		fill(heights, dx, dz, heightmap.heights, heightmap.normals);
+		return heightmap;
+	}
+
+	/**
+	 * Generates the heightmaps for many fragments at once in the given pool,
+	 * with each fragment's rows also split between threads.
+	 * @param terrain The terrain function to use.
+	 * @param indices The index of each fragment.
+	 * @param samplingModes The sampling mode for each fragment.
+	 * @param pool The pool to use.
+	 * @return The heightmaps, in the same order as the indices.
+	 */
+	public static List<Heightmap> generateAll(CompiledTerrainFunction terrain, List<Vector2i> indices, List<SamplingMode> samplingModes, ForkJoinPool pool) {
+		List<ForkJoinTask<Heightmap>> tasks = new ArrayList<>(indices.size());
+		for (int i = 0; i < indices.size(); i++) {
+			var index = indices.get(i);
+			var samplingMode = samplingModes.get(i);
+			tasks.add(pool.submit(() -> generate(terrain, index, samplingMode, pool)));
+		}
+		List<Heightmap> heightmaps = new ArrayList<>(tasks.size());
+		for (var task : tasks) {
+			heightmaps.add(task.join());
+		}
+		return heightmaps;
+	}
+
+	/**
+	 * Copies heights into the rows of a heightmap, and computes exact
+	 * normals from the terrain's analytic derivatives, so that they don't
+	 * depend on neighbouring points and match up across fragment edges.
+	 */
+	static void fill(float[] flatHeights, float[] dx, float[] dz, float[][] heights, float[][] normals) {
+		int size = heights.length;
+		for (int i = 0; i < size; i++) {
+			float[] normalRow = normals[i];
+			System.arraycopy(flatHeights, i * size, heights[i], 0, size);
+			for (int j = 0; j < size; j++) {
+				// The normal of the surface y = h(x, z) is (-dh/dx, 1, -dh/dz), normalized.
+				float nx = -dx[i * size + j];
+				float nz = -dz[i * size + j];
+				float invLength = Math.invsqrt(nx * nx + 1 + nz * nz);
+				normalRow[3 * j] = nx * invLength;
+				normalRow[3 * j + 1] = invLength;
+				normalRow[3 * j + 2] = nz * invLength;
+			}
+		}
+	}
+}
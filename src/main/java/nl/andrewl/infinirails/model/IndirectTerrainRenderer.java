@@ -0,0 +1,103 @@
+package nl.andrewl.infinirails.model;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryStack;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Collection;
+
+import static org.lwjgl.opengl.GL43.*;
+
+/**
+ * Draws terrain fragments in {@link TerrainRenderMode#MESH} mode with a
+ * single {@code glMultiDrawElementsIndirect} call, no matter how many there
+ * are. All fragment meshes are in the world's {@link TerrainMeshPool}, so
+ * each fragment is just a draw command with its indices for its level of
+ * detail, and its slot's base vertex. Each command also draws one instance,
+ * with its own base instance, which picks the fragment's origin from an
+ * instanced vertex attribute, instead of setting transform uniforms for each
+ * fragment.
+ * <p>
+ *     Needs OpenGL 4.3; see {@link #isSupported()}. Without it, fragments
+ *     are drawn one by one with {@link TerrainFragment#draw(int)}.
+ * </p>
+ */
+public class IndirectTerrainRenderer {
+	/**
+	 * Per-command data: index count, instance count, first index, base vertex
+	 * and base instance.
+	 */
+	private static final int INTS_PER_COMMAND = 5;
+	/**
+	 * Per-instance data: the x and z of the fragment's origin.
+	 */
+	private static final int FLOATS_PER_INSTANCE = 2;
+	/**
+	 * The vertex attribute location of the instance data, after the mesh
+	 * pool's three vertex attributes. It must match indirect_vertex.glsl.
+	 */
+	static final int ORIGIN_LOCATION = 3;
+
+	private final World world;
+	private final int commandBuffer;
+	private final int instanceBuffer;
+
+	/**
+	 * @return Whether the current OpenGL context supports multi-draw indirect
+	 * with base instances.
+	 */
+	public static boolean isSupported() {
+		return GL.getCapabilities().OpenGL43;
+	}
+
+	public IndirectTerrainRenderer(World world) {
+		this.world = world;
+		commandBuffer = glGenBuffers();
+		instanceBuffer = glGenBuffers();
+		// The instance data is part of the pool's vertex array, which keeps it when the pool grows.
+		glBindVertexArray(world.getMeshPool().getVertexArray());
+		glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+		glEnableVertexAttribArray(ORIGIN_LOCATION);
+		glVertexAttribPointer(ORIGIN_LOCATION, FLOATS_PER_INSTANCE, GL_FLOAT, false, FLOATS_PER_INSTANCE * Float.BYTES, 0);
+		glVertexAttribDivisor(ORIGIN_LOCATION, 1);
+		glBindVertexArray(0);
+	}
+
+	/**
+	 * Draws all the given fragments, each at its level of detail, with a
+	 * single draw call.
+	 */
+	public void draw(Collection<TerrainFragment> fragments) {
+		if (fragments.isEmpty()) return;
+		var pool = world.getMeshPool();
+		try (var stack = MemoryStack.stackPush()) {
+			IntBuffer commands = stack.mallocInt(fragments.size() * INTS_PER_COMMAND);
+			FloatBuffer instances = stack.mallocFloat(fragments.size() * FLOATS_PER_INSTANCE);
+			int i = 0;
+			for (var fragment : fragments) {
+				int level = world.getLodLevel(fragment);
+				commands.put(fragment.getIndexCount(level))
+						.put(1)
+						.put((int) (fragment.getIndexOffset(level) / Short.BYTES))
+						.put(fragment.getMeshSlot().getBaseVertex())
+						.put(i++);
+				instances.put(fragment.getIndex().x * World.TERRAIN_FRAGMENT_SIZE)
+						.put(fragment.getIndex().y * World.TERRAIN_FRAGMENT_SIZE);
+			}
+			glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffer);
+			glBufferData(GL_DRAW_INDIRECT_BUFFER, commands.flip(), GL_STREAM_DRAW);
+			glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+			glBufferData(GL_ARRAY_BUFFER, instances.flip(), GL_STREAM_DRAW);
+		}
+		glBindVertexArray(pool.getVertexArray());
+		glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_SHORT, 0, fragments.size(), 0);
+		glBindVertexArray(0);
+		glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+	}
+
+	public void free() {
+		glDeleteBuffers(commandBuffer);
+		glDeleteBuffers(instanceBuffer);
+	}
+}
@@ -0,0 +1,290 @@
+package nl.andrewl.infinirails.model;
+
+import nl.andrewl.infinirails.terrain.CompiledTerrainFunction;
+import nl.andrewl.infinirails.util.LongHashMap;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static org.lwjgl.opengl.GL40.*;
+
+/**
+ * Draws terrain in {@link TerrainRenderMode#QUADTREE} mode, as the nodes that
+ * a {@link TerrainQuadtree} selects around the camera, instead of as
+ * fixed-size fragments. Every node is an instance of one patch grid of
+ * {@link #PATCH_SIZE} by {@link #PATCH_SIZE} tiles, whatever its size, so the
+ * number of triangles only grows with the number of levels, and not with the
+ * area in view.
+ * <p>
+ *     Each node's heights and normals are generated once, at its own vertex
+ *     spacing, and kept in a layer of a {@link HeightTextureArray} until the
+ *     node hasn't been selected for {@link #EVICT_FRAMES} frames. Nodes are
+ *     generated in the background, without the render thread waiting for
+ *     them, and until a node is ready its nearest ready ancestor is drawn in
+ *     its place. All methods must be called on the thread with the OpenGL
+ *     context.
+ * </p>
+ */
+public class QuadtreeTerrainRenderer {
+	public static final int HEIGHT_TEXTURE_UNIT = 0;
+	public static final int NORMAL_TEXTURE_UNIT = 1;
+
+	/**
+	 * The number of tiles along each side of the patch grid.
+	 */
+	public static final int PATCH_SIZE = 16;
+	/**
+	 * The size of leaf nodes, in meters, which gives them 1 meter between
+	 * vertices, like terrain fragments.
+	 */
+	public static final float LEAF_SIZE = 16;
+	public static final float LEAF_RANGE = 5 * LEAF_SIZE;
+	public static final float VIEW_DISTANCE = 4096;
+	/**
+	 * Nodes that haven't been selected for this many frames have their
+	 * texture layer freed.
+	 */
+	public static final int EVICT_FRAMES = 120;
+
+	/**
+	 * Per-instance data: the x and z of the node's origin, its vertex spacing,
+	 * its layer, and the distances where its morphing starts and ends.
+	 */
+	private static final int FLOATS_PER_INSTANCE = 6;
+
+	/**
+	 * The number of bits for each of a node's x and z indices in its key.
+	 */
+	private static final int KEY_INDEX_BITS = 29;
+	private static final long KEY_INDEX_MASK = (1L << KEY_INDEX_BITS) - 1;
+
+	private static class Node {
+		final long key;
+		/**
+		 * The node's texture layer, or -1 while it's being generated.
+		 */
+		int layer = -1;
+		/**
+		 * The node's heights and normals, while they're being generated.
+		 */
+		ForkJoinTask<float[][][]> generation;
+		long lastSelectedFrame;
+		long lastDrawnFrame;
+
+		Node(long key) {
+			this.key = key;
+		}
+	}
+
+	private final CompiledTerrainFunction terrain;
+	private final ForkJoinPool generationPool;
+	private final TerrainQuadtree quadtree;
+	private final TerrainQuadtree.Selection selection = new TerrainQuadtree.Selection();
+	private final HeightTextureArray heightTextures;
+	private final LongHashMap<Node> nodes = new LongHashMap<>();
+	/**
+	 * Nodes that are still being generated.
+	 */
+	private final List<Node> generating = new ArrayList<>();
+	private final List<Node> evicted = new ArrayList<>();
+	private long frame;
+
+	private final int gridBuffer;
+	private final int indexBuffer;
+	private final int instanceBuffer;
+	private final int vertexArray;
+	private final int indexCount;
+
+	public QuadtreeTerrainRenderer(CompiledTerrainFunction terrain, ForkJoinPool generationPool) {
+		this.terrain = terrain;
+		this.generationPool = generationPool;
+		this.quadtree = new TerrainQuadtree(LEAF_SIZE, LEAF_RANGE, VIEW_DISTANCE);
+		int size = PATCH_SIZE + 1;
+		this.heightTextures = new HeightTextureArray(size);
+
+		ByteBuffer grid = MemoryUtil.memAlloc(size * size * 2 * Short.BYTES);
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				grid.putShort((short) j).putShort((short) i);
+			}
+		}
+		// The same triangles as a fragment's surface, so that a fully morphed patch has the next level's diagonals.
+		indexCount = PATCH_SIZE * PATCH_SIZE * 6;
+		ShortBuffer indices = MemoryUtil.memAllocShort(indexCount);
+		for (int i = 0; i < PATCH_SIZE; i++) {
+			for (int j = 0; j < PATCH_SIZE; j++) {
+				int topLeft = i * size + j;
+				int bottomLeft = topLeft + size;
+				indices.put((short) (topLeft + 1)).put((short) topLeft).put((short) bottomLeft);
+				indices.put((short) bottomLeft).put((short) (bottomLeft + 1)).put((short) (topLeft + 1));
+			}
+		}
+		gridBuffer = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, gridBuffer);
+		glBufferData(GL_ARRAY_BUFFER, grid.flip(), GL_STATIC_DRAW);
+		MemoryUtil.memFree(grid);
+		instanceBuffer = glGenBuffers();
+
+		vertexArray = glGenVertexArrays();
+		glBindVertexArray(vertexArray);
+		indexBuffer = glGenBuffers();
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+		glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices.flip(), GL_STATIC_DRAW);
+		MemoryUtil.memFree(indices);
+		glBindBuffer(GL_ARRAY_BUFFER, gridBuffer);
+		glEnableVertexAttribArray(0);
+		glVertexAttribPointer(0, 2, GL_UNSIGNED_SHORT, false, 2 * Short.BYTES, 0);
+		glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+		int stride = FLOATS_PER_INSTANCE * Float.BYTES;
+		glEnableVertexAttribArray(3);
+		glVertexAttribPointer(3, 4, GL_FLOAT, false, stride, 0);
+		glVertexAttribDivisor(3, 1);
+		glEnableVertexAttribArray(4);
+		glVertexAttribPointer(4, 2, GL_FLOAT, false, stride, 4 * Float.BYTES);
+		glVertexAttribDivisor(4, 1);
+		glBindVertexArray(0);
+	}
+
+	public TerrainQuadtree getQuadtree() {
+		return quadtree;
+	}
+
+	/**
+	 * Packs a node's level and x and z indices into a single key, so that
+	 * looking nodes up doesn't allocate.
+	 */
+	private static long key(int level, int x, int z) {
+		return ((long) level << (2 * KEY_INDEX_BITS)) | ((x & KEY_INDEX_MASK) << KEY_INDEX_BITS) | (z & KEY_INDEX_MASK);
+	}
+
+	/**
+	 * Selects the nodes around the camera, starts generating any that are
+	 * missing, and draws them all with a single instanced draw call. Nodes
+	 * that aren't ready yet are drawn as their nearest ready ancestor.
+	 */
+	public void draw(Camera camera) {
+		frame++;
+		uploadGeneratedNodes();
+		quadtree.select(camera.getPosition().x, camera.getPosition().z, selection);
+		int count = selection.getCount();
+		int topLevel = quadtree.getLevelCount() - 1;
+		int instanceCount = 0;
+		try (var stack = MemoryStack.stackPush()) {
+			FloatBuffer instances = stack.mallocFloat(count * FLOATS_PER_INSTANCE);
+			for (int i = 0; i < count; i++) {
+				int level = selection.getLevel(i), x = selection.getX(i), z = selection.getZ(i);
+				long key = key(level, x, z);
+				var node = nodes.get(key);
+				if (node == null) {
+					node = startGenerating(key, level, x, z);
+				}
+				node.lastSelectedFrame = frame;
+				while (node != null && node.layer < 0) {
+					if (level == topLevel) {
+						node = null;
+					} else {
+						level++;
+						x >>= 1;
+						z >>= 1;
+						node = nodes.get(key(level, x, z));
+					}
+				}
+				// Several nodes may be waiting on the same ancestor, which is only drawn once.
+				if (node == null || node.lastDrawnFrame == frame) continue;
+				node.lastDrawnFrame = frame;
+				node.lastSelectedFrame = frame;
+				float size = quadtree.getNodeSize(level);
+				instances.put(x * size)
+						.put(z * size)
+						.put(size / PATCH_SIZE)
+						.put(node.layer)
+						.put(quadtree.getMorphStart(level))
+						.put(quadtree.getRange(level));
+				instanceCount++;
+			}
+			glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+			glBufferData(GL_ARRAY_BUFFER, instances.flip(), GL_STREAM_DRAW);
+		}
+		evictNodes();
+		if (instanceCount == 0) return;
+		heightTextures.bind(HEIGHT_TEXTURE_UNIT, NORMAL_TEXTURE_UNIT);
+		glBindVertexArray(vertexArray);
+		glDrawElementsInstanced(GL_TRIANGLES, indexCount, GL_UNSIGNED_SHORT, 0, instanceCount);
+		glBindVertexArray(0);
+	}
+
+	private Node startGenerating(long key, int level, int x, int z) {
+		var node = new Node(key);
+		node.generation = generationPool.submit(() -> generateNode(level, x, z));
+		nodes.put(key, node);
+		generating.add(node);
+		return node;
+	}
+
+	/**
+	 * Uploads the heightmaps of all nodes that have finished generating since
+	 * the last frame, without waiting for any others.
+	 */
+	private void uploadGeneratedNodes() {
+		for (int i = generating.size() - 1; i >= 0; i--) {
+			var node = generating.get(i);
+			if (!node.generation.isDone()) continue;
+			float[][][] heightmap = node.generation.join();
+			node.generation = null;
+			node.layer = heightTextures.allocate(heightmap[0], heightmap[1]);
+			int last = generating.size() - 1;
+			generating.set(i, generating.get(last));
+			generating.remove(last);
+		}
+	}
+
+	/**
+	 * @return The node's heights and normals, in the same layout as a
+	 * {@link Heightmap}.
+	 */
+	private float[][][] generateNode(int level, int x, int z) {
+		int size = PATCH_SIZE + 1;
+		float nodeSize = quadtree.getNodeSize(level);
+		float[] heights = new float[size * size];
+		float[] dx = new float[size * size];
+		float[] dz = new float[size * size];
+		// Every level uses the leaves' octaves, so that a node's heights match the next level's where their vertices meet.
+		float leafStep = LEAF_SIZE / PATCH_SIZE;
+		terrain.evalGridWithDerivatives(heights, dx, dz, 0, x * nodeSize, z * nodeSize, nodeSize / PATCH_SIZE, leafStep, size, size);
+		float[][] heightRows = new float[size][size];
+		float[][] normalRows = new float[size][3 * size];
+		Heightmap.fill(heights, dx, dz, heightRows, normalRows);
+		return new float[][][]{heightRows, normalRows};
+	}
+
+	private void evictNodes() {
+		for (var node : nodes.values()) {
+			if (frame - node.lastSelectedFrame > EVICT_FRAMES) evicted.add(node);
+		}
+		for (var node : evicted) {
+			nodes.remove(node.key);
+			if (node.generation != null) {
+				node.generation.cancel(false);
+				generating.remove(node);
+			} else {
+				heightTextures.release(node.layer);
+			}
+		}
+		evicted.clear();
+	}
+
+	public void free() {
+		glDeleteVertexArrays(vertexArray);
+		glDeleteBuffers(gridBuffer);
+		glDeleteBuffers(indexBuffer);
+		glDeleteBuffers(instanceBuffer);
+		heightTextures.free();
+	}
+}
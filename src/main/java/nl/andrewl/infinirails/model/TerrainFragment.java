@@ -1,13 +1,13 @@
 package nl.andrewl.infinirails.model;
 
 import lombok.Getter;
-import nl.andrewl.infinirails.OpenSimplexNoise;
-import nl.andrewl.infinirails.Vertex;
-import nl.andrewl.infinirails.util.MathUtils;
+import nl.andrewl.infinirails.terrain.CompiledTerrainFunction;
+import nl.andrewl.infinirails.terrain.SamplingMode;
 import org.joml.*;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 import static org.lwjgl.opengl.GL40.*;
 
@@ -15,142 +15,304 @@ import static org.lwjgl.opengl.GL40.*;
  * A square section of a terrain heightmap.
  */
 @Getter
-public class TerrainFragment {
+public class TerrainFragment implements TerrainResidency.Resident {
 	private final World world;
 	private final Vector2i index;
 	private final Vector2f center;
 	private final float[][] heightmap;
+	/**
+	 * The unit surface normal at each heightmap point, stored as consecutive
+	 * x, y, z components, so that row i holds 3 * (SIZE + 1) floats.
+	 * @see Heightmap#getNormals()
+	 */
+	private final float[][] normalmap;
+	private final SamplingMode samplingMode;
+	/**
+	 * How far this fragment's skirts hang below its edges.
+	 * @see TerrainMeshBuilder#skirtDepth(float[][])
+	 * @see TerrainMeshDecimator#skirtDepth(float[][])
+	 */
+	private final float skirtDepth;
 
-	private final int meshBuffer;
-	private final int meshArray;
+	/**
+	 * The world's mesh pool slot that holds this fragment's mesh and its own
+	 * decimated triangle indices, which it draws instead of the shared ones
+	 * at any level of detail that has more triangles. It only exists when the
+	 * world uses {@link TerrainRenderMode#MESH} rendering, and is null
+	 * otherwise.
+	 */
+	private final TerrainMeshPool.Slot meshSlot;
 	private final int vertexCount;
+	private int decimatedIndexCount;
+	/**
+	 * The fragment's layer in the world's height textures, which is used in
+	 * every render mode except {@link TerrainRenderMode#MESH}, where it's -1.
+	 */
+	private final int textureLayer;
+	/**
+	 * The last frame that this fragment was in view in, for evicting the
+	 * fragments that have been out of view the longest.
+	 * @see TerrainResidency
+	 */
+	private long lastUsedFrame;
 	@Getter
 	private final Matrix4f worldTransform;
 	@Getter
 	private final Matrix3f normalTransform;
 
-	public TerrainFragment(World world, Vector2i index, OpenSimplexNoise noise) {
+	public TerrainFragment(World world, Vector2i index, CompiledTerrainFunction terrain, SamplingMode samplingMode) {
+		this(world, Heightmap.generate(terrain, index, samplingMode));
+	}
+
+	/**
+	 * Creates a fragment from an already generated heightmap. This must be
+	 * called on the thread with the OpenGL context.
+	 */
+	public TerrainFragment(World world, Heightmap heightmap) {
+		this(world, new Data(heightmap, world.getRenderMode(), world.getMeshBuilder(), world.getMeshDecimator()));
+	}
+
+	/**
+	 * Creates a fragment from data that was already prepared, possibly on
+	 * another thread, and uploads it. This must be called on the thread with
+	 * the OpenGL context.
+	 */
+	TerrainFragment(World world, Data data) {
 		this.world = world;
-		this.index = index;
+		this.index = data.heightmap.getIndex();
+		this.samplingMode = data.heightmap.getSamplingMode();
 		float originX = (index.x) * (World.TERRAIN_FRAGMENT_SIZE);
 		float originY = (index.y) * (World.TERRAIN_FRAGMENT_SIZE);
-		this.heightmap = new float[World.TERRAIN_FRAGMENT_SIZE + 1][World.TERRAIN_FRAGMENT_SIZE + 1];
+		this.heightmap = data.heightmap.getHeights();
+		this.normalmap = data.heightmap.getNormals();
 		this.center = new Vector2f(originX + World.TERRAIN_FRAGMENT_SIZE / 2.0f, originY + World.TERRAIN_FRAGMENT_SIZE / 2.0f);
-		buildHeightmap(noise, originX, originY);
-		meshBuffer = glGenBuffers();
-		meshArray = glGenVertexArrays();
-		vertexCount = buildMesh();
+		this.skirtDepth = data.skirtDepth;
+		if (world.getRenderMode() == TerrainRenderMode.MESH) {
+			meshSlot = world.getMeshPool().acquire();
+			if (data.stagingRegion != null) {
+				vertexCount = copyStagedMesh(data);
+			} else {
+				vertexCount = uploadMesh(data.vertexData);
+				uploadDecimatedIndices(data.decimatedIndices);
+			}
+			// Only counted here, once per fragment, and not when an edited mesh is uploaded again.
+			world.recordDecimation(data.decimatedTriangles, data.fullTriangles);
+			textureLayer = -1;
+		} else {
+			meshSlot = null;
+			vertexCount = 0;
+			textureLayer = world.getHeightTextures().allocate(this.heightmap, this.normalmap);
+		}
 		this.worldTransform = new Matrix4f().translate(originX, 0, originY);
 		this.normalTransform = new Matrix3f();
 		worldTransform.normal(normalTransform);
 		System.out.printf("Generated terrain fragment [%d, %d] with %d vertices and origin [%.2f, %.2f].\n", index.x, index.y, vertexCount, originX, originY);
 	}
 
-	private Vector3f getHeightmapPointAsVector(int i, int j) {
-		return new Vector3f(j, heightmap[i][j], i);
+	/**
+	 * @return This fragment's key in the world's fragment map.
+	 * @see World#getFragmentKey(int, int)
+	 */
+	public long getKey() {
+		return World.getFragmentKey(index.x, index.y);
 	}
 
-	public void draw() {
-		glBindBuffer(GL_ARRAY_BUFFER, meshBuffer);
-		glBindVertexArray(meshArray);
-		glDrawArrays(GL_TRIANGLES, 0, vertexCount);
+	void markUsed(long frame) {
+		lastUsedFrame = frame;
 	}
 
-	private void buildHeightmap(OpenSimplexNoise noise, float originX, float originY) {
-		float noiseStretch = 40;
-		float noiseScale = 10;
-		for (int i = 0; i < heightmap.length; i++) {
-			for (int j = 0; j < heightmap.length; j++) {
-				heightmap[i][j] = (float) noise.eval((originX + j) / noiseStretch, (originY + i) / noiseStretch) * noiseScale;
-			}
-		}
+	/**
+	 * @return Roughly how many bytes of heap this fragment's heightmap and
+	 * normals use.
+	 */
+	public long getHeapByteCount() {
+		int size = heightmap.length;
+		return (long) size * size * 4 * Float.BYTES;
 	}
 
-	private int buildMesh() {
-		float[] vertexData = heightMapToVertexData(heightmap);
-		glBindBuffer(GL_ARRAY_BUFFER, meshBuffer);
-		glBufferData(GL_ARRAY_BUFFER, vertexData, GL_STATIC_DRAW);
-
-		glBindVertexArray(meshArray);
-		glEnableVertexAttribArray(0);
-		glVertexAttribPointer(0, 3, GL_FLOAT, false, 9 * Float.BYTES, 0);
-		glEnableVertexAttribArray(1);
-		glVertexAttribPointer(1, 3, GL_FLOAT, false, 9 * Float.BYTES, 3 * Float.BYTES);
-		glEnableVertexAttribArray(2);
-		glVertexAttribPointer(2, 3, GL_FLOAT, false, 9 * Float.BYTES, 6 * Float.BYTES);
-		return vertexData.length / 9;
-	}
-
-	private float[] heightMapToVertexData(float[][] heightmap) {
-		List<Float> data = new ArrayList<>();
-		for (int i = 0; i < heightmap.length - 1; i++) {
-			for (int j = 0; j < heightmap.length - 1; j++) {
-				var topLeft = getHeightmapPointAsVector(i, j);
-				var topRight = getHeightmapPointAsVector(i, j + 1);
-				var bottomLeft = getHeightmapPointAsVector(i + 1, j);
-				var bottomRight = getHeightmapPointAsVector(i + 1, j + 1);
-				Vector3f color = new Vector3f(0.1f, 0.8f, 0.2f);
-				var v1 = new Vertex(topRight, color, computeHeightMapNormal(heightmap, i, j + 1));
-				var v2 = new Vertex(topLeft, color, computeHeightMapNormal(heightmap, i, j));
-				var v3 = new Vertex(bottomLeft, color, computeHeightMapNormal(heightmap, i + 1, j));
-				var v4 = new Vertex(bottomLeft, color, computeHeightMapNormal(heightmap, i + 1, j));
-				var v5 = new Vertex(bottomRight, color, computeHeightMapNormal(heightmap, i + 1, j + 1));
-				var v6 = new Vertex(topRight, color, computeHeightMapNormal(heightmap, i, j + 1));
-				data.addAll(v1.getFloats());
-				data.addAll(v2.getFloats());
-				data.addAll(v3.getFloats());
-				data.addAll(v4.getFloats());
-				data.addAll(v5.getFloats());
-				data.addAll(v6.getFloats());
-			}
+	/**
+	 * @return How many bytes of GPU memory this fragment's mesh pool slot, or
+	 * its texture layer, uses. The shared index buffer isn't included.
+	 */
+	public long getGpuByteCount() {
+		if (textureLayer >= 0) {
+			int size = heightmap.length;
+			// An R32F height and an RG16_SNORM normal per point.
+			return (long) size * size * (Float.BYTES + 2 * Short.BYTES);
 		}
-		var f = new float[data.size()];
-		for (int i = 0; i < data.size(); i++) {
-			f[i] = data.get(i);
+		return world.getMeshPool().getSlotBytes();
+	}
+
+	/**
+	 * Gives this fragment's mesh pool slot or height texture layer back to
+	 * the world, for another fragment to use. The fragment can't be drawn
+	 * afterwards.
+	 */
+	public void delete() {
+		if (meshSlot != null) {
+			world.getMeshPool().release(meshSlot);
 		}
-		return f;
-	}
-
-	private Vector3f computeHeightMapNormal(float[][] heightmap, int i, int j) {
-		var p = getHeightmapPointAsVector(i, j);
-		List<Vector3f> faceNormals = new ArrayList<>(4);
-		if (i > 0 && j > 0) {// Top left
-			faceNormals.add(MathUtils.computeFaceNormal(
-					getHeightmapPointAsVector(i - 1, j - 1),
-					getHeightmapPointAsVector(i - 1, j),
-					getHeightmapPointAsVector(i, j - 1),
-					p
-			));
+		if (textureLayer >= 0) {
+			world.getHeightTextures().release(textureLayer);
 		}
-		if (i > 0 && j < heightmap[0].length - 1) {// Top right
-			faceNormals.add(MathUtils.computeFaceNormal(
-					getHeightmapPointAsVector(i - 1, j),
-					getHeightmapPointAsVector(i - 1, j + 1),
-					p,
-					getHeightmapPointAsVector(i, j + 1)
-			));
+	}
+
+	/**
+	 * Uploads this fragment's heightmap and normals to the GPU again, after
+	 * they've been edited. In height texture mode, this only updates the
+	 * fragment's texture layer.
+	 */
+	public void updateGpuData() {
+		if (textureLayer >= 0) {
+			world.getHeightTextures().update(textureLayer);
+		} else {
+			uploadMesh(world.getMeshBuilder().build(heightmap, normalmap, skirtDepth));
+			uploadDecimatedIndices(world.getMeshDecimator().decimate(heightmap));
 		}
-		if (i < heightmap.length - 1 && j > 0) {// Bottom left
-			faceNormals.add(MathUtils.computeFaceNormal(
-					getHeightmapPointAsVector(i, j - 1),
-					p,
-					getHeightmapPointAsVector(i + 1, j - 1),
-					getHeightmapPointAsVector(i + 1, j)
-			));
+	}
+
+	/**
+	 * Draws this fragment's mesh at a level of detail, on its own. Only for
+	 * {@link TerrainRenderMode#MESH} rendering when multi-draw isn't
+	 * supported; see {@link IndirectTerrainRenderer} for drawing all
+	 * fragments at once, and {@link HeightTextureTerrainRenderer} for the
+	 * other mode.
+	 * @see World#getLodLevel(TerrainFragment)
+	 */
+	public void draw(int level) {
+		glBindVertexArray(world.getMeshPool().getVertexArray());
+		glDrawElementsBaseVertex(GL_TRIANGLES, getIndexCount(level), GL_UNSIGNED_SHORT, getIndexOffset(level), meshSlot.getBaseVertex());
+		glBindVertexArray(0);
+	}
+
+	/**
+	 * @return The number of indices to draw this fragment's mesh with at a
+	 * level of detail: its own decimated ones, unless the level's shared ones
+	 * are fewer.
+	 */
+	public int getIndexCount(int level) {
+		return java.lang.Math.min(decimatedIndexCount, world.getTerrainIndexBuffer().getCount(level));
+	}
+
+	/**
+	 * @return The byte offset in the mesh pool's index buffer of the indices
+	 * to draw this fragment's mesh with at a level of detail.
+	 * @see #getIndexCount(int)
+	 */
+	public long getIndexOffset(int level) {
+		var indices = world.getTerrainIndexBuffer();
+		return decimatedIndexCount <= indices.getCount(level) ? meshSlot.getIndexOffset() : indices.getOffset(level);
+	}
+
+	/**
+	 * Uploads this fragment's decimated indices.
+	 */
+	private void uploadDecimatedIndices(ShortBuffer indices) {
+		decimatedIndexCount = indices.remaining();
+		// Upload through a target that isn't part of any vertex array's state.
+		glBindBuffer(GL_COPY_WRITE_BUFFER, world.getMeshPool().getIndexBuffer());
+		glBufferSubData(GL_COPY_WRITE_BUFFER, meshSlot.getIndexOffset(), indices);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+	}
+
+	/**
+	 * Copies this fragment's vertex data and decimated indices into its slot
+	 * from the staging ring, where a worker already wrote them.
+	 * @return The number of vertices.
+	 */
+	private int copyStagedMesh(Data data) {
+		var region = data.stagingRegion;
+		var ring = region.getRing();
+		int vertexBytes = data.vertexData.remaining();
+		var pool = world.getMeshPool();
+		ring.copy(region, 0, pool.getVertexBuffer(), meshSlot.getVertexOffset(), vertexBytes);
+		decimatedIndexCount = data.decimatedIndices.remaining();
+		ring.copy(region, vertexBytes, pool.getIndexBuffer(), meshSlot.getIndexOffset(), (long) decimatedIndexCount * Short.BYTES);
+		ring.release(region);
+		return vertexBytes / TerrainMeshBuilder.BYTES_PER_VERTEX;
+	}
+
+	/**
+	 * Uploads this fragment's vertex data into its slot.
+	 * @return The number of vertices.
+	 */
+	private int uploadMesh(ByteBuffer vertexData) {
+		glBindBuffer(GL_COPY_WRITE_BUFFER, world.getMeshPool().getVertexBuffer());
+		glBufferSubData(GL_COPY_WRITE_BUFFER, meshSlot.getVertexOffset(), vertexData);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		return vertexData.remaining() / TerrainMeshBuilder.BYTES_PER_VERTEX;
+	}
+
+	/**
+	 * The parts of a fragment that don't need OpenGL, so that they can be
+	 * prepared on any thread: its heightmap and skirt depth, and in
+	 * {@link TerrainRenderMode#MESH} mode, its vertex data and decimated
+	 * indices. Those buffers belong to the mesh builder and decimator that
+	 * made them, and are only valid until they're used again, except that
+	 * with a staging ring, the vertex data and a copy of the indices are in a
+	 * region of the ring instead, if it had room.
+	 */
+	static class Data {
+		final Heightmap heightmap;
+		final float skirtDepth;
+		final ByteBuffer vertexData;
+		final ShortBuffer decimatedIndices;
+		final int decimatedTriangles;
+		final int fullTriangles;
+		final TerrainStagingRing.Region stagingRegion;
+
+		Data(Heightmap heightmap, TerrainRenderMode renderMode, TerrainMeshBuilder meshBuilder, TerrainMeshDecimator meshDecimator) {
+			this(heightmap, renderMode, meshBuilder, meshDecimator, null);
 		}
-		if (i < heightmap.length - 1 && j < heightmap[0].length - 1) {// Bottom right
-			faceNormals.add(MathUtils.computeFaceNormal(
-					p,
-					getHeightmapPointAsVector(i, j + 1),
-					getHeightmapPointAsVector(i + 1, j),
-					getHeightmapPointAsVector(i + 1, j + 1)
-			));
+
+		/**
+		 * Prepares a fragment's data. The mesh builder, decimator and staging
+		 * ring are only used in mesh mode, and may be null otherwise. The
+		 * staging ring may also be null in mesh mode, to not use one.
+		 */
+		Data(Heightmap heightmap, TerrainRenderMode renderMode, TerrainMeshBuilder meshBuilder, TerrainMeshDecimator meshDecimator, TerrainStagingRing stagingRing) {
+			this.heightmap = heightmap;
+			float[][] heights = heightmap.getHeights();
+			if (renderMode == TerrainRenderMode.MESH) {
+				skirtDepth = TerrainMeshDecimator.skirtDepth(heights);
+				decimatedIndices = meshDecimator.decimate(heights);
+				int vertexBytes = TerrainMeshBuilder.vertexCount(heights.length) * TerrainMeshBuilder.BYTES_PER_VERTEX;
+				stagingRegion = stagingRing == null ? null : stagingRing.reserve(vertexBytes + decimatedIndices.remaining() * Short.BYTES);
+				if (stagingRegion == null) {
+					vertexData = meshBuilder.build(heights, heightmap.getNormals(), skirtDepth);
+				} else {
+					var memory = stagingRegion.getMemory();
+					try {
+						vertexData = TerrainMeshBuilder.build(heights, heightmap.getNormals(), skirtDepth, memory.slice(0, vertexBytes).order(ByteOrder.nativeOrder()));
+						memory.slice(vertexBytes, memory.capacity() - vertexBytes).order(ByteOrder.nativeOrder()).asShortBuffer().put(decimatedIndices.duplicate());
+					} catch (RuntimeException e) {
+						stagingRing.discard(stagingRegion);
+						throw e;
+					}
+				}
+				decimatedTriangles = meshDecimator.getTriangleCount();
+				fullTriangles = meshDecimator.getFullTriangleCount();
+			} else {
+				skirtDepth = TerrainMeshBuilder.skirtDepth(heights);
+				vertexData = null;
+				decimatedIndices = null;
+				decimatedTriangles = 0;
+				fullTriangles = 0;
+				stagingRegion = null;
+			}
 		}
-		Vector3f n = new Vector3f(0, 1, 0);
-		for (var faceNormal : faceNormals) {
-			n.add(faceNormal);
+
+		/**
+		 * @return The number of bytes that uploading this data sends to the
+		 * GPU.
+		 */
+		int getByteCount() {
+			if (vertexData == null) {
+				int size = heightmap.getHeights().length;
+				// One float of height and two of normal per point; see HeightTextureArray.
+				return size * size * 3 * Float.BYTES;
+			}
+			return vertexData.remaining() + decimatedIndices.remaining() * Short.BYTES;
 		}
-		n.normalize();
-		return n;
 	}
 }
@@ -0,0 +1,450 @@
+package nl.andrewl.infinirails.model;
+
+import lombok.Getter;
+import nl.andrewl.infinirails.terrain.SamplingMode;
+import nl.andrewl.infinirails.util.LongHashMap;
+import org.joml.Vector2f;
+import org.joml.Vector2i;
+import org.joml.Vector2ic;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads terrain fragments without stalling the render loop. Everything that
+ * doesn't need OpenGL, which is the heightmap, normals, vertex data and
+ * decimated indices, is prepared in the world's generation pool, and the
+ * finished data waits in a queue until the thread with the OpenGL context
+ * {@link #upload(long) uploads} it, a few fragments per frame. A fragment is
+ * only added to the world once its upload is done, so it's never drawn
+ * half-made.
+ * <p>
+ *     Requested fragments are jobs in a priority queue, and whenever a worker
+ *     is free, it takes the job with the best priority at that moment, rather
+ *     than the oldest one. Priorities come from each fragment's distance to
+ *     the camera, scaled up for fragments that are off to the side or behind
+ *     it, and are {@link #prioritize(Camera) recomputed} as the camera moves.
+ *     Finished fragments are uploaded in the same order, so the fragment
+ *     straight ahead of the camera is the first to appear. Jobs for fragments
+ *     that the camera has left behind are {@link #cancelOutside(int, int, int)
+ *     cancelled}: they're taken out of the queue if they haven't started,
+ *     stop after their heightmap if they're running, and are dropped instead
+ *     of uploaded if they're done.
+ * </p>
+ * <p>
+ *     In mesh mode, when persistent mapping is supported, workers write each
+ *     fragment's mesh straight into a {@link TerrainStagingRing}, and
+ *     uploading it is just a GPU-side copy into its mesh pool slot. When the
+ *     ring is full, or mapping isn't supported, meshes are uploaded from the
+ *     workers' own buffers instead.
+ * </p>
+ * <p>
+ *     Each fragment that's being prepared in mesh mode needs its own mesh
+ *     builder and decimator, so those are pooled, and given back once the
+ *     fragment's data is uploaded. Except where noted, methods must be called
+ *     on the thread with the OpenGL context.
+ * </p>
+ */
+public class TerrainFragmentLoader {
+	/**
+	 * The most time, in nanoseconds, that uploading fragments may take each
+	 * frame. At least one fragment is uploaded per frame if any are ready, so
+	 * that loading always makes progress.
+	 */
+	public static final long UPLOAD_BUDGET_NANOS = 2_000_000;
+	/**
+	 * How much a fragment's distance is scaled up when it's directly behind
+	 * the camera, compared to directly ahead. Fragments in between are scaled
+	 * linearly with the cosine of their angle.
+	 */
+	public static final float BEHIND_DISTANCE_FACTOR = 2;
+
+	private static class Workspace {
+		final TerrainMeshBuilder meshBuilder = new TerrainMeshBuilder();
+		final TerrainMeshDecimator meshDecimator = new TerrainMeshDecimator();
+
+		void free() {
+			meshBuilder.free();
+			meshDecimator.free();
+		}
+	}
+
+	/**
+	 * A request for a fragment. Its priority is only changed while holding the
+	 * queue's lock.
+	 */
+	private static class Job {
+		final Vector2i index;
+		final SamplingMode sampling;
+		final long requestTime;
+		/**
+		 * The job's weighted distance to the camera. Lower is sooner.
+		 */
+		float priority;
+		volatile boolean cancelled;
+
+		Job(Vector2i index, SamplingMode sampling) {
+			this.index = index;
+			this.sampling = sampling;
+			this.requestTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * A job's prepared data, and the workspace that holds its buffers, if it
+	 * needed one.
+	 */
+	private record Prepared(Job job, TerrainFragment.Data data, Workspace workspace) {}
+
+	private final World world;
+	private final ForkJoinPool pool;
+	private final Queue<Workspace> workspaces = new ConcurrentLinkedQueue<>();
+	/**
+	 * Jobs that no worker has taken yet. This is also the lock for job
+	 * priorities and wait times. There are never more than a few dozen jobs,
+	 * so workers just search it for the best one.
+	 */
+	private final List<Job> queue = new ArrayList<>();
+	/**
+	 * Tasks that haven't finished yet.
+	 */
+	private final Set<CompletableFuture<Prepared>> running = ConcurrentHashMap.newKeySet();
+	/**
+	 * Tasks that are done, in the order that they finished, which may have
+	 * failed.
+	 */
+	private final Queue<CompletableFuture<Prepared>> finished = new ConcurrentLinkedQueue<>();
+	/**
+	 * Finished jobs that are waiting to be uploaded.
+	 */
+	private final List<Prepared> ready = new ArrayList<>();
+	/**
+	 * The job for each fragment that was requested, but hasn't been uploaded
+	 * or cancelled yet.
+	 */
+	private final LongHashMap<Job> pending = new LongHashMap<>();
+	/**
+	 * Jobs that {@link #cancelOutside(int, int, int)} takes out of the
+	 * pending map, which can't be changed while iterating over it.
+	 */
+	private final List<Job> outside = new ArrayList<>();
+
+	/**
+	 * The ring that workers write meshes into, which is created on the first
+	 * upload, since that's on the thread with the OpenGL context. It's null
+	 * until then, and if it isn't supported.
+	 */
+	@Getter
+	private volatile TerrainStagingRing stagingRing;
+	private boolean stagingRingCreated;
+
+	private final Vector2f cameraPosition = new Vector2f();
+	private final Vector2f cameraDirection = new Vector2f(0, -1);
+
+	/**
+	 * The number of fragments and bytes uploaded in the last call to
+	 * {@link #upload(long)}.
+	 */
+	@Getter
+	private int uploadedCount;
+	@Getter
+	private long uploadedBytes;
+	/**
+	 * The total time, in nanoseconds, that the render thread has spent
+	 * uploading, over all frames where it uploaded anything, and the longest
+	 * time in any one frame.
+	 */
+	@Getter
+	private long totalUploadNanos;
+	@Getter
+	private long maxUploadNanos;
+	@Getter
+	private long totalUploadedBytes;
+	/**
+	 * The number of jobs that have been cancelled so far.
+	 */
+	@Getter
+	private long cancelledCount;
+	private long startedCount;
+	private long totalWaitNanos;
+	private long maxWaitNanos;
+
+	public TerrainFragmentLoader(World world, ForkJoinPool pool) {
+		this.world = world;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return True if the fragment at the given index is already being
+	 * prepared with the given sampling mode, or a finer one.
+	 */
+	public boolean isPending(int x, int y, SamplingMode sampling) {
+		var job = pending.get(World.getFragmentKey(x, y));
+		return job != null && job.sampling.getStride() <= sampling.getStride();
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return The number of jobs that are waiting for a worker.
+	 */
+	public int getQueueDepth() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * @return The average time, in nanoseconds, between a job being requested
+	 * and a worker starting it, over all jobs so far.
+	 */
+	public long getAverageWaitNanos() {
+		synchronized (queue) {
+			return startedCount == 0 ? 0 : totalWaitNanos / startedCount;
+		}
+	}
+
+	/**
+	 * @return The longest time, in nanoseconds, that any job has waited for a
+	 * worker so far.
+	 */
+	public long getMaxWaitNanos() {
+		synchronized (queue) {
+			return maxWaitNanos;
+		}
+	}
+
+	/**
+	 * @return The average upload throughput so far, in bytes per second of
+	 * render thread time.
+	 */
+	public double getUploadThroughput() {
+		return totalUploadNanos == 0 ? 0 : totalUploadedBytes * 1e9 / totalUploadNanos;
+	}
+
+	/**
+	 * Starts preparing a fragment in the background, replacing any job for a
+	 * coarser version of it. The fragment replaces any existing one at the
+	 * same index once it's uploaded, unless that one has finer sampling by
+	 * then.
+	 */
+	public void request(Vector2i index, SamplingMode sampling) {
+		var job = new Job(index, sampling);
+		var replaced = pending.put(World.getFragmentKey(index.x, index.y), job);
+		synchronized (queue) {
+			if (replaced != null) cancel(replaced);
+			job.priority = priority(index);
+			queue.add(job);
+		}
+		var task = CompletableFuture.supplyAsync(this::runNextJob, pool);
+		running.add(task);
+		task.whenComplete((prepared, e) -> {
+			if (prepared != null || e != null) finished.add(task);
+			running.remove(task);
+		});
+	}
+
+	/**
+	 * Updates the priorities of all pending jobs for the camera's current
+	 * position and direction.
+	 */
+	public void prioritize(Camera camera) {
+		cameraPosition.set(camera.getPosition().x, camera.getPosition().z);
+		camera.getHorizontalDirection(cameraDirection);
+		synchronized (queue) {
+			for (var job : pending.values()) {
+				job.priority = priority(job.index);
+			}
+		}
+	}
+
+	/**
+	 * Cancels the jobs for all fragments more than the given number of rings
+	 * away from the given fragment.
+	 */
+	public void cancelOutside(int centerX, int centerY, int rings) {
+		synchronized (queue) {
+			for (var job : pending.values()) {
+				if (Math.max(Math.abs(job.index.x - centerX), Math.abs(job.index.y - centerY)) > rings) {
+					outside.add(job);
+				}
+			}
+			for (var job : outside) {
+				cancel(job);
+				pending.remove(World.getFragmentKey(job.index.x, job.index.y));
+			}
+			outside.clear();
+		}
+	}
+
+	/**
+	 * Cancels a job. The queue's lock must be held.
+	 */
+	private void cancel(Job job) {
+		job.cancelled = true;
+		queue.remove(job);
+		cancelledCount++;
+	}
+
+	/**
+	 * @return The camera's distance to the center of a fragment, scaled by
+	 * how far the fragment is from straight ahead.
+	 */
+	private float priority(Vector2ic index) {
+		float dx = (index.x() + 0.5f) * World.TERRAIN_FRAGMENT_SIZE - cameraPosition.x;
+		float dz = (index.y() + 0.5f) * World.TERRAIN_FRAGMENT_SIZE - cameraPosition.y;
+		float distance = (float) Math.sqrt(dx * dx + dz * dz);
+		if (distance == 0) return 0;
+		float cos = (dx * cameraDirection.x + dz * cameraDirection.y) / distance;
+		return distance * (1 + (BEHIND_DISTANCE_FACTOR - 1) * (1 - cos) / 2);
+	}
+
+	/**
+	 * Takes the job with the best priority off the queue, and prepares it.
+	 * This is called in the generation pool, once for every request, though
+	 * not necessarily for that request's job.
+	 * @return The prepared job, or null if there was nothing to do, or the job
+	 * was cancelled while it ran.
+	 */
+	private Prepared runNextJob() {
+		Job job = null;
+		synchronized (queue) {
+			for (var queued : queue) {
+				if (job == null || queued.priority < job.priority) job = queued;
+			}
+			if (job == null) return null;
+			queue.remove(job);
+			long wait = System.nanoTime() - job.requestTime;
+			startedCount++;
+			totalWaitNanos += wait;
+			maxWaitNanos = Math.max(maxWaitNanos, wait);
+		}
+		// Each job stays on one thread, since a worker that forked rows would help with other jobs while joining them, whatever their priority.
+		var heightmap = generateHeightmap(job.index, job.sampling);
+		if (job.cancelled) return null;
+		if (world.getRenderMode() != TerrainRenderMode.MESH) {
+			return new Prepared(job, new TerrainFragment.Data(heightmap, world.getRenderMode(), null, null), null);
+		}
+		var workspace = workspaces.poll();
+		if (workspace == null) workspace = new Workspace();
+		try {
+			var data = new TerrainFragment.Data(heightmap, world.getRenderMode(), workspace.meshBuilder, workspace.meshDecimator, stagingRing);
+			return new Prepared(job, data, workspace);
+		} catch (RuntimeException e) {
+			workspaces.add(workspace);
+			throw e;
+		}
+	}
+
+	/**
+	 * Generates a job's heightmap, in the generation pool. Tests override this
+	 * to control when jobs finish.
+	 */
+	Heightmap generateHeightmap(Vector2i index, SamplingMode sampling) {
+		return Heightmap.generate(world.getTerrain(), index, sampling);
+	}
+
+	/**
+	 * Uploads a prepared fragment and adds it to the world. Tests override
+	 * this, since creating a fragment needs OpenGL.
+	 */
+	void addFragment(TerrainFragment.Data data) {
+		world.putFragment(new TerrainFragment(world, data));
+	}
+
+	/**
+	 * Uploads prepared fragments in order of priority and adds them to the
+	 * world, until there are none left or the time budget is used up.
+	 * @param budgetNanos The time budget, in nanoseconds.
+	 * @return The number of fragments that were uploaded.
+	 */
+	public int upload(long budgetNanos) {
+		long start = System.nanoTime();
+		uploadedCount = 0;
+		uploadedBytes = 0;
+		if (!stagingRingCreated) {
+			stagingRingCreated = true;
+			if (world.getRenderMode() == TerrainRenderMode.MESH && TerrainStagingRing.isSupported()) {
+				stagingRing = new TerrainStagingRing(TerrainStagingRing.DEFAULT_CAPACITY);
+			}
+		}
+		if (stagingRing != null) stagingRing.reclaim();
+		CompletableFuture<Prepared> task;
+		while ((task = finished.poll()) != null) {
+			try {
+				ready.add(task.join());
+			} catch (CompletionException e) {
+				throw new IllegalStateException("Could not prepare a terrain fragment.", e.getCause());
+			}
+		}
+		int processed = 0;
+		while (!ready.isEmpty() && (processed == 0 || System.nanoTime() - start < budgetNanos)) {
+			int best = 0;
+			for (int i = 1; i < ready.size(); i++) {
+				if (ready.get(i).job().priority < ready.get(best).job().priority) best = i;
+			}
+			var prepared = ready.remove(best);
+			var job = prepared.job();
+			if (!job.cancelled) {
+				pending.remove(World.getFragmentKey(job.index.x, job.index.y));
+				var existing = world.getFragment(job.index.x, job.index.y);
+				// A finer fragment may have been uploaded while this one was being prepared.
+				if (existing == null || existing.getSamplingMode().getStride() > job.sampling.getStride()) {
+					addFragment(prepared.data());
+					uploadedCount++;
+					uploadedBytes += prepared.data().getByteCount();
+				}
+				processed++;
+			}
+			discardStagingRegion(prepared);
+			if (prepared.workspace() != null) workspaces.add(prepared.workspace());
+		}
+		if (processed > 0) {
+			long time = System.nanoTime() - start;
+			totalUploadNanos += time;
+			maxUploadNanos = Math.max(maxUploadNanos, time);
+			totalUploadedBytes += uploadedBytes;
+		}
+		return uploadedCount;
+	}
+
+	/**
+	 * Gives back a prepared fragment's staging ring region, if it has one
+	 * that it didn't copy from because it wasn't uploaded.
+	 */
+	private void discardStagingRegion(Prepared prepared) {
+		var region = prepared.data().stagingRegion;
+		if (region != null && !region.isReleased()) region.getRing().discard(region);
+	}
+
+	/**
+	 * Cancels all jobs, waits for any that are still running, and frees all
+	 * off-heap memory held by this loader.
+	 */
+	public void free() {
+		synchronized (queue) {
+			for (var job : pending.values()) cancel(job);
+		}
+		pending.clear();
+		for (var task : running) {
+			task.exceptionally(e -> null).join();
+		}
+		CompletableFuture<Prepared> task;
+		while ((task = finished.poll()) != null) {
+			var prepared = task.exceptionally(e -> null).join();
+			if (prepared != null) ready.add(prepared);
+		}
+		for (var prepared : ready) {
+			if (prepared.workspace() != null) prepared.workspace().free();
+		}
+		ready.clear();
+		Workspace workspace;
+		while ((workspace = workspaces.poll()) != null) workspace.free();
+		if (stagingRing != null) {
+			stagingRing.free();
+			stagingRing = null;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package nl.andrewl.infinirails.model;
+
+import lombok.Getter;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ShortBuffer;
+
+import static org.lwjgl.opengl.GL40.*;
+
+/**
+ * The element buffer that all terrain fragment meshes share, holding the
+ * indices for every level of detail one after another.
+ * @see TerrainMeshBuilder#buildIndices(int, int)
+ */
+public class TerrainIndexBuffer {
+	@Getter
+	private final int id;
+	private final long[] offsets;
+	private final int[] counts;
+
+	/**
+	 * Creates the buffer for meshes of heightmaps with the given number of
+	 * points along each side. This must be called on the thread with the
+	 * OpenGL context.
+	 */
+	public TerrainIndexBuffer(int size) {
+		offsets = new long[TerrainMeshBuilder.LOD_COUNT];
+		counts = new int[TerrainMeshBuilder.LOD_COUNT];
+		long totalBytes = 0;
+		for (int level = 0; level < TerrainMeshBuilder.LOD_COUNT; level++) {
+			offsets[level] = totalBytes;
+			counts[level] = TerrainMeshBuilder.indexCount(size, level);
+			totalBytes += (long) counts[level] * Short.BYTES;
+		}
+		id = glGenBuffers();
+		// Upload through a target that isn't part of any vertex array's state.
+		glBindBuffer(GL_COPY_WRITE_BUFFER, id);
+		glBufferData(GL_COPY_WRITE_BUFFER, totalBytes, GL_STATIC_DRAW);
+		for (int level = 0; level < TerrainMeshBuilder.LOD_COUNT; level++) {
+			ShortBuffer indices = TerrainMeshBuilder.buildIndices(size, level);
+			glBufferSubData(GL_COPY_WRITE_BUFFER, offsets[level], indices);
+			MemoryUtil.memFree(indices);
+		}
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+	}
+
+	/**
+	 * @return The byte offset of a level's indices in the buffer.
+	 */
+	public long getOffset(int level) {
+		return offsets[level];
+	}
+
+	/**
+	 * @return The number of indices in a level.
+	 */
+	public int getCount(int level) {
+		return counts[level];
+	}
+
+	/**
+	 * @return The size of the buffer, in bytes.
+	 */
+	public long getByteCount() {
+		int last = TerrainMeshBuilder.LOD_COUNT - 1;
+		return offsets[last] + (long) counts[last] * Short.BYTES;
+	}
+
+	public void free() {
+		glDeleteBuffers(id);
+	}
+}
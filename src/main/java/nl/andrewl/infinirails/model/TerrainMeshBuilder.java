@@ -0,0 +1,249 @@
+package nl.andrewl.infinirails.model;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Builds the interleaved vertex data for terrain fragment meshes, writing it
+ * straight into an off-heap buffer that's reused for every mesh, so that
+ * meshing a fragment doesn't allocate anything on the Java heap.
+ * <p>
+ *     Meshes are indexed: there's one vertex per heightmap point, in row-major
+ *     order, followed by one skirt vertex for each point along the four edges.
+ *     Every fragment has the same topology, so they can all share the same
+ *     indices from {@link #buildIndices(int, int)}. There are {@link #LOD_COUNT}
+ *     levels of detail, which only differ in their indices: level n uses every
+ *     2^n-th row and column, plus the last one.
+ * </p>
+ * <p>
+ *     Skirts are strips that hang down from the edges of a fragment, so that
+ *     where neighbours with different levels of detail don't quite meet, the
+ *     gap is filled by a skirt instead of showing the sky. Skirt vertices are
+ *     lowered by the fragment's {@link #skirtDepth(float[][]) skirt depth}.
+ * </p>
+ * <p>
+ *     Vertices are packed into {@link #BYTES_PER_VERTEX} bytes: the grid x
+ *     and z coordinates as unsigned shorts, the height as a float, and the
+ *     normal as a signed normalized 2_10_10_10 integer. Terrain color isn't
+ *     stored per vertex, but set with a uniform. A builder keeps
+ *     its buffer between meshes, so it must only be used by one thread at a
+ *     time, and it must be {@link #free() freed} when it's no longer needed.
+ * </p>
+ */
+public class TerrainMeshBuilder {
+	public static final int BYTES_PER_VERTEX = 12;
+	public static final int POSITION_OFFSET = 0;
+	public static final int HEIGHT_OFFSET = 4;
+	public static final int NORMAL_OFFSET = 8;
+
+	public static final int LOD_COUNT = 4;
+
+	/**
+	 * Extra skirt depth beyond the largest gap, to cover rounding.
+	 */
+	private static final float SKIRT_MARGIN = 0.1f;
+
+	private ByteBuffer buffer;
+
+	public TerrainMeshBuilder() {
+		this.buffer = MemoryUtil.memAlloc(vertexCount(World.TERRAIN_FRAGMENT_SIZE + 1) * BYTES_PER_VERTEX);
+	}
+
+	/**
+	 * @return The number of vertices in the mesh of a heightmap with the
+	 * given number of points along each side, including skirt vertices.
+	 */
+	public static int vertexCount(int size) {
+		return size * size + 4 * size;
+	}
+
+	/**
+	 * Gets the heightmap rows and columns that are used at a level of detail:
+	 * every 2^level-th one, and always the last one.
+	 */
+	public static int[] lodLines(int size, int level) {
+		int step = 1 << level;
+		int count = (size - 2) / step + 2;
+		int[] lines = new int[count];
+		for (int k = 0; k < count - 1; k++) lines[k] = k * step;
+		lines[count - 1] = size - 1;
+		return lines;
+	}
+
+	/**
+	 * @return The number of indices at a level of detail, which is two
+	 * triangles per tile, plus two per skirt segment.
+	 */
+	public static int indexCount(int size, int level) {
+		int tiles = lodLines(size, level).length - 1;
+		return tiles * (tiles + 4) * 6;
+	}
+
+	/**
+	 * Gets the heightmap point that a skirt vertex hangs from. Skirt vertex k
+	 * is on edge k / size, which is the first row, last row, first column and
+	 * last column, in that order.
+	 * @return The point's row and column.
+	 */
+	public static int skirtRow(int size, int k) {
+		int t = k % size;
+		return switch (k / size) {
+			case 0 -> 0;
+			case 1 -> size - 1;
+			default -> t;
+		};
+	}
+
+	public static int skirtColumn(int size, int k) {
+		int t = k % size;
+		return switch (k / size) {
+			case 2 -> 0;
+			case 3 -> size - 1;
+			default -> t;
+		};
+	}
+
+	/**
+	 * Builds the 16-bit triangle indices for a level of detail of meshes of
+	 * heightmaps with the given number of points along each side.
+	 * @return A new off-heap buffer, which the caller must free with
+	 * {@link MemoryUtil#memFree(java.nio.Buffer)}.
+	 */
+	public static ShortBuffer buildIndices(int size, int level) {
+		if (vertexCount(size) > 1 << 16) {
+			throw new IllegalArgumentException("Meshes of size " + size + " have too many vertices for 16-bit indices.");
+		}
+		int[] lines = lodLines(size, level);
+		ShortBuffer indices = MemoryUtil.memAllocShort(indexCount(size, level));
+		for (int a = 0; a < lines.length - 1; a++) {
+			for (int b = 0; b < lines.length - 1; b++) {
+				int topLeft = lines[a] * size + lines[b];
+				int topRight = lines[a] * size + lines[b + 1];
+				int bottomLeft = lines[a + 1] * size + lines[b];
+				int bottomRight = lines[a + 1] * size + lines[b + 1];
+				indices.put((short) topRight).put((short) topLeft).put((short) bottomLeft);
+				indices.put((short) bottomLeft).put((short) bottomRight).put((short) topRight);
+			}
+		}
+		// Each edge is walked in the direction that makes its skirt face outwards.
+		int skirts = size * size;
+		for (int a = 0; a < lines.length - 1; a++) {
+			int up = lines[a], next = lines[a + 1];
+			int down = lines[lines.length - 1 - a], previous = lines[lines.length - 2 - a];
+			putSkirt(indices, up, next, skirts + up, skirts + next);
+			putSkirt(indices, (size - 1) * size + down, (size - 1) * size + previous, skirts + size + down, skirts + size + previous);
+			putSkirt(indices, down * size, previous * size, skirts + 2 * size + down, skirts + 2 * size + previous);
+			putSkirt(indices, up * size + size - 1, next * size + size - 1, skirts + 3 * size + up, skirts + 3 * size + next);
+		}
+		return indices.flip();
+	}
+
+	static void putSkirt(ShortBuffer indices, int top0, int top1, int bottom0, int bottom1) {
+		indices.put((short) top0).put((short) top1).put((short) bottom0);
+		indices.put((short) top1).put((short) bottom1).put((short) bottom0);
+	}
+
+	/**
+	 * Computes how far a fragment's skirts must hang down to hide any gaps
+	 * to its neighbours, whatever level of detail each is drawn at. That's
+	 * the largest difference along an edge between the full heights and
+	 * those of any coarser level, which only has a straight line between its
+	 * points.
+	 */
+	public static float skirtDepth(float[][] heightmap) {
+		int size = heightmap.length;
+		float gap = 0;
+		for (int level = 1; level < LOD_COUNT; level++) {
+			int[] lines = lodLines(size, level);
+			for (int a = 0; a < lines.length - 1; a++) {
+				int from = lines[a], to = lines[a + 1];
+				for (int k = from + 1; k < to; k++) {
+					float t = (float) (k - from) / (to - from);
+					gap = Math.max(gap, edgeGap(heightmap[0][from], heightmap[0][to], heightmap[0][k], t));
+					gap = Math.max(gap, edgeGap(heightmap[size - 1][from], heightmap[size - 1][to], heightmap[size - 1][k], t));
+					gap = Math.max(gap, edgeGap(heightmap[from][0], heightmap[to][0], heightmap[k][0], t));
+					gap = Math.max(gap, edgeGap(heightmap[from][size - 1], heightmap[to][size - 1], heightmap[k][size - 1], t));
+				}
+			}
+		}
+		return gap + SKIRT_MARGIN;
+	}
+
+	private static float edgeGap(float from, float to, float actual, float t) {
+		return Math.abs(from + t * (to - from) - actual);
+	}
+
+	/**
+	 * Builds the vertices for a heightmap. The returned buffer is owned by
+	 * this builder, and is only valid until the next call.
+	 * @param heightmap The height at each point.
+	 * @param normalmap The normal at each point, as consecutive x, y, z
+	 *                  components.
+	 * @param skirtDepth How far below the edges skirt vertices are.
+	 * @return A buffer with the vertex data between its position and limit.
+	 */
+	public ByteBuffer build(float[][] heightmap, float[][] normalmap, float skirtDepth) {
+		int capacity = vertexCount(heightmap.length) * BYTES_PER_VERTEX;
+		if (buffer.capacity() < capacity) {
+			buffer = MemoryUtil.memRealloc(buffer, capacity);
+		}
+		return build(heightmap, normalmap, skirtDepth, buffer.clear());
+	}
+
+	/**
+	 * Builds the vertices for a heightmap into the given buffer, starting at
+	 * index 0, for example memory that the GPU copies from directly.
+	 * @param b A buffer with room for {@link #vertexCount(int)} vertices, in
+	 *          native byte order.
+	 * @return The given buffer, with the vertex data between its position and
+	 * limit.
+	 */
+	public static ByteBuffer build(float[][] heightmap, float[][] normalmap, float skirtDepth, ByteBuffer b) {
+		int size = heightmap.length;
+		if (size > 1 << 16) throw new IllegalArgumentException("Grid coordinates don't fit in 16 bits.");
+		if (b.capacity() < vertexCount(size) * BYTES_PER_VERTEX) throw new IllegalArgumentException("Buffer is too small for the mesh.");
+		int p = 0;
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				p = putVertex(b, p, heightmap, normalmap, i, j, 0);
+			}
+		}
+		for (int k = 0; k < 4 * size; k++) {
+			p = putVertex(b, p, heightmap, normalmap, skirtRow(size, k), skirtColumn(size, k), skirtDepth);
+		}
+		return b.position(0).limit(p);
+	}
+
+	private static int putVertex(ByteBuffer b, int p, float[][] heightmap, float[][] normalmap, int i, int j, float depth) {
+		float[] normalRow = normalmap[i];
+		b.putShort(p + POSITION_OFFSET, (short) j);
+		b.putShort(p + POSITION_OFFSET + 2, (short) i);
+		b.putFloat(p + HEIGHT_OFFSET, heightmap[i][j] - depth);
+		b.putInt(p + NORMAL_OFFSET, packNormal(normalRow[3 * j], normalRow[3 * j + 1], normalRow[3 * j + 2]));
+		return p + BYTES_PER_VERTEX;
+	}
+
+	/**
+	 * Packs a unit vector into the GL_INT_2_10_10_10_REV format, with x in
+	 * the lowest 10 bits, and an unused w of 0.
+	 */
+	static int packNormal(float x, float y, float z) {
+		return packComponent(x) | packComponent(y) << 10 | packComponent(z) << 20;
+	}
+
+	private static int packComponent(float v) {
+		int c = Math.round(v * 511);
+		return Math.max(-511, Math.min(511, c)) & 0x3FF;
+	}
+
+	/**
+	 * Frees this builder's off-heap buffer. The builder can't be used after
+	 * this.
+	 */
+	public void free() {
+		MemoryUtil.memFree(buffer);
+		buffer = null;
+	}
+}
@@ -0,0 +1,253 @@
+package nl.andrewl.infinirails.model;
+
+import lombok.Getter;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Builds error-bounded triangle indices for a fragment's mesh, which use
+ * fewer triangles wherever the terrain is flat enough, or under water. The
+ * vertices are the same as those from {@link TerrainMeshBuilder}; only the
+ * indices change, so a fragment's vertex buffer doesn't depend on them.
+ * <p>
+ *     The heightmap is split into blocks of {@link #BLOCK_SIZE} by
+ *     {@link #BLOCK_SIZE} tiles, and each block gets the largest step, of
+ *     1, 2 or 4 tiles, at which its triangles are no more than
+ *     {@link #MAX_ERROR} away from any heightmap point inside them. Blocks
+ *     that are entirely under water may be off by
+ *     {@link #UNDERWATER_MAX_ERROR} instead, since they're all drawn the same
+ *     blue. Where a block meets a finer one, its cells are fanned from their
+ *     center to every vertex of the finer edge, so there are no T-junctions.
+ *     Along the fragment's edges, skirts hang from the vertices that are
+ *     kept.
+ * </p>
+ * <p>
+ *     Like the mesh builder, a decimator reuses its off-heap buffer, so it
+ *     must only be used by one thread at a time, and be
+ *     {@link #free() freed} when it's no longer needed.
+ * </p>
+ */
+public class TerrainMeshDecimator {
+	public static final int BLOCK_SIZE = 4;
+	public static final float MAX_ERROR = 0.05f;
+	public static final float UNDERWATER_MAX_ERROR = 0.5f;
+
+	private ShortBuffer indices;
+	private int[] steps = new int[0];
+	/**
+	 * The number of triangles in the last decimated mesh, and in the full
+	 * mesh that it replaces, including skirts.
+	 */
+	@Getter
+	private int triangleCount;
+	@Getter
+	private int fullTriangleCount;
+	/**
+	 * The largest vertical distance between the last decimated mesh and any
+	 * heightmap point.
+	 */
+	@Getter
+	private float maxError;
+
+	public TerrainMeshDecimator() {
+		this.indices = MemoryUtil.memAllocShort(TerrainMeshBuilder.indexCount(World.TERRAIN_FRAGMENT_SIZE + 1, 0));
+	}
+
+	/**
+	 * @return The skirt depth for a decimated fragment. Besides the gaps from
+	 * levels of detail, each side of an edge between two fragments can be off
+	 * by up to the largest allowed error.
+	 */
+	public static float skirtDepth(float[][] heightmap) {
+		return TerrainMeshBuilder.skirtDepth(heightmap) + 2 * UNDERWATER_MAX_ERROR;
+	}
+
+	/**
+	 * @return The fraction of the full mesh's triangles that the last
+	 * decimation removed.
+	 */
+	public float getReductionRatio() {
+		return 1 - (float) triangleCount / fullTriangleCount;
+	}
+
+	/**
+	 * Decimates a heightmap's mesh. The returned buffer is owned by this
+	 * decimator, and is only valid until the next call.
+	 * @return The triangle indices, between the buffer's position and limit.
+	 */
+	public ShortBuffer decimate(float[][] heightmap) {
+		int size = heightmap.length;
+		int tiles = size - 1;
+		if (tiles % BLOCK_SIZE != 0) throw new IllegalArgumentException("Heightmaps must be a whole number of blocks.");
+		int blocks = tiles / BLOCK_SIZE;
+		int capacity = TerrainMeshBuilder.indexCount(size, 0);
+		if (indices.capacity() < capacity) {
+			indices = MemoryUtil.memRealloc(indices, capacity);
+		}
+		if (steps.length < blocks * blocks) steps = new int[blocks * blocks];
+		for (int b = 0; b < blocks * blocks; b++) steps[b] = BLOCK_SIZE;
+
+		// Refining a block changes its neighbours' edges, so repeat until every block is within its error.
+		boolean refined = true;
+		while (refined) {
+			refined = false;
+			for (int bi = 0; bi < blocks; bi++) {
+				for (int bj = 0; bj < blocks; bj++) {
+					int b = bi * blocks + bj;
+					if (steps[b] == 1) continue;
+					indices.clear();
+					putBlock(indices, heightmap, blocks, bi, bj);
+					if (error(indices.flip(), heightmap) > allowedError(heightmap, bi, bj)) {
+						steps[b] /= 2;
+						refined = true;
+					}
+				}
+			}
+		}
+
+		ShortBuffer out = indices.clear();
+		for (int bi = 0; bi < blocks; bi++) {
+			for (int bj = 0; bj < blocks; bj++) {
+				putBlock(out, heightmap, blocks, bi, bj);
+			}
+		}
+		maxError = error(out.duplicate().flip(), heightmap);
+		putSkirts(out, size, blocks);
+		triangleCount = out.position() / 3;
+		fullTriangleCount = TerrainMeshBuilder.indexCount(size, 0) / 3;
+		return out.flip();
+	}
+
+	private float allowedError(float[][] heightmap, int bi, int bj) {
+		for (int i = bi * BLOCK_SIZE; i <= (bi + 1) * BLOCK_SIZE; i++) {
+			for (int j = bj * BLOCK_SIZE; j <= (bj + 1) * BLOCK_SIZE; j++) {
+				if (heightmap[i][j] >= 0) return MAX_ERROR;
+			}
+		}
+		return UNDERWATER_MAX_ERROR;
+	}
+
+	/**
+	 * @return The step of the block at the given position, or of the block
+	 * itself if that's outside the heightmap.
+	 */
+	private int stepAt(int blocks, int bi, int bj, int fallback) {
+		if (bi < 0 || bj < 0 || bi >= blocks || bj >= blocks) return fallback;
+		return steps[bi * blocks + bj];
+	}
+
+	private void putBlock(ShortBuffer out, float[][] heightmap, int blocks, int bi, int bj) {
+		int size = heightmap.length;
+		int step = steps[bi * blocks + bj];
+		// Edges on the block's border use the finer of the two blocks' steps.
+		int top = Math.min(step, stepAt(blocks, bi - 1, bj, step));
+		int right = Math.min(step, stepAt(blocks, bi, bj + 1, step));
+		int bottom = Math.min(step, stepAt(blocks, bi + 1, bj, step));
+		int left = Math.min(step, stepAt(blocks, bi, bj - 1, step));
+		int cells = BLOCK_SIZE / step;
+		for (int ci = 0; ci < cells; ci++) {
+			for (int cj = 0; cj < cells; cj++) {
+				putCell(out, size, bi * BLOCK_SIZE + ci * step, bj * BLOCK_SIZE + cj * step, step,
+						ci == 0 ? top : step,
+						cj == cells - 1 ? right : step,
+						ci == cells - 1 ? bottom : step,
+						cj == 0 ? left : step);
+			}
+		}
+	}
+
+	/**
+	 * Puts the triangles of an n by n tile cell whose edges have vertices
+	 * every top, right, bottom and left tiles. With no extra edge vertices,
+	 * that's the same two triangles as a full-resolution tile, and otherwise
+	 * it's a fan around the cell's center.
+	 */
+	private static void putCell(ShortBuffer out, int size, int i0, int j0, int n, int top, int right, int bottom, int left) {
+		int topLeft = i0 * size + j0;
+		int topRight = topLeft + n;
+		int bottomLeft = topLeft + n * size;
+		int bottomRight = bottomLeft + n;
+		if (top == n && right == n && bottom == n && left == n) {
+			out.put((short) topRight).put((short) topLeft).put((short) bottomLeft);
+			out.put((short) bottomLeft).put((short) bottomRight).put((short) topRight);
+			return;
+		}
+		int center = (i0 + n / 2) * size + j0 + n / 2;
+		// The perimeter is walked clockwise from the top-left corner, seen from above.
+		int previous = topLeft;
+		for (int k = top; k <= n; k += top) previous = putFan(out, center, previous, topLeft + k);
+		for (int k = right; k <= n; k += right) previous = putFan(out, center, previous, topRight + k * size);
+		for (int k = bottom; k <= n; k += bottom) previous = putFan(out, center, previous, bottomRight - k);
+		for (int k = left; k <= n; k += left) previous = putFan(out, center, previous, bottomLeft - k * size);
+	}
+
+	private static int putFan(ShortBuffer out, int center, int from, int to) {
+		out.put((short) center).put((short) to).put((short) from);
+		return to;
+	}
+
+	/**
+	 * Puts skirts along the fragment's edges, between the edge vertices that
+	 * the outermost blocks keep, walking each edge in the same direction as
+	 * {@link TerrainMeshBuilder#buildIndices(int, int)}.
+	 */
+	private void putSkirts(ShortBuffer out, int size, int blocks) {
+		int last = size - 1;
+		int skirts = size * size;
+		for (int b = 0; b < blocks; b++) {
+			int topStep = steps[b];
+			for (int a = b * BLOCK_SIZE; a < (b + 1) * BLOCK_SIZE; a += topStep) {
+				TerrainMeshBuilder.putSkirt(out, a, a + topStep, skirts + a, skirts + a + topStep);
+			}
+			int rightStep = steps[b * blocks + blocks - 1];
+			for (int a = b * BLOCK_SIZE; a < (b + 1) * BLOCK_SIZE; a += rightStep) {
+				TerrainMeshBuilder.putSkirt(out, a * size + last, (a + rightStep) * size + last, skirts + 3 * size + a, skirts + 3 * size + a + rightStep);
+			}
+		}
+		for (int b = blocks - 1; b >= 0; b--) {
+			int bottomStep = steps[(blocks - 1) * blocks + b];
+			for (int a = (b + 1) * BLOCK_SIZE; a > b * BLOCK_SIZE; a -= bottomStep) {
+				TerrainMeshBuilder.putSkirt(out, last * size + a, last * size + a - bottomStep, skirts + size + a, skirts + size + a - bottomStep);
+			}
+			int leftStep = steps[b * blocks];
+			for (int a = (b + 1) * BLOCK_SIZE; a > b * BLOCK_SIZE; a -= leftStep) {
+				TerrainMeshBuilder.putSkirt(out, a * size, (a - leftStep) * size, skirts + 2 * size + a, skirts + 2 * size + a - leftStep);
+			}
+		}
+	}
+
+	/**
+	 * @return The largest vertical distance between the given triangles and
+	 * the heightmap points that they cover.
+	 */
+	private static float error(ShortBuffer triangles, float[][] heightmap) {
+		int size = heightmap.length;
+		float error = 0;
+		for (int t = triangles.position(); t < triangles.limit(); t += 3) {
+			int v0 = triangles.get(t) & 0xFFFF, v1 = triangles.get(t + 1) & 0xFFFF, v2 = triangles.get(t + 2) & 0xFFFF;
+			int i0 = v0 / size, j0 = v0 % size;
+			int i1 = v1 / size, j1 = v1 % size;
+			int i2 = v2 / size, j2 = v2 % size;
+			float h0 = heightmap[i0][j0], h1 = heightmap[i1][j1], h2 = heightmap[i2][j2];
+			int area = (j1 - j0) * (i2 - i0) - (j2 - j0) * (i1 - i0);
+			for (int i = Math.min(i0, Math.min(i1, i2)); i <= Math.max(i0, Math.max(i1, i2)); i++) {
+				for (int j = Math.min(j0, Math.min(j1, j2)); j <= Math.max(j0, Math.max(j1, j2)); j++) {
+					// Barycentric weights, scaled by twice the triangle's area.
+					int w1 = (j - j0) * (i2 - i0) - (j2 - j0) * (i - i0);
+					int w2 = (j1 - j0) * (i - i0) - (j - j0) * (i1 - i0);
+					int w0 = area - w1 - w2;
+					if (area > 0 ? (w0 < 0 || w1 < 0 || w2 < 0) : (w0 > 0 || w1 > 0 || w2 > 0)) continue;
+					float h = (w0 * h0 + w1 * h1 + w2 * h2) / area;
+					error = Math.max(error, Math.abs(h - heightmap[i][j]));
+				}
+			}
+		}
+		return error;
+	}
+
+	public void free() {
+		MemoryUtil.memFree(indices);
+		indices = null;
+	}
+}
@@ -0,0 +1,205 @@
+package nl.andrewl.infinirails.model;
+
+import lombok.Getter;
+import org.lwjgl.opengl.GL;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static org.lwjgl.opengl.GL44.*;
+
+/**
+ * The GPU storage for all terrain fragment meshes: one vertex buffer and one
+ * index buffer, split into equal {@link Slot slots}, and one vertex array
+ * that reads them all. Every fragment's mesh has the same number of
+ * vertices, and at most as many decimated indices as the full mesh, so each
+ * slot has room for exactly that. The index buffer starts with a copy of the
+ * shared {@link TerrainIndexBuffer level of detail indices}, so that with a
+ * slot's base vertex, any fragment can be drawn at any level from the same
+ * buffers, and all of them with a single multi-draw call.
+ * <p>
+ *     New fragments overwrite a free slot's part of the buffers with sub-data
+ *     uploads or copies, and deleted fragments give their slot back, so
+ *     streaming terrain doesn't make the driver allocate or free any storage.
+ *     When all slots are in use, the buffers are recreated with twice as
+ *     many, and the old contents are copied over on the GPU. The world's GPU
+ *     memory budget keeps the number of slots in check.
+ * </p>
+ * <p>
+ *     Buffers are immutable, with {@code glBufferStorage}, when OpenGL 4.4 or
+ *     ARB_buffer_storage is available, and otherwise allocated with
+ *     {@code glBufferData}. All methods must be called on the thread with the
+ *     OpenGL context.
+ * </p>
+ */
+public class TerrainMeshPool {
+	/**
+	 * Enough for all fragments around the camera, and a few that replace
+	 * them, before any are evicted.
+	 */
+	public static final int INITIAL_SLOTS = 32;
+
+	/**
+	 * One fragment's part of the pool's buffers.
+	 */
+	public class Slot {
+		private final int index;
+
+		private Slot(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * @return The index of the slot's first vertex in the vertex buffer.
+		 */
+		public int getBaseVertex() {
+			return index * vertexCount;
+		}
+
+		/**
+		 * @return The byte offset of the slot's vertices in the vertex buffer.
+		 */
+		public long getVertexOffset() {
+			return index * vertexBytes;
+		}
+
+		/**
+		 * @return The byte offset of the slot's indices in the index buffer.
+		 */
+		public long getIndexOffset() {
+			return sharedIndexBytes + index * indexBytes;
+		}
+	}
+
+	private final int vertexCount;
+	@Getter
+	private final long vertexBytes;
+	@Getter
+	private final long indexBytes;
+	private final long sharedIndexBytes;
+	@Getter
+	private final boolean immutable;
+	@Getter
+	private int vertexBuffer;
+	@Getter
+	private int indexBuffer;
+	@Getter
+	private final int vertexArray;
+	private int slotCount;
+	private final Deque<Slot> freeSlots = new ArrayDeque<>();
+
+	/**
+	 * Creates a pool for the meshes of heightmaps with the given number of
+	 * points along each side.
+	 * @param sharedIndices The level of detail indices to put at the start of
+	 *                      the index buffer.
+	 */
+	public TerrainMeshPool(int size, TerrainIndexBuffer sharedIndices) {
+		this.vertexCount = TerrainMeshBuilder.vertexCount(size);
+		this.vertexBytes = (long) vertexCount * TerrainMeshBuilder.BYTES_PER_VERTEX;
+		this.indexBytes = (long) TerrainMeshBuilder.indexCount(size, 0) * Short.BYTES;
+		this.sharedIndexBytes = sharedIndices.getByteCount();
+		this.immutable = GL.getCapabilities().glBufferStorage != 0;
+		this.vertexArray = glGenVertexArrays();
+		vertexBuffer = createBuffer(INITIAL_SLOTS * vertexBytes);
+		indexBuffer = createBuffer(sharedIndexBytes + INITIAL_SLOTS * indexBytes);
+		copy(sharedIndices.getId(), indexBuffer, sharedIndexBytes);
+		addSlots(INITIAL_SLOTS);
+		bindVertexArray();
+	}
+
+	/**
+	 * Takes a free slot, growing the pool if there are none.
+	 */
+	public Slot acquire() {
+		if (freeSlots.isEmpty()) grow();
+		return freeSlots.pop();
+	}
+
+	/**
+	 * Gives a slot back, so that another fragment can overwrite it.
+	 */
+	public void release(Slot slot) {
+		freeSlots.push(slot);
+	}
+
+	public int getSlotCount() {
+		return slotCount;
+	}
+
+	public int getFreeSlotCount() {
+		return freeSlots.size();
+	}
+
+	/**
+	 * @return The number of bytes of GPU memory that each slot uses.
+	 */
+	public long getSlotBytes() {
+		return vertexBytes + indexBytes;
+	}
+
+	private void grow() {
+		int newSlotCount = slotCount * 2;
+		int newVertexBuffer = createBuffer(newSlotCount * vertexBytes);
+		int newIndexBuffer = createBuffer(sharedIndexBytes + newSlotCount * indexBytes);
+		copy(vertexBuffer, newVertexBuffer, slotCount * vertexBytes);
+		copy(indexBuffer, newIndexBuffer, sharedIndexBytes + slotCount * indexBytes);
+		glDeleteBuffers(vertexBuffer);
+		glDeleteBuffers(indexBuffer);
+		vertexBuffer = newVertexBuffer;
+		indexBuffer = newIndexBuffer;
+		addSlots(newSlotCount - slotCount);
+		bindVertexArray();
+	}
+
+	private void addSlots(int count) {
+		for (int i = 0; i < count; i++) {
+			freeSlots.addLast(new Slot(slotCount++));
+		}
+	}
+
+	private void bindVertexArray() {
+		glBindVertexArray(vertexArray);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+		glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+		int stride = TerrainMeshBuilder.BYTES_PER_VERTEX;
+		glEnableVertexAttribArray(0);
+		glVertexAttribPointer(0, 2, GL_UNSIGNED_SHORT, false, stride, TerrainMeshBuilder.POSITION_OFFSET);
+		glEnableVertexAttribArray(1);
+		glVertexAttribPointer(1, 1, GL_FLOAT, false, stride, TerrainMeshBuilder.HEIGHT_OFFSET);
+		glEnableVertexAttribArray(2);
+		glVertexAttribPointer(2, 4, GL_INT_2_10_10_10_REV, true, stride, TerrainMeshBuilder.NORMAL_OFFSET);
+		glBindVertexArray(0);
+	}
+
+	private int createBuffer(long bytes) {
+		int buffer = glGenBuffers();
+		// Allocate through a target that isn't part of any vertex array's state.
+		glBindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+		if (immutable) {
+			glBufferStorage(GL_COPY_WRITE_BUFFER, bytes, GL_DYNAMIC_STORAGE_BIT);
+		} else {
+			glBufferData(GL_COPY_WRITE_BUFFER, bytes, GL_DYNAMIC_DRAW);
+		}
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		return buffer;
+	}
+
+	private static void copy(int from, int to, long bytes) {
+		glBindBuffer(GL_COPY_READ_BUFFER, from);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, to);
+		glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, bytes);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		glBindBuffer(GL_COPY_READ_BUFFER, 0);
+	}
+
+	/**
+	 * Deletes the pool's buffers, including slots that fragments still use.
+	 */
+	public void free() {
+		glDeleteVertexArrays(vertexArray);
+		glDeleteBuffers(vertexBuffer);
+		glDeleteBuffers(indexBuffer);
+		freeSlots.clear();
+	}
+}
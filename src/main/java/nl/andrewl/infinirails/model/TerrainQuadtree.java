@@ -0,0 +1,175 @@
+package nl.andrewl.infinirails.model;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Selects the terrain nodes to draw for continuous distance-dependent level
+ * of detail (CDLOD). The terrain is covered by a grid of square root nodes,
+ * each of which is the root of a quadtree whose leaves are
+ * {@link #getLeafSize()} meters across. Every node, whatever its level, is
+ * drawn with the same patch mesh, so a node at level n has vertices 2^n times
+ * as far apart as a leaf.
+ * <p>
+ *     Each level has a range: a node is split into its children when the
+ *     camera is within the range of the level below it, and a level n node is
+ *     only ever selected beyond the range of level n - 1. Within the last part
+ *     of its own range, the vertex shader morphs a node's odd vertices onto
+ *     their even neighbours, so that at the end of its range it exactly
+ *     matches the next level, and there are no seams or popping between
+ *     levels. Since ranges double along with node sizes, about the same
+ *     number of nodes is selected in each level, and adding a level doubles
+ *     the view distance.
+ * </p>
+ * <p>
+ *     Distances are measured horizontally, in both selection and morphing, so
+ *     that selection doesn't need to know the terrain's height. Selection
+ *     doesn't touch OpenGL, and doesn't allocate once its output has grown.
+ * </p>
+ */
+public class TerrainQuadtree {
+	/**
+	 * The fraction of each level's range, from the previous level's range,
+	 * after which nodes start morphing to the next level.
+	 */
+	public static final float MORPH_START = 0.7f;
+	/**
+	 * The smallest ratio of a level's range to its node size. A node can be
+	 * selected up to its parent's diagonal beyond its own range, and that must
+	 * still be before the next level starts morphing, or there'd be cracks.
+	 */
+	public static final float MIN_RANGE_FACTOR = 4.5f;
+
+	@Getter
+	private final float leafSize;
+	@Getter
+	private final int levelCount;
+	@Getter
+	private final float viewDistance;
+	private final float[] ranges;
+	private final float[] morphStarts;
+
+	/**
+	 * @param leafSize The size of the smallest nodes, in meters.
+	 * @param leafRange The range of the smallest nodes, which must be at least
+	 *                  {@link #MIN_RANGE_FACTOR} times their size.
+	 * @param viewDistance The distance up to which terrain is selected. Enough
+	 *                     levels are made for the last one to reach this far.
+	 */
+	public TerrainQuadtree(float leafSize, float leafRange, float viewDistance) {
+		if (leafRange < MIN_RANGE_FACTOR * leafSize) {
+			throw new IllegalArgumentException("The leaf range must be at least " + MIN_RANGE_FACTOR + " times the leaf size.");
+		}
+		this.leafSize = leafSize;
+		this.viewDistance = viewDistance;
+		int levels = 1;
+		while (leafRange * (1 << (levels - 1)) < viewDistance) levels++;
+		this.levelCount = levels;
+		this.ranges = new float[levels];
+		this.morphStarts = new float[levels];
+		for (int level = 0; level < levels; level++) {
+			ranges[level] = leafRange * (1 << level);
+			float previous = level == 0 ? 0 : ranges[level - 1];
+			morphStarts[level] = previous + (ranges[level] - previous) * MORPH_START;
+		}
+	}
+
+	/**
+	 * @return The size of nodes at a level, in meters.
+	 */
+	public float getNodeSize(int level) {
+		return leafSize * (1 << level);
+	}
+
+	public float getRange(int level) {
+		return ranges[level];
+	}
+
+	public float getMorphStart(int level) {
+		return morphStarts[level];
+	}
+
+	/**
+	 * Selects the nodes to draw for a camera at the given horizontal position,
+	 * replacing the selection's previous contents.
+	 */
+	public void select(float cameraX, float cameraZ, Selection selection) {
+		selection.clear();
+		int top = levelCount - 1;
+		float rootSize = getNodeSize(top);
+		int minX = (int) Math.floor((cameraX - viewDistance) / rootSize);
+		int maxX = (int) Math.floor((cameraX + viewDistance) / rootSize);
+		int minZ = (int) Math.floor((cameraZ - viewDistance) / rootSize);
+		int maxZ = (int) Math.floor((cameraZ + viewDistance) / rootSize);
+		for (int x = minX; x <= maxX; x++) {
+			for (int z = minZ; z <= maxZ; z++) {
+				if (distance(cameraX, cameraZ, top, x, z) <= viewDistance) {
+					select(cameraX, cameraZ, top, x, z, selection);
+				}
+			}
+		}
+	}
+
+	private void select(float cameraX, float cameraZ, int level, int x, int z, Selection selection) {
+		if (level == 0 || distance(cameraX, cameraZ, level, x, z) > ranges[level - 1]) {
+			selection.add(level, x, z);
+			return;
+		}
+		// Children that are beyond their own range are still drawn at their level, fully morphed.
+		for (int child = 0; child < 4; child++) {
+			select(cameraX, cameraZ, level - 1, 2 * x + (child & 1), 2 * z + (child >> 1), selection);
+		}
+	}
+
+	/**
+	 * @return The horizontal distance from the camera to the nearest point of
+	 * a node.
+	 */
+	private float distance(float cameraX, float cameraZ, int level, int x, int z) {
+		float size = getNodeSize(level);
+		float dx = Math.max(0, Math.max(x * size - cameraX, cameraX - (x + 1) * size));
+		float dz = Math.max(0, Math.max(z * size - cameraZ, cameraZ - (z + 1) * size));
+		return (float) Math.sqrt(dx * dx + dz * dz);
+	}
+
+	/**
+	 * The nodes selected for a frame, as parallel arrays of each node's level
+	 * and x and z index within that level, which are reused between frames.
+	 */
+	public static class Selection {
+		@Getter
+		private int count;
+		private int[] levels = new int[64];
+		private int[] xs = new int[64];
+		private int[] zs = new int[64];
+
+		public int getLevel(int i) {
+			return levels[i];
+		}
+
+		public int getX(int i) {
+			return xs[i];
+		}
+
+		public int getZ(int i) {
+			return zs[i];
+		}
+
+		void clear() {
+			count = 0;
+		}
+
+		void add(int level, int x, int z) {
+			if (count == levels.length) {
+				levels = Arrays.copyOf(levels, count * 2);
+				xs = Arrays.copyOf(xs, count * 2);
+				zs = Arrays.copyOf(zs, count * 2);
+			}
+			levels[count] = level;
+			xs[count] = x;
+			zs[count] = z;
+			count++;
+		}
+	}
+}
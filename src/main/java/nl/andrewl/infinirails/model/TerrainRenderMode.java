@@ -0,0 +1,30 @@
+package nl.andrewl.infinirails.model;
+
+/**
+ * The ways in which terrain fragments can be put on the GPU and drawn.
+ */
+public enum TerrainRenderMode {
+	/**
+	 * Each fragment has its own mesh, with heights and normals baked into its
+	 * vertices.
+	 */
+	MESH,
+	/**
+	 * All fragments are drawn by instancing one flat grid mesh. Each fragment
+	 * only has a layer in a texture array, holding its heights and normals,
+	 * which the vertex shader reads from.
+	 */
+	HEIGHT_TEXTURE,
+	/**
+	 * Terrain isn't split into fragments at all, but drawn as the nodes of a
+	 * {@link TerrainQuadtree}, with continuous level of detail out to a much
+	 * larger view distance.
+	 */
+	QUADTREE,
+	/**
+	 * Like {@link #HEIGHT_TEXTURE}, but each fragment is drawn as a few coarse
+	 * patches, which are tessellated on the GPU according to their size on
+	 * screen. Needs OpenGL 4.0.
+	 */
+	TESSELLATION
+}
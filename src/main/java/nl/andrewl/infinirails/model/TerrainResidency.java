@@ -0,0 +1,114 @@
+package nl.andrewl.infinirails.model;
+
+import lombok.Getter;
+import nl.andrewl.infinirails.util.LongHashMap;
+import org.joml.Vector2f;
+import org.joml.Vector2i;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps track of how much heap and GPU memory the world's terrain fragments
+ * use, and evicts fragments when either goes over its budget, deleting their
+ * GPU resources. Fragments around the camera are never evicted. Of the rest,
+ * the ones that were drawn longest ago go first, and of those that were drawn
+ * in the same frame, the farthest from the camera.
+ * <p>
+ *     An evicted fragment is simply generated again if the camera comes back
+ *     to it. All methods must be called on the thread with the OpenGL
+ *     context.
+ * </p>
+ */
+public class TerrainResidency {
+	public static final long DEFAULT_HEAP_BUDGET = 32L << 20;
+	public static final long DEFAULT_GPU_BUDGET = 32L << 20;
+
+	/**
+	 * What residency needs from a fragment. {@link TerrainFragment} is the
+	 * only one in a world, but tests use fragments without GPU resources.
+	 */
+	interface Resident {
+		long getKey();
+		Vector2i getIndex();
+		Vector2f getCenter();
+		long getLastUsedFrame();
+		long getHeapByteCount();
+		long getGpuByteCount();
+		void delete();
+	}
+
+	@Getter
+	private final long heapBudget;
+	@Getter
+	private final long gpuBudget;
+	/**
+	 * The number of bytes used by all resident fragments.
+	 * @see TerrainFragment#getHeapByteCount()
+	 * @see TerrainFragment#getGpuByteCount()
+	 */
+	@Getter
+	private long residentHeapBytes;
+	@Getter
+	private long residentGpuBytes;
+	@Getter
+	private long evictedCount;
+
+	private final List<Resident> candidates = new ArrayList<>();
+
+	public TerrainResidency(long heapBudget, long gpuBudget) {
+		this.heapBudget = heapBudget;
+		this.gpuBudget = gpuBudget;
+	}
+
+	public boolean isOverBudget() {
+		return residentHeapBytes > heapBudget || residentGpuBytes > gpuBudget;
+	}
+
+	void added(Resident fragment) {
+		residentHeapBytes += fragment.getHeapByteCount();
+		residentGpuBytes += fragment.getGpuByteCount();
+	}
+
+	void removed(Resident fragment) {
+		residentHeapBytes -= fragment.getHeapByteCount();
+		residentGpuBytes -= fragment.getGpuByteCount();
+	}
+
+	/**
+	 * Evicts fragments until both budgets are met, or only the fragments
+	 * around the camera are left.
+	 * @param fragments The world's fragments, which evicted ones are removed
+	 *                  from.
+	 * @param centerX The x index of the camera's fragment.
+	 * @param centerY The y index of the camera's fragment.
+	 * @param keptRings The number of rings around the camera's fragment that
+	 *                  are never evicted.
+	 * @param cameraX The camera's x coordinate.
+	 * @param cameraZ The camera's z coordinate.
+	 * @return The number of evicted fragments.
+	 */
+	public int evict(LongHashMap<? extends Resident> fragments, int centerX, int centerY, int keptRings, float cameraX, float cameraZ) {
+		if (!isOverBudget()) return 0;
+		for (var fragment : fragments.values()) {
+			var index = fragment.getIndex();
+			if (Math.max(Math.abs(index.x - centerX), Math.abs(index.y - centerY)) > keptRings) {
+				candidates.add(fragment);
+			}
+		}
+		candidates.sort(Comparator.comparingLong(Resident::getLastUsedFrame)
+				.thenComparingDouble(f -> -f.getCenter().distanceSquared(cameraX, cameraZ)));
+		int evicted = 0;
+		for (int i = 0; i < candidates.size() && isOverBudget(); i++) {
+			var fragment = candidates.get(i);
+			fragments.remove(fragment.getKey());
+			removed(fragment);
+			fragment.delete();
+			evicted++;
+		}
+		candidates.clear();
+		evictedCount += evicted;
+		return evicted;
+	}
+}
@@ -0,0 +1,236 @@
+package nl.andrewl.infinirails.model;
+
+import lombok.Getter;
+import org.lwjgl.opengl.GL;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static org.lwjgl.opengl.GL44.*;
+
+/**
+ * A staging buffer that stays mapped for its whole life, so that generation
+ * workers can write fragment meshes straight into memory that the GPU copies
+ * from, and the render thread only has to issue the copies. It's used as a
+ * ring: {@link Region regions} are reserved one after another, wrapping
+ * around to the start when they don't fit at the end, and are reclaimed in
+ * the same order once the GPU is done reading them.
+ * <p>
+ *     A region that was copied from can't be reused until the GPU has
+ *     actually run the copies, so {@link #release(Region) releasing} it adds
+ *     a fence with {@code glFenceSync} after them, and the region is only
+ *     {@link #reclaim() reclaimed} once its fence has signaled. This never
+ *     waits for a fence: when the ring is full, {@link #reserve(int)} fails,
+ *     and the caller falls back to uploading from its own memory.
+ * </p>
+ * <p>
+ *     Needs persistent mapping from OpenGL 4.4 or ARB_buffer_storage; see
+ *     {@link #isSupported()}. Regions may be reserved, written and discarded
+ *     on any thread, but everything else must happen on the thread with the
+ *     OpenGL context.
+ * </p>
+ */
+public class TerrainStagingRing {
+	/**
+	 * Room for a few dozen fragment meshes.
+	 */
+	public static final int DEFAULT_CAPACITY = 8 << 20;
+
+	/**
+	 * A reserved part of the ring.
+	 */
+	public static class Region {
+		@Getter
+		private final TerrainStagingRing ring;
+		private final int offset;
+		private final int size;
+		private final ByteBuffer memory;
+		/**
+		 * Whether the region is done with, and the fence that has to signal
+		 * before it can be reused, or 0 if the GPU never read it.
+		 */
+		private boolean released;
+		private long fence;
+
+		private Region(TerrainStagingRing ring, int offset, int size, ByteBuffer memory) {
+			this.ring = ring;
+			this.offset = offset;
+			this.size = size;
+			this.memory = memory;
+		}
+
+		/**
+		 * @return Whether the region has been released or discarded.
+		 */
+		public boolean isReleased() {
+			synchronized (ring) {
+				return released;
+			}
+		}
+
+		/**
+		 * @return The region's mapped memory, which is only valid until the
+		 * region is released or discarded.
+		 */
+		public ByteBuffer getMemory() {
+			return memory;
+		}
+	}
+
+	@Getter
+	private final int buffer;
+	@Getter
+	private final int capacity;
+	private final ByteBuffer mapped;
+	/**
+	 * Regions that haven't been reclaimed, in the order they were reserved.
+	 */
+	private final Deque<Region> regions = new ArrayDeque<>();
+
+	/**
+	 * The number of reservations so far that succeeded, and that failed
+	 * because the ring was full.
+	 */
+	@Getter
+	private long reservedCount;
+	@Getter
+	private long failedCount;
+
+	/**
+	 * @return Whether the current OpenGL context supports persistent mapping.
+	 */
+	public static boolean isSupported() {
+		return GL.getCapabilities().glBufferStorage != 0;
+	}
+
+	public TerrainStagingRing(int capacity) {
+		this.capacity = capacity;
+		int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+		buffer = glGenBuffers();
+		glBindBuffer(GL_COPY_READ_BUFFER, buffer);
+		glBufferStorage(GL_COPY_READ_BUFFER, capacity, flags);
+		mapped = glMapBufferRange(GL_COPY_READ_BUFFER, 0, capacity, flags);
+		glBindBuffer(GL_COPY_READ_BUFFER, 0);
+		if (mapped == null) throw new IllegalStateException("Could not map the terrain staging ring.");
+	}
+
+	/**
+	 * Creates a ring over memory that isn't an OpenGL buffer, for testing how
+	 * regions are reserved and reclaimed without a context. Its regions can
+	 * only be discarded, not copied from or released, and it isn't freed.
+	 */
+	TerrainStagingRing(ByteBuffer memory) {
+		this.capacity = memory.capacity();
+		this.buffer = 0;
+		this.mapped = memory;
+	}
+
+	/**
+	 * Reserves a region of the ring. This may be called on any thread.
+	 * @param size The size of the region, in bytes.
+	 * @return The region, or null if the ring doesn't have room for it.
+	 */
+	public synchronized Region reserve(int size) {
+		// Keep every region 4-byte aligned, which some drivers prefer for copies.
+		size = (size + 3) & ~3;
+		int offset = -1;
+		if (regions.isEmpty()) {
+			if (size <= capacity) offset = 0;
+		} else {
+			int tail = regions.peekFirst().offset;
+			int head = regions.peekLast().offset + regions.peekLast().size;
+			if (head > tail) {
+				if (capacity - head >= size) {
+					offset = head;
+				} else if (tail >= size) {
+					offset = 0;
+				}
+			} else if (tail - head >= size) {
+				offset = head;
+			}
+		}
+		if (offset < 0) {
+			failedCount++;
+			return null;
+		}
+		var region = new Region(this, offset, size, mapped.slice(offset, size).order(ByteOrder.nativeOrder()));
+		regions.addLast(region);
+		reservedCount++;
+		return region;
+	}
+
+	/**
+	 * Gives back a region that the GPU never read from, so it can be
+	 * reclaimed without a fence. This may be called on any thread.
+	 */
+	public synchronized void discard(Region region) {
+		region.released = true;
+	}
+
+	/**
+	 * Copies part of a region into another buffer. This must happen before
+	 * the region is released.
+	 * @param region The region to copy from.
+	 * @param regionOffset The offset in the region to start copying from.
+	 * @param target The buffer to copy to.
+	 * @param targetOffset The offset in the target buffer to copy to.
+	 * @param bytes The number of bytes to copy.
+	 */
+	public void copy(Region region, int regionOffset, int target, long targetOffset, long bytes) {
+		glBindBuffer(GL_COPY_READ_BUFFER, buffer);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, target);
+		glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, region.offset + regionOffset, targetOffset, bytes);
+		glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		glBindBuffer(GL_COPY_READ_BUFFER, 0);
+	}
+
+	/**
+	 * Releases a region that has been copied from, adding a fence after the
+	 * copies, so that it's reclaimed once the GPU has run them.
+	 */
+	public synchronized void release(Region region) {
+		region.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		region.released = true;
+	}
+
+	/**
+	 * Reclaims released regions from the start of the ring, until one hasn't
+	 * been released, or its fence hasn't signaled yet. This never waits.
+	 */
+	public synchronized void reclaim() {
+		while (!regions.isEmpty()) {
+			var region = regions.peekFirst();
+			if (!region.released) return;
+			if (region.fence != 0) {
+				int status = glClientWaitSync(region.fence, 0, 0);
+				if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED) return;
+				glDeleteSync(region.fence);
+			}
+			regions.removeFirst();
+		}
+	}
+
+	/**
+	 * @return The number of bytes in regions that haven't been reclaimed,
+	 * including any space skipped at the end when wrapping around.
+	 */
+	public synchronized int getBytesInUse() {
+		if (regions.isEmpty()) return 0;
+		int tail = regions.peekFirst().offset;
+		int head = regions.peekLast().offset + regions.peekLast().size;
+		return head > tail ? head - tail : capacity - tail + head;
+	}
+
+	public synchronized void free() {
+		for (var region : regions) {
+			if (region.fence != 0) glDeleteSync(region.fence);
+		}
+		regions.clear();
+		glBindBuffer(GL_COPY_READ_BUFFER, buffer);
+		glUnmapBuffer(GL_COPY_READ_BUFFER);
+		glBindBuffer(GL_COPY_READ_BUFFER, 0);
+		glDeleteBuffers(buffer);
+	}
+}
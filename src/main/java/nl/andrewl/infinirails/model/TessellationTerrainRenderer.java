@@ -0,0 +1,171 @@
+package nl.andrewl.infinirails.model;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Collection;
+
+import static org.lwjgl.opengl.GL40.*;
+
+/**
+ * Draws terrain fragments in {@link TerrainRenderMode#TESSELLATION} mode:
+ * each fragment is drawn as {@link #PATCHES_PER_SIDE} by
+ * {@link #PATCHES_PER_SIDE} coarse patches, which the tessellation control
+ * shader subdivides according to how long their edges are on screen, and the
+ * evaluation shader displaces with the fragment's layer in the world's
+ * {@link HeightTextureArray}. There's no mesh on the CPU at all, and detail
+ * scales with screen resolution instead of the number of fragments.
+ * <p>
+ *     Each fragment also gets a skirt patch below each patch edge along its
+ *     border, which hangs down by the fragment's skirt depth. Neighbouring
+ *     fragments tessellate their shared edges alike, and their heightmaps
+ *     agree on them, but rounding in the tessellator and in texture
+ *     filtering can still leave hairline gaps, which the skirts fill.
+ * </p>
+ * <p>
+ *     Needs OpenGL 4.0.
+ * </p>
+ */
+public class TessellationTerrainRenderer {
+	public static final int HEIGHT_TEXTURE_UNIT = 0;
+	public static final int NORMAL_TEXTURE_UNIT = 1;
+
+	public static final int PATCHES_PER_SIDE = 4;
+	/**
+	 * The number of heightmap tiles along each side of a patch. It's also the
+	 * highest tessellation level, since finer detail than the heightmap's
+	 * would only interpolate it.
+	 */
+	public static final int PATCH_TILES = World.TERRAIN_FRAGMENT_SIZE / PATCHES_PER_SIDE;
+	/**
+	 * The length, in pixels, that tessellated edges aim for.
+	 */
+	public static final float PIXELS_PER_EDGE = 8;
+
+	/**
+	 * Per-vertex data: the grid x and z, whether it's a skirt vertex, and
+	 * padding.
+	 */
+	private static final int SHORTS_PER_VERTEX = 4;
+	/**
+	 * Per-instance data: the x and z of the fragment's origin, its layer, and
+	 * its skirt depth.
+	 */
+	private static final int FLOATS_PER_INSTANCE = 4;
+
+	private final World world;
+	private final int gridBuffer;
+	private final int indexBuffer;
+	private final int instanceBuffer;
+	private final int vertexArray;
+	private final int indexCount;
+
+	public TessellationTerrainRenderer(World world) {
+		this.world = world;
+		int corners = PATCHES_PER_SIDE + 1;
+		// The patch corners, and then a copy of them that the shaders lower by the skirt depth.
+		int skirts = corners * corners;
+		ByteBuffer grid = MemoryUtil.memAlloc(2 * skirts * SHORTS_PER_VERTEX * Short.BYTES);
+		for (int skirt = 0; skirt < 2; skirt++) {
+			for (int i = 0; i < corners; i++) {
+				for (int j = 0; j < corners; j++) {
+					grid.putShort((short) (j * PATCH_TILES)).putShort((short) (i * PATCH_TILES))
+							.putShort((short) skirt).putShort((short) 0);
+				}
+			}
+		}
+		// Each patch's corners, in the order that the control shader expects.
+		indexCount = (PATCHES_PER_SIDE * PATCHES_PER_SIDE + 4 * PATCHES_PER_SIDE) * 4;
+		ShortBuffer indices = MemoryUtil.memAllocShort(indexCount);
+		for (int i = 0; i < PATCHES_PER_SIDE; i++) {
+			for (int j = 0; j < PATCHES_PER_SIDE; j++) {
+				int topLeft = i * corners + j;
+				int bottomLeft = topLeft + corners;
+				indices.put((short) topLeft).put((short) (topLeft + 1)).put((short) (bottomLeft + 1)).put((short) bottomLeft);
+			}
+		}
+		// Skirt patches, whose first edge runs along the border so that they face outwards.
+		int last = PATCHES_PER_SIDE;
+		for (int a = 0; a < PATCHES_PER_SIDE; a++) {
+			putSkirt(indices, a + 1, a, skirts);
+			putSkirt(indices, (a + 1) * corners + last, a * corners + last, skirts);
+			putSkirt(indices, last * corners + a, last * corners + a + 1, skirts);
+			putSkirt(indices, a * corners, (a + 1) * corners, skirts);
+		}
+		gridBuffer = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, gridBuffer);
+		glBufferData(GL_ARRAY_BUFFER, grid.flip(), GL_STATIC_DRAW);
+		MemoryUtil.memFree(grid);
+		instanceBuffer = glGenBuffers();
+
+		vertexArray = glGenVertexArrays();
+		glBindVertexArray(vertexArray);
+		indexBuffer = glGenBuffers();
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+		glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices.flip(), GL_STATIC_DRAW);
+		MemoryUtil.memFree(indices);
+		glBindBuffer(GL_ARRAY_BUFFER, gridBuffer);
+		glEnableVertexAttribArray(0);
+		glVertexAttribPointer(0, 3, GL_UNSIGNED_SHORT, false, SHORTS_PER_VERTEX * Short.BYTES, 0);
+		glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+		glEnableVertexAttribArray(3);
+		glVertexAttribPointer(3, FLOATS_PER_INSTANCE, GL_FLOAT, false, FLOATS_PER_INSTANCE * Float.BYTES, 0);
+		glVertexAttribDivisor(3, 1);
+		glBindVertexArray(0);
+	}
+
+	/**
+	 * Puts a skirt patch that hangs below the border from corner a to corner
+	 * b, where skirts is the index of the first lowered corner.
+	 */
+	private static void putSkirt(ShortBuffer indices, int a, int b, int skirts) {
+		indices.put((short) a).put((short) b).put((short) (skirts + b)).put((short) (skirts + a));
+	}
+
+	/**
+	 * Sets the uniforms that the tessellation shaders need, which don't change
+	 * between frames. The program must be in use.
+	 */
+	public static void setUniforms(int program, int viewportHeight) {
+		glUniform1i(glGetUniformLocation(program, "heightTextures"), HEIGHT_TEXTURE_UNIT);
+		glUniform1i(glGetUniformLocation(program, "normalTextures"), NORMAL_TEXTURE_UNIT);
+		glUniform1f(glGetUniformLocation(program, "heightmapSize"), World.TERRAIN_FRAGMENT_SIZE + 1);
+		glUniform1f(glGetUniformLocation(program, "viewportHeight"), viewportHeight);
+		glUniform1f(glGetUniformLocation(program, "pixelsPerEdge"), PIXELS_PER_EDGE);
+		glUniform1f(glGetUniformLocation(program, "maxTessLevel"), PATCH_TILES);
+	}
+
+	/**
+	 * Draws all the given fragments' patches with a single instanced draw
+	 * call.
+	 */
+	public void draw(Collection<TerrainFragment> fragments) {
+		if (fragments.isEmpty()) return;
+		try (var stack = MemoryStack.stackPush()) {
+			FloatBuffer instances = stack.mallocFloat(fragments.size() * FLOATS_PER_INSTANCE);
+			for (var fragment : fragments) {
+				instances.put(fragment.getIndex().x * World.TERRAIN_FRAGMENT_SIZE)
+						.put(fragment.getIndex().y * World.TERRAIN_FRAGMENT_SIZE)
+						.put(fragment.getTextureLayer())
+						.put(fragment.getSkirtDepth());
+			}
+			glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+			glBufferData(GL_ARRAY_BUFFER, instances.flip(), GL_STREAM_DRAW);
+		}
+		world.getHeightTextures().bind(HEIGHT_TEXTURE_UNIT, NORMAL_TEXTURE_UNIT);
+		glPatchParameteri(GL_PATCH_VERTICES, 4);
+		glBindVertexArray(vertexArray);
+		glDrawElementsInstanced(GL_PATCHES, indexCount, GL_UNSIGNED_SHORT, 0, fragments.size());
+		glBindVertexArray(0);
+	}
+
+	public void free() {
+		glDeleteVertexArrays(vertexArray);
+		glDeleteBuffers(gridBuffer);
+		glDeleteBuffers(indexBuffer);
+		glDeleteBuffers(instanceBuffer);
+	}
+}
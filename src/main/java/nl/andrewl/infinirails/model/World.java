@@ -1,13 +1,18 @@
 package nl.andrewl.infinirails.model;
 
 import lombok.Getter;
+import nl.andrewl.infinirails.FractalNoise;
 import nl.andrewl.infinirails.OpenSimplexNoise;
+import nl.andrewl.infinirails.terrain.CompiledTerrainFunction;
+import nl.andrewl.infinirails.terrain.SamplingMode;
+import nl.andrewl.infinirails.terrain.TerrainFunction;
+import nl.andrewl.infinirails.util.LongHashMap;
 import org.joml.Vector2f;
 import org.joml.Vector2i;
-import org.joml.Vector2ic;
 import org.joml.Vector3f;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Represents a world with some terrain and objects in it.
@@ -27,47 +32,384 @@ public class World {
 	public static final float MOVEMENT_SPEED = 0.1f;
 
 	public static final int RENDER_RADIUS = 5;
+	/**
+	 * The number of rings of fragments around the camera's fragment that are
+	 * loaded and drawn.
+	 */
+	public static final int LOADED_RINGS = 2;
 
+	/**
+	 * Fragments this many rings or more away from the camera's fragment are
+	 * sampled on a coarse lattice, instead of at every vertex.
+	 */
+	public static final int COARSE_TERRAIN_RING = 2;
+	/**
+	 * The largest height error, in meters, that coarse sampling may add.
+	 */
+	public static final float COARSE_TERRAIN_MAX_ERROR = 1.0f;
+	public static final int COARSE_TERRAIN_MAX_STRIDE = 8;
+
+	/**
+	 * The horizontal distance, in meters, from the camera to a fragment's
+	 * center for each step down in its level of detail.
+	 */
+	public static final float LOD_DISTANCE = 120.0f;
+
+	/**
+	 * The shortest time, in nanoseconds, between two summaries of fragment
+	 * uploads, and between two printouts of the decimation total.
+	 */
+	private static final long UPLOAD_REPORT_INTERVAL_NANOS = 1_000_000_000L;
+
+	/**
+	 * The world's fragments, keyed by {@link #getFragmentKey(int, int)}.
+	 */
 	@Getter
-	private Map<Vector2ic, TerrainFragment> terrainFragments;
+	private LongHashMap<TerrainFragment> terrainFragments;
 	private OpenSimplexNoise noise;
 	@Getter
+	private CompiledTerrainFunction terrain;
+	/**
+	 * The sampling mode to use for fragments in each ring around the camera.
+	 */
+	private SamplingMode[] ringSampling;
+	@Getter
 	private Camera camera;
+	/**
+	 * The pool that heightmaps are generated in. The terrain function is
+	 * shared between all of its threads.
+	 */
+	@Getter
+	private ForkJoinPool generationPool;
+	/**
+	 * Builds and decimates fragment meshes for the blocking paths,
+	 * {@link #generateFragments(List, List)} and
+	 * {@link TerrainFragment#updateGpuData()}, which run on the thread with
+	 * the OpenGL context. The fragment loader's workers have their own pooled
+	 * builders and decimators, and never use these.
+	 */
+	@Getter
+	private TerrainMeshBuilder meshBuilder;
+	@Getter
+	private TerrainMeshDecimator meshDecimator;
+	/**
+	 * The total number of triangles in all decimated fragment meshes so far,
+	 * and in the full meshes they replaced.
+	 */
+	private long decimatedTriangles;
+	private long fullTriangles;
+	/**
+	 * Generates fragments that the camera comes near in the background.
+	 */
+	@Getter
+	private TerrainFragmentLoader fragmentLoader;
+	/**
+	 * Evicts fragments when they use too much memory. The budgets are set in
+	 * MiB with the infinirails.terrain.heapBudget and
+	 * infinirails.terrain.gpuBudget system properties.
+	 */
+	@Getter
+	private TerrainResidency residency;
+	/**
+	 * The number of times {@link #updateResidency()} has been called, which is
+	 * once per frame.
+	 */
+	private long frame;
+	/**
+	 * The number of fragments uploaded since the last summary, and when that
+	 * summary was printed.
+	 */
+	private int unreportedUploads;
+	private long lastUploadReportNanos;
+	/**
+	 * When the decimation total was last printed, which is throttled like the
+	 * upload summary.
+	 */
+	private long lastDecimationReportNanos;
+	/**
+	 * The element buffer that all fragment meshes share, since they all have
+	 * the same topology. It's created on first use, on the GL thread.
+	 */
+	private TerrainIndexBuffer terrainIndexBuffer;
+	/**
+	 * GPU storage for fragment meshes, created on first use, on the GL thread.
+	 */
+	private TerrainMeshPool meshPool;
+	@Getter
+	private TerrainRenderMode renderMode;
+	/**
+	 * Fragment heightmaps for {@link TerrainRenderMode#HEIGHT_TEXTURE} and
+	 * {@link TerrainRenderMode#TESSELLATION} rendering, created on first use,
+	 * on the GL thread.
+	 */
+	private HeightTextureArray heightTextures;
 
+	/**
+	 * Creates a world with the render mode from the infinirails.terrain.render
+	 * system property, which is mesh by default.
+	 */
 	public World() {
+		this(TerrainRenderMode.valueOf(System.getProperty("infinirails.terrain.render", "mesh").toUpperCase()));
+	}
+
+	public World(TerrainRenderMode renderMode) {
+		this.renderMode = renderMode;
 		this.camera = new Camera();
 		this.noise = new OpenSimplexNoise(0L);
-		this.terrainFragments = new HashMap<>();
+		// Octaves start at 40m wavelength and 10m amplitude, and are cut off at 1cm of height.
+		var terrainNoise = FractalNoise.of(noise, FractalNoise.Mode.FBM, 8, 1 / 40.0, 10, 2, 0.5f, 0.01f);
+		this.terrain = TerrainFunction.noise(terrainNoise).compile();
+		this.ringSampling = new SamplingMode[RENDER_RADIUS + 1];
+		var coarse = SamplingMode.coarsest(terrain, SamplingMode.Interpolation.BICUBIC, COARSE_TERRAIN_MAX_ERROR, COARSE_TERRAIN_MAX_STRIDE, TERRAIN_FRAGMENT_SIZE);
+		for (int ring = 0; ring < ringSampling.length; ring++) {
+			ringSampling[ring] = ring < COARSE_TERRAIN_RING ? SamplingMode.FULL : coarse;
+		}
+		System.out.printf("Sampling terrain from ring %d onwards with mode %s.\n", COARSE_TERRAIN_RING, coarse);
+		this.terrainFragments = new LongHashMap<>();
+		this.generationPool = ForkJoinPool.commonPool();
+		this.meshBuilder = new TerrainMeshBuilder();
+		this.meshDecimator = new TerrainMeshDecimator();
+		this.fragmentLoader = new TerrainFragmentLoader(this, generationPool);
+		this.residency = new TerrainResidency(
+				budget("infinirails.terrain.heapBudget", TerrainResidency.DEFAULT_HEAP_BUDGET),
+				budget("infinirails.terrain.gpuBudget", TerrainResidency.DEFAULT_GPU_BUDGET)
+		);
+	}
+
+	private static long budget(String property, long defaultBytes) {
+		Long mebibytes = Long.getLong(property);
+		return mebibytes == null ? defaultBytes : mebibytes << 20;
+	}
+
+	/**
+	 * Frees the off-heap memory held by this world. It can't be used after
+	 * this.
+	 */
+	public void free() {
+		fragmentLoader.free();
+		meshBuilder.free();
+		meshDecimator.free();
+		if (terrainIndexBuffer != null) terrainIndexBuffer.free();
+		if (meshPool != null) meshPool.free();
+		if (heightTextures != null) heightTextures.free();
+	}
+
+	/**
+	 * Gets the texture arrays that hold fragment heightmaps, creating them if
+	 * they don't exist yet. This must be called on the thread with the OpenGL
+	 * context.
+	 */
+	public HeightTextureArray getHeightTextures() {
+		if (heightTextures == null) {
+			heightTextures = new HeightTextureArray(TERRAIN_FRAGMENT_SIZE + 1);
+		}
+		return heightTextures;
+	}
+
+	/**
+	 * Gets the shared element buffer for fragment meshes, creating it if it
+	 * doesn't exist yet. This must be called on the thread with the OpenGL
+	 * context.
+	 */
+	public TerrainIndexBuffer getTerrainIndexBuffer() {
+		if (terrainIndexBuffer == null) {
+			terrainIndexBuffer = new TerrainIndexBuffer(TERRAIN_FRAGMENT_SIZE + 1);
+		}
+		return terrainIndexBuffer;
+	}
+
+	/**
+	 * Gets the pool of GPU storage for fragment meshes, creating it if it
+	 * doesn't exist yet. This must be called on the thread with the OpenGL
+	 * context.
+	 */
+	public TerrainMeshPool getMeshPool() {
+		if (meshPool == null) {
+			meshPool = new TerrainMeshPool(TERRAIN_FRAGMENT_SIZE + 1, getTerrainIndexBuffer());
+		}
+		return meshPool;
+	}
+
+	/**
+	 * Records the triangle counts of a new fragment's decimated mesh. Called
+	 * once per fragment, so re-uploading an edited mesh doesn't count it again.
+	 */
+	void recordDecimation(int triangles, int fullTriangles) {
+		this.decimatedTriangles += triangles;
+		this.fullTriangles += fullTriangles;
+	}
+
+	/**
+	 * @return The fraction of triangles that decimation has removed from all
+	 * fragment meshes so far.
+	 */
+	public float getTriangleReductionRatio() {
+		return fullTriangles == 0 ? 0 : 1 - (float) decimatedTriangles / fullTriangles;
+	}
+
+	/**
+	 * Gets the level of detail to draw a fragment at, from its horizontal
+	 * distance to the camera. Level 0 is full detail.
+	 * @see TerrainMeshBuilder#LOD_COUNT
+	 */
+	public int getLodLevel(TerrainFragment fragment) {
+		float distance = fragment.getCenter().distance(camera.getPosition().x, camera.getPosition().z);
+		return Math.min((int) (distance / LOD_DISTANCE), TerrainMeshBuilder.LOD_COUNT - 1);
 	}
 
 	public void updateCameraPosition(Vector3f m) {
 		camera.movePosition(m.mul(MOVEMENT_SPEED));
-		Vector2f cameraHorizontalPos = new Vector2f(camera.getPosition().x, camera.getPosition().z);
-		var fragIndex = getTerrainFragmentIndex(cameraHorizontalPos);
-//		System.out.printf("Pos: [%.2f, %.2f] => Frag: [%d, %d]\n", cameraHorizontalPos.x, cameraHorizontalPos.y, fragIndex.x, fragIndex.y);
-		for (int x = fragIndex.x - 2; x <= fragIndex.x + 2; x++) {
-			for (int y = fragIndex.y - 2; y <= fragIndex.y + 2; y++) {
-				var pos = new Vector2i(x, y);
-				var fragment = terrainFragments.get(pos);
-				if (fragment == null) {
-					generateFragment(pos);
+		// The quadtree renderer generates its own terrain.
+		if (renderMode == TerrainRenderMode.QUADTREE) return;
+		int centerX = getTerrainFragmentCoordinate(camera.getPosition().x);
+		int centerY = getTerrainFragmentCoordinate(camera.getPosition().z);
+		fragmentLoader.cancelOutside(centerX, centerY, LOADED_RINGS);
+		fragmentLoader.prioritize(camera);
+		for (int x = centerX - LOADED_RINGS; x <= centerX + LOADED_RINGS; x++) {
+			for (int y = centerY - LOADED_RINGS; y <= centerY + LOADED_RINGS; y++) {
+				var fragment = getFragment(x, y);
+				var sampling = getSamplingMode(Math.max(Math.abs(x - centerX), Math.abs(y - centerY)));
+				// Regenerate fragments that the camera came close enough to, to need more detail.
+				boolean needed = fragment == null || fragment.getSamplingMode().getStride() > sampling.getStride();
+				if (needed && !fragmentLoader.isPending(x, y, sampling)) {
+					fragmentLoader.request(new Vector2i(x, y), sampling);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Uploads fragments that finished generating in the background, within
+	 * the loader's per-frame time budget. This must be called once per frame,
+	 * on the thread with the OpenGL context. A summary of the uploads is
+	 * printed at most once per {@link #UPLOAD_REPORT_INTERVAL_NANOS}, and only
+	 * if there were any; the loader's getters have the live statistics.
+	 */
+	public void uploadFragments() {
+		unreportedUploads += fragmentLoader.upload(TerrainFragmentLoader.UPLOAD_BUDGET_NANOS);
+		long now = System.nanoTime();
+		if (unreportedUploads == 0 || now - lastUploadReportNanos < UPLOAD_REPORT_INTERVAL_NANOS) return;
+		System.out.printf(
+				"Uploaded %d terrain fragments, with %d queued, %d cancelled so far, and an average wait of %.1f ms.\n",
+				unreportedUploads,
+				fragmentLoader.getQueueDepth(),
+				fragmentLoader.getCancelledCount(),
+				fragmentLoader.getAverageWaitNanos() / 1_000_000.0
+		);
+		var stagingRing = fragmentLoader.getStagingRing();
+		System.out.printf(
+				"Uploads average %.1f MiB/s, with at most %.2f ms in one frame, and %s.\n",
+				fragmentLoader.getUploadThroughput() / (1 << 20),
+				fragmentLoader.getMaxUploadNanos() / 1_000_000.0,
+				stagingRing == null ? "no staging ring" : String.format(
+						"%d of %d meshes staged, with %d KiB of the ring in use",
+						stagingRing.getReservedCount(),
+						stagingRing.getReservedCount() + stagingRing.getFailedCount(),
+						stagingRing.getBytesInUse() >> 10
+				)
+		);
+		reportDecimation(now);
+		unreportedUploads = 0;
+		lastUploadReportNanos = now;
+	}
+
+	/**
+	 * Marks the fragments around the camera as used in this frame, and evicts
+	 * others if the world is over its memory budgets. This must be called once
+	 * per frame, on the thread with the OpenGL context.
+	 */
+	public void updateResidency() {
+		frame++;
+		if (terrainFragments.isEmpty()) return;
+		int centerX = getTerrainFragmentCoordinate(camera.getPosition().x);
+		int centerY = getTerrainFragmentCoordinate(camera.getPosition().z);
+		for (int x = centerX - LOADED_RINGS; x <= centerX + LOADED_RINGS; x++) {
+			for (int y = centerY - LOADED_RINGS; y <= centerY + LOADED_RINGS; y++) {
+				var fragment = getFragment(x, y);
+				if (fragment != null) fragment.markUsed(frame);
+			}
+		}
+		int evicted = residency.evict(terrainFragments, centerX, centerY, LOADED_RINGS, camera.getPosition().x, camera.getPosition().z);
+		if (evicted > 0) {
+			System.out.printf(
+					"Evicted %d terrain fragments, leaving %d resident with %.1f MiB of heap and %.1f MiB of GPU memory.\n",
+					evicted,
+					terrainFragments.size(),
+					residency.getResidentHeapBytes() / (double) (1 << 20),
+					residency.getResidentGpuBytes() / (double) (1 << 20)
+			);
+		}
+	}
+
+	/**
+	 * Adds a fragment to the world, deleting any fragment that it replaces.
+	 */
+	void putFragment(TerrainFragment fragment) {
+		var old = terrainFragments.put(fragment.getKey(), fragment);
+		residency.added(fragment);
+		if (old != null) {
+			residency.removed(old);
+			old.delete();
+		}
+	}
+
 	public void generateFragment(Vector2i index) {
-		terrainFragments.put(index, new TerrainFragment(this, index, noise));
+		generateFragment(index, SamplingMode.FULL);
+	}
+
+	public void generateFragment(Vector2i index, SamplingMode sampling) {
+		generateFragments(List.of(index), List.of(sampling));
+	}
+
+	/**
+	 * Generates several fragments at once, replacing any existing ones. The
+	 * heightmaps are generated in parallel, and then the meshes are built on
+	 * the calling thread, which must have the OpenGL context, so this blocks
+	 * until they're all done.
+	 * @see #updateCameraPosition(Vector3f) for generating fragments in the
+	 * background.
+	 */
+	public void generateFragments(List<Vector2i> indices, List<SamplingMode> samplingModes) {
+		for (var heightmap : Heightmap.generateAll(terrain, indices, samplingModes, generationPool)) {
+			putFragment(new TerrainFragment(this, heightmap));
+		}
+		reportDecimation(System.nanoTime());
+	}
+
+	/**
+	 * Prints how much decimation has removed so far, in mesh mode, unless it
+	 * was already printed in the last {@link #UPLOAD_REPORT_INTERVAL_NANOS}.
+	 */
+	private void reportDecimation(long now) {
+		if (renderMode != TerrainRenderMode.MESH || now - lastDecimationReportNanos < UPLOAD_REPORT_INTERVAL_NANOS) return;
+		System.out.printf("Decimation has removed %.1f%% of terrain mesh triangles so far.\n", getTriangleReductionRatio() * 100);
+		lastDecimationReportNanos = now;
+	}
+
+	/**
+	 * Gets the sampling mode for fragments in the given ring around the
+	 * camera's fragment, where ring 0 is the camera's fragment itself.
+	 */
+	public SamplingMode getSamplingMode(int ring) {
+		return ringSampling[Math.min(ring, ringSampling.length - 1)];
+	}
+
+	/**
+	 * Sets the sampling mode for fragments in the given ring. Fragments that
+	 * were already generated keep their mode until they're regenerated.
+	 */
+	public void setSamplingMode(int ring, SamplingMode sampling) {
+		ringSampling[ring] = sampling;
 	}
 
 	public Collection<TerrainFragment> getFragmentsNearPlayer() {
-		Vector2f cameraHorizontalPos = new Vector2f(camera.getPosition().x, camera.getPosition().z);
-		var fragIndex = getTerrainFragmentIndex(cameraHorizontalPos);
-		List<TerrainFragment> frags = new ArrayList<>(25);
-		for (int x = fragIndex.x - 2; x <= fragIndex.x + 2; x++) {
-			for (int y = fragIndex.y - 2; y <= fragIndex.y + 2; y++) {
-				var pos = new Vector2i(x, y);
-				var fragment = terrainFragments.get(pos);
+		int centerX = getTerrainFragmentCoordinate(camera.getPosition().x);
+		int centerY = getTerrainFragmentCoordinate(camera.getPosition().z);
+		int side = 2 * LOADED_RINGS + 1;
+		List<TerrainFragment> frags = new ArrayList<>(side * side);
+		for (int x = centerX - LOADED_RINGS; x <= centerX + LOADED_RINGS; x++) {
+			for (int y = centerY - LOADED_RINGS; y <= centerY + LOADED_RINGS; y++) {
+				var fragment = getFragment(x, y);
 				if (fragment != null) {
 					frags.add(fragment);
 				}
@@ -76,18 +418,35 @@ public class World {
 		return frags;
 	}
 
+	/**
+	 * @return The fragment at the given index, or null if there isn't one.
+	 */
+	public TerrainFragment getFragment(int x, int y) {
+		return terrainFragments.get(getFragmentKey(x, y));
+	}
+
 	public TerrainFragment getFragmentAt(Vector2f c) {
-		var fragmentIndex = getTerrainFragmentIndex(c);
-		return terrainFragments.get(fragmentIndex);
+		return getFragment(getTerrainFragmentCoordinate(c.x), getTerrainFragmentCoordinate(c.y));
+	}
+
+	/**
+	 * Packs a fragment index into a single long, with x in the high half and
+	 * y in the low half, for use as a key in {@link #getTerrainFragments()}.
+	 */
+	public static long getFragmentKey(int x, int y) {
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Gets the index along one axis of the fragment that contains the given
+	 * world coordinate. This rounds down, so that fragment -1 covers
+	 * [-SIZE, 0), including -SIZE itself.
+	 */
+	public static int getTerrainFragmentCoordinate(float c) {
+		return (int) Math.floor(c / TERRAIN_FRAGMENT_SIZE);
 	}
 
 	public static Vector2i getTerrainFragmentIndex(Vector2f p) {
-		int px = (int) p.x;
-		int py = (int) p.y;
-		int x = px / 100;
-		if (px < 0) x--;
-		int y = py / 100;
-		if (py < 0) y--;
-		return new Vector2i(x, y);
+		return new Vector2i(getTerrainFragmentCoordinate(p.x), getTerrainFragmentCoordinate(p.y));
 	}
 }
@@ -0,0 +1,577 @@
+package nl.andrewl.infinirails.terrain;
+
+import nl.andrewl.infinirails.FractalNoise;
+
+import java.io.Serial;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A {@link TerrainFunction} compiled into a flat list of instructions, each of
+ * which evaluates one node of the function over a whole grid at a time.
+ * <p>
+ *     Each instruction writes its grid of values, and optionally partial
+ *     derivatives, into its own register. Registers and other working memory
+ *     are kept per thread and reused between evaluations, so evaluating grids
+ *     of the same size doesn't allocate, and compiled functions may be shared
+ *     between threads.
+ * </p>
+ */
+public final class CompiledTerrainFunction {
+	/**
+	 * The number of grid rows that each parallel task evaluates. It's fixed,
+	 * instead of depending on the pool's parallelism, so that the bands and
+	 * thus the results are the same no matter how many threads there are.
+	 */
+	private static final int PARALLEL_BAND_ROWS = 8;
+
+	private final Instruction[] instructions;
+	private final int resultRegister;
+	private final ThreadLocal<Workspace> workspaces;
+
+	CompiledTerrainFunction(Instruction[] instructions, int resultRegister, int samplerCount) {
+		this.instructions = instructions;
+		this.resultRegister = resultRegister;
+		this.workspaces = ThreadLocal.withInitial(() -> new Workspace(instructions, samplerCount));
+	}
+
+	/**
+	 * @return The number of grid passes that this function makes, after
+	 * folding constants and fusing operators.
+	 */
+	public int getInstructionCount() {
+		return instructions.length;
+	}
+
+	/**
+	 * Evaluates the function over a regular grid. Sample (i, j) is taken at
+	 * (originX + j * step, originY + i * step) and written to
+	 * out[offset + i * width + j].
+	 */
+	public void evalGrid(float[] out, int offset, double originX, double originY, double step, int width, int height) {
+		Workspace ws = run(originX, originY, step, step, width, height, false);
+		System.arraycopy(ws.values[resultRegister], 0, out, offset, width * height);
+	}
+
+	/**
+	 * Evaluates the function and its partial derivatives with respect to x
+	 * and y over a regular grid, laid out the same way as
+	 * {@link #evalGrid(float[], int, double, double, double, int, int)}.
+	 */
+	public void evalGridWithDerivatives(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height) {
+		evalGridWithDerivatives(out, outDx, outDy, offset, originX, originY, step, step, width, height);
+	}
+
+	/**
+	 * Same as the above, but using as many noise octaves as samples that are
+	 * detailStep apart can resolve, instead of step. Grids with different
+	 * steps but the same detail step agree exactly wherever their samples
+	 * coincide.
+	 */
+	public void evalGridWithDerivatives(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, double detailStep, int width, int height) {
+		Workspace ws = run(originX, originY, step, detailStep, width, height, true);
+		int n = width * height;
+		System.arraycopy(ws.values[resultRegister], 0, out, offset, n);
+		System.arraycopy(ws.dxs[resultRegister], 0, outDx, offset, n);
+		System.arraycopy(ws.dys[resultRegister], 0, outDy, offset, n);
+	}
+
+	/**
+	 * Same as the above, but evaluating the function only on the lattice of
+	 * the given sampling mode, and interpolating the rest. For bilinear
+	 * sampling, the derivatives are interpolated separately; for bicubic
+	 * sampling, they're the exact derivatives of the interpolated surface.
+	 * <p>
+	 *     The outermost rows and columns of the grid are always evaluated at
+	 *     full resolution, and the lattice uses as many noise octaves as full
+	 *     sampling would. That way a grid agrees exactly with its neighbours
+	 *     on their shared edges, whatever modes they're sampled with, so
+	 *     coarse terrain never opens seams next to full terrain.
+	 * </p>
+	 */
+	public void evalGridWithDerivatives(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height, SamplingMode sampling) {
+		evalRows(out, outDx, outDy, offset, originX, originY, step, width, height, sampling, 0, height);
+	}
+
+	/**
+	 * Evaluates rows [firstRow, firstRow + rows) of a grid with the given
+	 * sampling mode, writing row firstRow to out[offset]. Which rows are the
+	 * grid's edges depends only on the whole grid's height, so the result is
+	 * the same however the grid is split into rows.
+	 */
+	private void evalRows(float[] out, float[] outDx, float[] outDy, int offset, double originX, double gridOriginY, double step, int width, int height, SamplingMode sampling, int firstRow, int rows) {
+		double originY = gridOriginY + firstRow * step;
+		if (sampling.getStride() == 1) {
+			evalGridWithDerivatives(out, outDx, outDy, offset, originX, originY, step, width, rows);
+			return;
+		}
+		double spacing = step * sampling.getStride();
+		double latticeX = Math.floor(originX / spacing) * spacing;
+		double latticeY = Math.floor(originY / spacing) * spacing;
+		int latticeWidth = Math.max(2, (int) Math.ceil((originX + (width - 1) * step - latticeX) / spacing) + 1);
+		int latticeHeight = Math.max(2, (int) Math.ceil((originY + (rows - 1) * step - latticeY) / spacing) + 1);
+		Workspace ws = run(latticeX, latticeY, spacing, step, latticeWidth, latticeHeight, true);
+		float[] v = ws.values[resultRegister], vDx = ws.dxs[resultRegister], vDy = ws.dys[resultRegister];
+		boolean bicubic = sampling.getInterpolation() == SamplingMode.Interpolation.BICUBIC;
+		float s = (float) spacing;
+		for (int i = 0; i < rows; i++) {
+			double fy = (originY + i * step - latticeY) / spacing;
+			int cy = Math.min((int) fy, latticeHeight - 2);
+			float ty = (float) (fy - cy);
+			int rowOffset = offset + i * width;
+			for (int j = 0; j < width; j++) {
+				double fx = (originX + j * step - latticeX) / spacing;
+				int cx = Math.min((int) fx, latticeWidth - 2);
+				float tx = (float) (fx - cx);
+				int k = cy * latticeWidth + cx;
+				if (bicubic) {
+					// Cubic Hermite basis functions, and their derivatives, for the near (0) and far (1) lattice points.
+					float hx0 = (2 * tx - 3) * tx * tx + 1, hx1 = 1 - hx0, gx0 = ((tx - 2) * tx + 1) * tx, gx1 = (tx - 1) * tx * tx;
+					float dhx0 = 6 * tx * (tx - 1), dhx1 = -dhx0, dgx0 = (3 * tx - 4) * tx + 1, dgx1 = (3 * tx - 2) * tx;
+					float hy0 = (2 * ty - 3) * ty * ty + 1, hy1 = 1 - hy0, gy0 = ((ty - 2) * ty + 1) * ty, gy1 = (ty - 1) * ty * ty;
+					float dhy0 = 6 * ty * (ty - 1), dhy1 = -dhy0, dgy0 = (3 * ty - 4) * ty + 1, dgy1 = (3 * ty - 2) * ty;
+					float value = 0, dx = 0, dy = 0;
+					for (int c = 0; c < 4; c++) {
+						int a = c & 1, b = c >> 1;
+						int kc = k + a + b * latticeWidth;
+						float hx = a == 0 ? hx0 : hx1, gx = a == 0 ? gx0 : gx1, dhx = a == 0 ? dhx0 : dhx1, dgx = a == 0 ? dgx0 : dgx1;
+						float hy = b == 0 ? hy0 : hy1, gy = b == 0 ? gy0 : gy1, dhy = b == 0 ? dhy0 : dhy1, dgy = b == 0 ? dgy0 : dgy1;
+						float f = v[kc], tangentX = vDx[kc] * s, tangentY = vDy[kc] * s;
+						value += f * hx * hy + tangentX * gx * hy + tangentY * hx * gy;
+						dx += f * dhx * hy + tangentX * dgx * hy + tangentY * dhx * gy;
+						dy += f * hx * dhy + tangentX * gx * dhy + tangentY * hx * dgy;
+					}
+					out[rowOffset + j] = value;
+					outDx[rowOffset + j] = dx / s;
+					outDy[rowOffset + j] = dy / s;
+				} else {
+					out[rowOffset + j] = bilinear(v, k, latticeWidth, tx, ty);
+					outDx[rowOffset + j] = bilinear(vDx, k, latticeWidth, tx, ty);
+					outDy[rowOffset + j] = bilinear(vDy, k, latticeWidth, tx, ty);
+				}
+			}
+		}
+
+		// Replace the grid's edges with full resolution samples. This reuses the registers, so it must come last.
+		if (firstRow == 0) {
+			evalEdge(out, outDx, outDy, offset, 1, originX, originY, step, width, 1);
+		}
+		if (firstRow + rows == height) {
+			evalEdge(out, outDx, outDy, offset + (rows - 1) * width, 1, originX, originY + (rows - 1) * step, step, width, 1);
+		}
+		evalEdge(out, outDx, outDy, offset, width, originX, originY, step, 1, rows);
+		evalEdge(out, outDx, outDy, offset + width - 1, width, originX + (width - 1) * step, originY, step, 1, rows);
+	}
+
+	/**
+	 * Evaluates a single row or column at full resolution, writing sample k
+	 * to out[offset + k * stride].
+	 */
+	private void evalEdge(float[] out, float[] outDx, float[] outDy, int offset, int stride, double originX, double originY, double step, int width, int height) {
+		Workspace ws = run(originX, originY, step, step, width, height, true);
+		float[] v = ws.values[resultRegister], vDx = ws.dxs[resultRegister], vDy = ws.dys[resultRegister];
+		for (int k = 0; k < width * height; k++) {
+			out[offset + k * stride] = v[k];
+			outDx[offset + k * stride] = vDx[k];
+			outDy[offset + k * stride] = vDy[k];
+		}
+	}
+
+	/**
+	 * Same as the above, but splitting the grid into bands of rows which are
+	 * evaluated in parallel in the given pool. The output is bit-identical
+	 * for any number of threads. This may be called from a task that is
+	 * already running in the pool, for example to generate several grids at
+	 * once.
+	 */
+	public void evalGridWithDerivatives(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height, SamplingMode sampling, ForkJoinPool pool) {
+		int bands = (height + PARALLEL_BAND_ROWS - 1) / PARALLEL_BAND_ROWS;
+		var task = new BandTask(out, outDx, outDy, offset, originX, originY, step, width, height, sampling, 0, bands);
+		if (ForkJoinTask.getPool() == pool) {
+			task.invoke();
+		} else {
+			pool.invoke(task);
+		}
+	}
+
+	/**
+	 * Evaluates the bands in [first, last) by recursively splitting them.
+	 */
+	private final class BandTask extends RecursiveAction {
+		@Serial
+		private static final long serialVersionUID = 1L;
+
+		private final float[] out, outDx, outDy;
+		private final int offset;
+		private final double originX, originY, step;
+		private final int width, height;
+		private final SamplingMode sampling;
+		private final int first, last;
+
+		private BandTask(float[] out, float[] outDx, float[] outDy, int offset, double originX, double originY, double step, int width, int height, SamplingMode sampling, int first, int last) {
+			this.out = out;
+			this.outDx = outDx;
+			this.outDy = outDy;
+			this.offset = offset;
+			this.originX = originX;
+			this.originY = originY;
+			this.step = step;
+			this.width = width;
+			this.height = height;
+			this.sampling = sampling;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first > 1) {
+				int mid = (first + last) >>> 1;
+				invokeAll(
+						new BandTask(out, outDx, outDy, offset, originX, originY, step, width, height, sampling, first, mid),
+						new BandTask(out, outDx, outDy, offset, originX, originY, step, width, height, sampling, mid, last)
+				);
+				return;
+			}
+			int row = first * PARALLEL_BAND_ROWS;
+			int rows = Math.min(PARALLEL_BAND_ROWS, height - row);
+			evalRows(out, outDx, outDy, offset + row * width, originX, originY, step, width, height, sampling, row, rows);
+		}
+	}
+
+	private static float bilinear(float[] lattice, int k, int latticeWidth, float tx, float ty) {
+		float top = lattice[k] + tx * (lattice[k + 1] - lattice[k]);
+		float bottom = lattice[k + latticeWidth] + tx * (lattice[k + latticeWidth + 1] - lattice[k + latticeWidth]);
+		return top + ty * (bottom - top);
+	}
+
+	private Workspace run(double originX, double originY, double step, double detailStep, int width, int height, boolean derivatives) {
+		Workspace ws = workspaces.get();
+		ws.ensureCapacity(width * height);
+		ws.detailStep = detailStep;
+		for (var instruction : instructions) {
+			instruction.run(ws, originX, originY, step, width, height, derivatives);
+		}
+		return ws;
+	}
+
+	static float applyBinary(TerrainFunction.BinaryOp op, float a, float b) {
+		return switch (op) {
+			case ADD -> a + b;
+			case SUBTRACT -> a - b;
+			case MULTIPLY -> a * b;
+			case MIN -> Math.min(a, b);
+			case MAX -> Math.max(a, b);
+		};
+	}
+
+	static float smoothstep(float control, float threshold, float falloff) {
+		float t = (control - (threshold - falloff)) / (2 * falloff);
+		if (t <= 0) return 0;
+		if (t >= 1) return 1;
+		return t * t * (3 - 2 * t);
+	}
+
+	/**
+	 * Per-thread working memory: one register of values and derivatives for
+	 * each instruction, plus scratch space for the noise sources and chains.
+	 */
+	private static final class Workspace {
+		final float[][] values, dxs, dys;
+		final float[][] noiseScratch = new float[3][];
+		/**
+		 * Each sample's accumulated slope through a chain of stages.
+		 */
+		float[] slopes;
+		final FractalNoise.Sampler[] samplers;
+		final double[] point = new double[3];
+		int capacity = -1;
+		/**
+		 * The sample spacing that noise octaves are chosen for in the current
+		 * run, which is usually its step.
+		 */
+		double detailStep;
+
+		Workspace(Instruction[] instructions, int samplerCount) {
+			values = new float[instructions.length][];
+			dxs = new float[instructions.length][];
+			dys = new float[instructions.length][];
+			samplers = new FractalNoise.Sampler[samplerCount];
+			for (var instruction : instructions) {
+				if (instruction instanceof WarpedSample w) {
+					samplers[w.samplerIndex] = w.noise.sampler();
+				}
+			}
+		}
+
+		void ensureCapacity(int n) {
+			if (n <= capacity) return;
+			for (int r = 0; r < values.length; r++) {
+				values[r] = new float[n];
+				dxs[r] = new float[n];
+				dys[r] = new float[n];
+			}
+			for (int s = 0; s < noiseScratch.length; s++) {
+				noiseScratch[s] = new float[n];
+			}
+			slopes = new float[n];
+			capacity = n;
+		}
+	}
+
+	abstract static class Instruction {
+		final int target;
+
+		Instruction(int target) {
+			this.target = target;
+		}
+
+		abstract void run(Workspace ws, double originX, double originY, double step, int width, int height, boolean derivatives);
+	}
+
+	static final class Fill extends Instruction {
+		final float value;
+
+		Fill(int target, float value) {
+			super(target);
+			this.value = value;
+		}
+
+		@Override
+		void run(Workspace ws, double originX, double originY, double step, int width, int height, boolean derivatives) {
+			int n = width * height;
+			Arrays.fill(ws.values[target], 0, n, value);
+			if (derivatives) {
+				Arrays.fill(ws.dxs[target], 0, n, 0);
+				Arrays.fill(ws.dys[target], 0, n, 0);
+			}
+		}
+	}
+
+	static final class Sample extends Instruction {
+		final FractalNoise noise;
+
+		Sample(int target, FractalNoise noise) {
+			super(target);
+			this.noise = noise;
+		}
+
+		@Override
+		void run(Workspace ws, double originX, double originY, double step, int width, int height, boolean derivatives) {
+			int octaves = noise.octavesForStep(ws.detailStep);
+			if (derivatives) {
+				noise.evalGridWithDerivatives(ws.values[target], ws.dxs[target], ws.dys[target], 0, originX, originY, step, width, height, octaves, ws.noiseScratch);
+			} else {
+				noise.evalGrid(ws.values[target], 0, originX, originY, step, width, height, octaves, ws.noiseScratch);
+			}
+		}
+	}
+
+	static final class WarpedSample extends Instruction {
+		final FractalNoise noise;
+		final int warpX, warpY;
+		final float strength;
+		final int samplerIndex;
+
+		WarpedSample(int target, FractalNoise noise, int warpX, int warpY, float strength, int samplerIndex) {
+			super(target);
+			this.noise = noise;
+			this.warpX = warpX;
+			this.warpY = warpY;
+			this.strength = strength;
+			this.samplerIndex = samplerIndex;
+		}
+
+		@Override
+		void run(Workspace ws, double originX, double originY, double step, int width, int height, boolean derivatives) {
+			FractalNoise.Sampler sampler = ws.samplers[samplerIndex];
+			double[] p = ws.point;
+			int octaves = noise.octavesForStep(ws.detailStep);
+			float[] out = ws.values[target], outDx = ws.dxs[target], outDy = ws.dys[target];
+			float[] wx = ws.values[warpX], wy = ws.values[warpY];
+			float[] wxDx = ws.dxs[warpX], wxDy = ws.dys[warpX];
+			float[] wyDx = ws.dxs[warpY], wyDy = ws.dys[warpY];
+			float s = strength;
+			for (int i = 0; i < height; i++) {
+				double y = originY + i * step;
+				for (int j = 0; j < width; j++) {
+					int k = i * width + j;
+					sampler.evalWithDerivatives(originX + j * step + s * wx[k], y + s * wy[k], octaves, p);
+					out[k] = (float) p[0];
+					if (derivatives) {
+						// Chain rule through the warped coordinates (x + s * wx, y + s * wy).
+						float sx = (float) p[1], sy = (float) p[2];
+						outDx[k] = sx * (1 + s * wxDx[k]) + sy * s * wyDx[k];
+						outDy[k] = sx * s * wxDy[k] + sy * (1 + s * wyDy[k]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A fused chain of per-sample stages, each of which is run as its own
+	 * loop over the whole grid, so that no stage is dispatched per sample.
+	 */
+	static final class Chain extends Instruction {
+		final int input;
+		final Stage[] stages;
+
+		Chain(int target, int input, Stage[] stages) {
+			super(target);
+			this.input = input;
+			this.stages = stages;
+		}
+
+		@Override
+		void run(Workspace ws, double originX, double originY, double step, int width, int height, boolean derivatives) {
+			int n = width * height;
+			float[] in = ws.values[input], out = ws.values[target];
+			System.arraycopy(in, 0, out, 0, n);
+			if (!derivatives) {
+				for (var stage : stages) stage.apply(out, n);
+				return;
+			}
+			float[] slopes = ws.slopes;
+			Arrays.fill(slopes, 0, n, 1);
+			for (var stage : stages) stage.apply(out, slopes, n);
+			float[] inDx = ws.dxs[input], inDy = ws.dys[input];
+			float[] outDx = ws.dxs[target], outDy = ws.dys[target];
+			for (int k = 0; k < n; k++) {
+				outDx[k] = inDx[k] * slopes[k];
+				outDy[k] = inDy[k] * slopes[k];
+			}
+		}
+	}
+
+	/**
+	 * Combines two registers with a binary operator, which is switched on
+	 * once per grid rather than once per sample.
+	 */
+	static final class Combine extends Instruction {
+		final TerrainFunction.BinaryOp op;
+		final int a, b;
+
+		Combine(int target, TerrainFunction.BinaryOp op, int a, int b) {
+			super(target);
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		void run(Workspace ws, double originX, double originY, double step, int width, int height, boolean derivatives) {
+			int n = width * height;
+			float[] va = ws.values[a], vb = ws.values[b], out = ws.values[target];
+			if (!derivatives) {
+				switch (op) {
+					case ADD -> {
+						for (int k = 0; k < n; k++) out[k] = va[k] + vb[k];
+					}
+					case SUBTRACT -> {
+						for (int k = 0; k < n; k++) out[k] = va[k] - vb[k];
+					}
+					case MULTIPLY -> {
+						for (int k = 0; k < n; k++) out[k] = va[k] * vb[k];
+					}
+					case MIN -> {
+						for (int k = 0; k < n; k++) out[k] = Math.min(va[k], vb[k]);
+					}
+					case MAX -> {
+						for (int k = 0; k < n; k++) out[k] = Math.max(va[k], vb[k]);
+					}
+				}
+				return;
+			}
+			float[] aDx = ws.dxs[a], aDy = ws.dys[a], bDx = ws.dxs[b], bDy = ws.dys[b];
+			float[] outDx = ws.dxs[target], outDy = ws.dys[target];
+			switch (op) {
+				case ADD -> {
+					for (int k = 0; k < n; k++) {
+						out[k] = va[k] + vb[k];
+						outDx[k] = aDx[k] + bDx[k];
+						outDy[k] = aDy[k] + bDy[k];
+					}
+				}
+				case SUBTRACT -> {
+					for (int k = 0; k < n; k++) {
+						out[k] = va[k] - vb[k];
+						outDx[k] = aDx[k] - bDx[k];
+						outDy[k] = aDy[k] - bDy[k];
+					}
+				}
+				case MULTIPLY -> {
+					for (int k = 0; k < n; k++) {
+						float x = va[k], y = vb[k];
+						out[k] = x * y;
+						outDx[k] = aDx[k] * y + x * bDx[k];
+						outDy[k] = aDy[k] * y + x * bDy[k];
+					}
+				}
+				case MIN -> {
+					for (int k = 0; k < n; k++) {
+						float x = va[k], y = vb[k];
+						boolean pickA = x <= y;
+						out[k] = Math.min(x, y);
+						outDx[k] = pickA ? aDx[k] : bDx[k];
+						outDy[k] = pickA ? aDy[k] : bDy[k];
+					}
+				}
+				case MAX -> {
+					for (int k = 0; k < n; k++) {
+						float x = va[k], y = vb[k];
+						boolean pickA = x >= y;
+						out[k] = Math.max(x, y);
+						outDx[k] = pickA ? aDx[k] : bDx[k];
+						outDy[k] = pickA ? aDy[k] : bDy[k];
+					}
+				}
+			}
+		}
+	}
+
+	static final class Blend extends Instruction {
+		final int control, low, high;
+		final float threshold, falloff;
+
+		Blend(int target, int control, int low, int high, float threshold, float falloff) {
+			super(target);
+			this.control = control;
+			this.low = low;
+			this.high = high;
+			this.threshold = threshold;
+			this.falloff = falloff;
+		}
+
+		@Override
+		void run(Workspace ws, double originX, double originY, double step, int width, int height, boolean derivatives) {
+			int n = width * height;
+			float[] c = ws.values[control], lo = ws.values[low], hi = ws.values[high], out = ws.values[target];
+			float[] cDx = ws.dxs[control], cDy = ws.dys[control];
+			float[] loDx = ws.dxs[low], loDy = ws.dys[low], hiDx = ws.dxs[high], hiDy = ws.dys[high];
+			float[] outDx = ws.dxs[target], outDy = ws.dys[target];
+			float start = threshold - falloff;
+			float width2 = 2 * falloff;
+			for (int k = 0; k < n; k++) {
+				float t = (c[k] - start) / width2;
+				float s, ds;
+				if (t <= 0) {
+					s = 0; ds = 0;
+				} else if (t >= 1) {
+					s = 1; ds = 0;
+				} else {
+					s = t * t * (3 - 2 * t);
+					ds = 6 * t * (1 - t) / width2;
+				}
+				float diff = hi[k] - lo[k];
+				out[k] = lo[k] + s * diff;
+				if (derivatives) {
+					outDx[k] = loDx[k] + s * (hiDx[k] - loDx[k]) + ds * diff * cDx[k];
+					outDy[k] = loDy[k] + s * (hiDy[k] - loDy[k]) + ds * diff * cDy[k];
+				}
+			}
+		}
+	}
+}
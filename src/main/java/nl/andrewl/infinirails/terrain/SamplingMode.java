@@ -0,0 +1,107 @@
+package nl.andrewl.infinirails.terrain;
+
+import lombok.Getter;
+
+/**
+ * Describes how densely a terrain function is evaluated for a grid. A mode
+ * with a stride of s evaluates the function only on a lattice of every s-th
+ * sample, aligned to multiples of s samples in world space, and interpolates
+ * the samples in between. Because the lattice is aligned globally, two grids
+ * which share an edge and use the same mode agree exactly on it.
+ */
+@Getter
+public final class SamplingMode {
+	public enum Interpolation {
+		/**
+		 * Bilinear interpolation of heights, and of the derivatives
+		 * separately, so normals stay smooth across lattice cells.
+		 */
+		BILINEAR,
+		/**
+		 * Bicubic Hermite interpolation, using the exact derivatives at each
+		 * lattice point as tangents. This gives continuous slopes, and much
+		 * lower error than bilinear for the same stride.
+		 */
+		BICUBIC
+	}
+
+	/**
+	 * Evaluates every sample.
+	 */
+	public static final SamplingMode FULL = new SamplingMode(1, Interpolation.BILINEAR);
+
+	/**
+	 * Origins of the regions that {@link #measureError(CompiledTerrainFunction, SamplingMode, int)}
+	 * compares, spread out so that they see different terrain.
+	 */
+	private static final double[] PROBE_ORIGINS = {0, 0, 1300, -700, -4100, 2600, 9800, 12300};
+
+	private final int stride;
+	private final Interpolation interpolation;
+
+	private SamplingMode(int stride, Interpolation interpolation) {
+		this.stride = stride;
+		this.interpolation = interpolation;
+	}
+
+	public static SamplingMode of(int stride, Interpolation interpolation) {
+		if (stride < 1) throw new IllegalArgumentException("Stride must be at least 1.");
+		if (stride == 1) return FULL;
+		return new SamplingMode(stride, interpolation);
+	}
+
+	/**
+	 * Measures the largest height difference between sampling a function
+	 * fully and sampling it with the given mode, over a few probe regions of
+	 * size by size units, sampled once per unit.
+	 * <p>
+	 *     This is an empirical estimate, not a bound: it only sees the terrain
+	 *     in {@link #PROBE_ORIGINS}, and terrain elsewhere may be rougher and
+	 *     interpolate worse. Grid edges are always sampled fully, so the error
+	 *     only ever affects the inside of a grid, and never opens seams.
+	 * </p>
+	 */
+	public static float measureError(CompiledTerrainFunction terrain, SamplingMode mode, int size) {
+		int n = (size + 1) * (size + 1);
+		float[] full = new float[n], coarse = new float[n], dx = new float[n], dy = new float[n];
+		float error = 0;
+		for (int p = 0; p < PROBE_ORIGINS.length; p += 2) {
+			double x = PROBE_ORIGINS[p], y = PROBE_ORIGINS[p + 1];
+			terrain.evalGrid(full, 0, x, y, 1, size + 1, size + 1);
+			terrain.evalGridWithDerivatives(coarse, dx, dy, 0, x, y, 1, size + 1, size + 1, mode);
+			for (int i = 0; i < n; i++) {
+				error = Math.max(error, Math.abs(full[i] - coarse[i]));
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * Finds the coarsest power-of-two stride, up to the given maximum, whose
+	 * measured error for the given function stays within the bound.
+	 * @param terrain The function that will be sampled.
+	 * @param interpolation The interpolation to use between lattice points.
+	 * @param maxError The largest acceptable height error, as measured by
+	 *                 {@link #measureError(CompiledTerrainFunction, SamplingMode, int)}.
+	 *                 Since that's only an estimate, the chosen mode may
+	 *                 exceed it in places.
+	 * @param maxStride The largest stride to consider.
+	 * @param size The size of the grids that will be sampled.
+	 * @return The coarsest acceptable mode, which is {@link #FULL} if no
+	 * coarse mode is accurate enough.
+	 */
+	public static SamplingMode coarsest(CompiledTerrainFunction terrain, Interpolation interpolation, float maxError, int maxStride, int size) {
+		SamplingMode best = FULL;
+		for (int stride = 2; stride <= maxStride; stride *= 2) {
+			var mode = of(stride, interpolation);
+			if (measureError(terrain, mode, size) > maxError) break;
+			best = mode;
+		}
+		return best;
+	}
+
+	@Override
+	public String toString() {
+		return stride == 1 ? "full" : interpolation.name().toLowerCase() + " x" + stride;
+	}
+}
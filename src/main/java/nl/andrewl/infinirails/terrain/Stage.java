@@ -0,0 +1,127 @@
+package nl.andrewl.infinirails.terrain;
+
+/**
+ * A single per-sample operation, which maps one value to another. Chains of
+ * stages are fused by the compiler into one instruction, which runs each
+ * stage over the whole grid in turn.
+ */
+final class Stage {
+	enum Kind {SCALE, OFFSET, CLAMP, CURVE}
+
+	final Kind kind;
+	final float a, b;
+	final float[] inputs, outputs;
+
+	private Stage(Kind kind, float a, float b, float[] inputs, float[] outputs) {
+		this.kind = kind;
+		this.a = a;
+		this.b = b;
+		this.inputs = inputs;
+		this.outputs = outputs;
+	}
+
+	static Stage scale(float factor) {
+		return new Stage(Kind.SCALE, factor, 0, null, null);
+	}
+
+	static Stage offset(float amount) {
+		return new Stage(Kind.OFFSET, amount, 0, null, null);
+	}
+
+	static Stage clamp(float min, float max) {
+		return new Stage(Kind.CLAMP, min, max, null, null);
+	}
+
+	static Stage curve(float[] inputs, float[] outputs) {
+		return new Stage(Kind.CURVE, 0, 0, inputs, outputs);
+	}
+
+	float apply(float v) {
+		return switch (kind) {
+			case SCALE -> v * a;
+			case OFFSET -> v + a;
+			case CLAMP -> Math.max(a, Math.min(b, v));
+			case CURVE -> curve(v);
+		};
+	}
+
+	/**
+	 * Applies this stage to the first n values, in place, with one tight loop
+	 * for the whole array.
+	 */
+	void apply(float[] values, int n) {
+		switch (kind) {
+			case SCALE -> {
+				for (int k = 0; k < n; k++) values[k] *= a;
+			}
+			case OFFSET -> {
+				for (int k = 0; k < n; k++) values[k] += a;
+			}
+			case CLAMP -> {
+				for (int k = 0; k < n; k++) values[k] = Math.max(a, Math.min(b, values[k]));
+			}
+			case CURVE -> {
+				for (int k = 0; k < n; k++) values[k] = curve(values[k]);
+			}
+		}
+	}
+
+	/**
+	 * Same as the above, but first multiplies each of the first n slopes by
+	 * this stage's slope at the corresponding value, so that a chain of
+	 * stages accumulates the derivative of its output with respect to its
+	 * input.
+	 */
+	void apply(float[] values, float[] slopes, int n) {
+		switch (kind) {
+			case SCALE -> {
+				for (int k = 0; k < n; k++) {
+					slopes[k] *= a;
+					values[k] *= a;
+				}
+			}
+			case OFFSET -> {
+				for (int k = 0; k < n; k++) values[k] += a;
+			}
+			case CLAMP -> {
+				for (int k = 0; k < n; k++) {
+					float v = values[k];
+					slopes[k] *= v < a || v > b ? 0 : 1;
+					values[k] = Math.max(a, Math.min(b, v));
+				}
+			}
+			case CURVE -> {
+				for (int k = 0; k < n; k++) {
+					float v = values[k];
+					slopes[k] *= curveSlope(v);
+					values[k] = curve(v);
+				}
+			}
+		}
+	}
+
+	private float curve(float v) {
+		int i = segment(v);
+		if (i < 0) return outputs[0];
+		if (i >= inputs.length - 1) return outputs[outputs.length - 1];
+		float t = (v - inputs[i]) / (inputs[i + 1] - inputs[i]);
+		return outputs[i] + t * (outputs[i + 1] - outputs[i]);
+	}
+
+	private float curveSlope(float v) {
+		int i = segment(v);
+		if (i < 0 || i >= inputs.length - 1) return 0;
+		return (outputs[i + 1] - outputs[i]) / (inputs[i + 1] - inputs[i]);
+	}
+
+	/**
+	 * Finds the curve segment containing v, which is -1 below the first
+	 * control point, and inputs.length - 1 above the last.
+	 */
+	private int segment(float v) {
+		if (v < inputs[0]) return -1;
+		int i = 0;
+		while (i < inputs.length - 1 && v >= inputs[i + 1]) i++;
+		return i;
+	}
+}
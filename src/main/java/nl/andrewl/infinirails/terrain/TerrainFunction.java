@@ -0,0 +1,174 @@
+package nl.andrewl.infinirails.terrain;
+
+import nl.andrewl.infinirails.FractalNoise;
+
+/**
+ * A declarative description of a terrain height function over the world's
+ * horizontal plane, built up from noise sources and operators.
+ * <p>
+ *     Functions are immutable, and a function may be used as the input of
+ *     several others, in which case it's only evaluated once. To evaluate a
+ *     function, {@link #compile()} it first, which folds constants, fuses
+ *     chains of per-sample operators into single passes, and produces an
+ *     evaluator that works on whole grids at a time.
+ * </p>
+ */
+public abstract class TerrainFunction {
+	TerrainFunction() {}
+
+	public static TerrainFunction constant(float value) {
+		return new Constant(value);
+	}
+
+	/**
+	 * A fractal noise source, sampled at the world coordinates directly.
+	 */
+	public static TerrainFunction noise(FractalNoise noise) {
+		return new Noise(noise);
+	}
+
+	/**
+	 * A fractal noise source, sampled at (x + strength * warpX, y + strength * warpY)
+	 * instead of (x, y), which bends the noise's features around.
+	 */
+	public static TerrainFunction warpedNoise(FractalNoise noise, TerrainFunction warpX, TerrainFunction warpY, float strength) {
+		return new WarpedNoise(noise, warpX, warpY, strength);
+	}
+
+	public static TerrainFunction add(TerrainFunction a, TerrainFunction b) {
+		return new Binary(BinaryOp.ADD, a, b);
+	}
+
+	public static TerrainFunction subtract(TerrainFunction a, TerrainFunction b) {
+		return new Binary(BinaryOp.SUBTRACT, a, b);
+	}
+
+	public static TerrainFunction multiply(TerrainFunction a, TerrainFunction b) {
+		return new Binary(BinaryOp.MULTIPLY, a, b);
+	}
+
+	public static TerrainFunction min(TerrainFunction a, TerrainFunction b) {
+		return new Binary(BinaryOp.MIN, a, b);
+	}
+
+	public static TerrainFunction max(TerrainFunction a, TerrainFunction b) {
+		return new Binary(BinaryOp.MAX, a, b);
+	}
+
+	/**
+	 * Selects between two functions based on a control function. Where the
+	 * control is below threshold - falloff, the result is low, and where
+	 * it's above threshold + falloff, the result is high. In between, the
+	 * two are blended with a smoothstep.
+	 */
+	public static TerrainFunction select(TerrainFunction control, TerrainFunction low, TerrainFunction high, float threshold, float falloff) {
+		if (falloff <= 0) throw new IllegalArgumentException("Falloff must be positive.");
+		return new Select(control, low, high, threshold, falloff);
+	}
+
+	public TerrainFunction scale(float factor) {
+		return new Pointwise(this, Stage.scale(factor));
+	}
+
+	public TerrainFunction offset(float amount) {
+		return new Pointwise(this, Stage.offset(amount));
+	}
+
+	public TerrainFunction clamp(float min, float max) {
+		if (min > max) throw new IllegalArgumentException("Minimum must not be greater than maximum.");
+		return new Pointwise(this, Stage.clamp(min, max));
+	}
+
+	/**
+	 * Maps this function's values through a piecewise linear curve. Values
+	 * outside the curve's range are mapped to its first or last output.
+	 * @param inputs The inputs of the curve's control points, ascending.
+	 * @param outputs The outputs of the curve's control points.
+	 */
+	public TerrainFunction curve(float[] inputs, float[] outputs) {
+		if (inputs.length != outputs.length || inputs.length < 2) {
+			throw new IllegalArgumentException("A curve needs at least two control points.");
+		}
+		for (int i = 1; i < inputs.length; i++) {
+			if (inputs[i] <= inputs[i - 1]) throw new IllegalArgumentException("Curve inputs must be ascending.");
+		}
+		return new Pointwise(this, Stage.curve(inputs.clone(), outputs.clone()));
+	}
+
+	public TerrainFunction plus(TerrainFunction other) {
+		return add(this, other);
+	}
+
+	public TerrainFunction times(TerrainFunction other) {
+		return multiply(this, other);
+	}
+
+	public CompiledTerrainFunction compile() {
+		return new TerrainFunctionCompiler(this).compile();
+	}
+
+	enum BinaryOp {ADD, SUBTRACT, MULTIPLY, MIN, MAX}
+
+	static final class Constant extends TerrainFunction {
+		final float value;
+
+		Constant(float value) {
+			this.value = value;
+		}
+	}
+
+	static final class Noise extends TerrainFunction {
+		final FractalNoise noise;
+
+		Noise(FractalNoise noise) {
+			this.noise = noise;
+		}
+	}
+
+	static final class WarpedNoise extends TerrainFunction {
+		final FractalNoise noise;
+		final TerrainFunction warpX, warpY;
+		final float strength;
+
+		WarpedNoise(FractalNoise noise, TerrainFunction warpX, TerrainFunction warpY, float strength) {
+			this.noise = noise;
+			this.warpX = warpX;
+			this.warpY = warpY;
+			this.strength = strength;
+		}
+	}
+
+	static final class Binary extends TerrainFunction {
+		final BinaryOp op;
+		final TerrainFunction a, b;
+
+		Binary(BinaryOp op, TerrainFunction a, TerrainFunction b) {
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+	}
+
+	static final class Pointwise extends TerrainFunction {
+		final TerrainFunction input;
+		final Stage stage;
+
+		Pointwise(TerrainFunction input, Stage stage) {
+			this.input = input;
+			this.stage = stage;
+		}
+	}
+
+	static final class Select extends TerrainFunction {
+		final TerrainFunction control, low, high;
+		final float threshold, falloff;
+
+		Select(TerrainFunction control, TerrainFunction low, TerrainFunction high, float threshold, float falloff) {
+			this.control = control;
+			this.low = low;
+			this.high = high;
+			this.threshold = threshold;
+			this.falloff = falloff;
+		}
+	}
+}
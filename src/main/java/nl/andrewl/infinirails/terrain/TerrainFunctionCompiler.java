@@ -0,0 +1,153 @@
+package nl.andrewl.infinirails.terrain;
+
+import nl.andrewl.infinirails.terrain.CompiledTerrainFunction.Instruction;
+import nl.andrewl.infinirails.terrain.TerrainFunction.*;
+
+import java.util.*;
+
+/**
+ * Compiles a {@link TerrainFunction} graph into a flat list of grid-wide
+ * instructions, each of which writes to its own register.
+ * <p>
+ *     Any part of the graph that doesn't depend on a noise source is folded
+ *     into a constant. Chains of per-sample operators, including binary
+ *     operators with a constant operand, are fused into one instruction, so
+ *     that they make a single pass over the grid. A chain is only broken
+ *     where an intermediate result is used by more than one function.
+ * </p>
+ */
+final class TerrainFunctionCompiler {
+	private final TerrainFunction root;
+	private final Map<TerrainFunction, Integer> useCounts = new IdentityHashMap<>();
+	private final Map<TerrainFunction, Float> folded = new IdentityHashMap<>();
+	private final Map<TerrainFunction, Integer> registers = new IdentityHashMap<>();
+	private final List<Instruction> instructions = new ArrayList<>();
+	private int samplerCount = 0;
+
+	TerrainFunctionCompiler(TerrainFunction root) {
+		this.root = root;
+	}
+
+	CompiledTerrainFunction compile() {
+		countUses(root);
+		int result = emit(root);
+		return new CompiledTerrainFunction(instructions.toArray(new Instruction[0]), result, samplerCount);
+	}
+
+	private void countUses(TerrainFunction node) {
+		if (useCounts.merge(node, 1, Integer::sum) > 1) return;
+		for (var child : children(node)) {
+			countUses(child);
+		}
+	}
+
+	private static List<TerrainFunction> children(TerrainFunction node) {
+		if (node instanceof WarpedNoise w) return List.of(w.warpX, w.warpY);
+		if (node instanceof Binary b) return List.of(b.a, b.b);
+		if (node instanceof Pointwise p) return List.of(p.input);
+		if (node instanceof Select s) return List.of(s.control, s.low, s.high);
+		return List.of();
+	}
+
+	/**
+	 * Gets the constant value of a function, if it doesn't depend on any
+	 * noise source.
+	 * @return The value, or null if the function isn't constant.
+	 */
+	private Float fold(TerrainFunction node) {
+		if (folded.containsKey(node)) return folded.get(node);
+		Float value = null;
+		if (node instanceof Constant c) {
+			value = c.value;
+		} else if (node instanceof Pointwise p) {
+			Float input = fold(p.input);
+			if (input != null) value = p.stage.apply(input);
+		} else if (node instanceof Binary b) {
+			Float a = fold(b.a), bv = fold(b.b);
+			if (a != null && bv != null) value = CompiledTerrainFunction.applyBinary(b.op, a, bv);
+		} else if (node instanceof Select s) {
+			Float control = fold(s.control), low = fold(s.low), high = fold(s.high);
+			if (control != null && low != null && high != null) {
+				float t = CompiledTerrainFunction.smoothstep(control, s.threshold, s.falloff);
+				value = low + t * (high - low);
+			}
+		}
+		folded.put(node, value);
+		return value;
+	}
+
+	private int emit(TerrainFunction node) {
+		Integer existing = registers.get(node);
+		if (existing != null) return existing;
+
+		int target = instructions.size();
+		Instruction instruction;
+		Float constant = fold(node);
+		if (constant != null) {
+			instruction = new CompiledTerrainFunction.Fill(target, constant);
+		} else if (node instanceof Noise n) {
+			instruction = new CompiledTerrainFunction.Sample(target, n.noise);
+		} else if (node instanceof WarpedNoise w) {
+			int warpX = emit(w.warpX);
+			int warpY = emit(w.warpY);
+			target = instructions.size();
+			instruction = new CompiledTerrainFunction.WarpedSample(target, w.noise, warpX, warpY, w.strength, samplerCount++);
+		} else if (asStages(node) != null) {
+			// Absorb operators into the chain for as long as their input isn't needed by anything else.
+			List<Stage> stages = new ArrayList<>();
+			TerrainFunction current = node;
+			List<Stage> currentStages;
+			while ((currentStages = asStages(current)) != null && (current == node || useCounts.get(current) == 1)) {
+				stages.addAll(0, currentStages);
+				current = stageInput(current);
+			}
+			int input = emit(current);
+			target = instructions.size();
+			instruction = new CompiledTerrainFunction.Chain(target, input, stages.toArray(new Stage[0]));
+		} else if (node instanceof Binary b) {
+			int a = emit(b.a);
+			int bv = emit(b.b);
+			target = instructions.size();
+			instruction = new CompiledTerrainFunction.Combine(target, b.op, a, bv);
+		} else if (node instanceof Select s) {
+			int control = emit(s.control);
+			int low = emit(s.low);
+			int high = emit(s.high);
+			target = instructions.size();
+			instruction = new CompiledTerrainFunction.Blend(target, control, low, high, s.threshold, s.falloff);
+		} else {
+			throw new IllegalArgumentException("Unknown terrain function " + node.getClass().getSimpleName());
+		}
+		instructions.add(instruction);
+		registers.put(node, target);
+		return target;
+	}
+
+	/**
+	 * Gets the stages that a function applies to a single non-constant
+	 * input, if it can be expressed that way.
+	 * @return The stages, in the order they're applied, or null.
+	 */
+	private List<Stage> asStages(TerrainFunction node) {
+		if (fold(node) != null) return null;
+		if (node instanceof Pointwise p) return List.of(p.stage);
+		if (!(node instanceof Binary b)) return null;
+		Float a = fold(b.a), bv = fold(b.b);
+		if (a == null && bv == null) return null;
+		boolean constantFirst = a != null;
+		float c = constantFirst ? a : bv;
+		return switch (b.op) {
+			case ADD -> List.of(Stage.offset(c));
+			case SUBTRACT -> constantFirst ? List.of(Stage.scale(-1), Stage.offset(c)) : List.of(Stage.offset(-c));
+			case MULTIPLY -> List.of(Stage.scale(c));
+			case MIN -> List.of(Stage.clamp(Float.NEGATIVE_INFINITY, c));
+			case MAX -> List.of(Stage.clamp(c, Float.POSITIVE_INFINITY));
+		};
+	}
+
+	private TerrainFunction stageInput(TerrainFunction node) {
+		if (node instanceof Pointwise p) return p.input;
+		Binary b = (Binary) node;
+		return fold(b.a) != null ? b.b : b.a;
+	}
+}
@@ -0,0 +1,202 @@
+package nl.andrewl.infinirails.util;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash map with primitive long keys, so that looking something up doesn't
+ * box the key or allocate a key object. It uses open addressing with linear
+ * probing, in arrays with a power of two length that are kept at most half
+ * full, and removes entries by shifting later ones back, so there are no
+ * tombstones. Values may not be null.
+ * <p>
+ *     This isn't thread-safe.
+ * </p>
+ * @param <V> The type of values.
+ */
+public class LongHashMap<V> {
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	/**
+	 * Incremented by each change, so that iterators can fail fast.
+	 */
+	private int modCount;
+
+	public LongHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize The number of entries to make room for up front.
+	 */
+	public LongHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(expectedSize, 2) * 2 - 1) << 1;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Spreads a key's bits over the whole hash, since packed coordinates
+	 * differ mostly in a few low bits of each half. This is package-private
+	 * so that tests can pick keys that collide.
+	 */
+	static int slot(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) return (V) values[i];
+		}
+		return null;
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Puts a value in the map.
+	 * @return The value that it replaced, or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) throw new IllegalArgumentException("Values may not be null.");
+		int i = slot(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				var old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		size++;
+		modCount++;
+		if (size * 2 > keys.length) resize(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * Removes a key from the map.
+	 * @return The value that it had, or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = slot(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				var old = (V) values[i];
+				shiftBack(i);
+				size--;
+				modCount++;
+				return old;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Empties the given slot, and moves later entries of the same probe run
+	 * back into it where that keeps them reachable from their home slot.
+	 */
+	private void shiftBack(int gap) {
+		int i = gap;
+		while (true) {
+			i = (i + 1) & mask;
+			if (values[i] == null) break;
+			int home = slot(keys[i], mask);
+			// Only move the entry if its home slot isn't cyclically between the gap and it.
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+		}
+		values[gap] = null;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] == null) continue;
+			int i = slot(oldKeys[j], mask);
+			while (values[i] != null) i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+		modCount++;
+	}
+
+	/**
+	 * @return A read-only view of the map's values, in no particular order.
+	 * The map must not be changed while iterating over it.
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private class ValueIterator implements Iterator<V> {
+		private final int expectedModCount = modCount;
+		private int next = advance(0);
+
+		private int advance(int i) {
+			while (i < values.length && values[i] == null) i++;
+			return i;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < values.length;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			if (!hasNext()) throw new NoSuchElementException();
+			var value = (V) values[next];
+			next = advance(next + 1);
+			return value;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+#version 330 core
+
+// Terrain drawn by instancing one flat grid, with heights and normals read from a texture array layer per fragment.
+// The grid x and z, and 1 for skirt vertices, which hang below the fragment's edges.
+layout (location = 0) in vec3 vertexGridPositionIn;
+// The x and z of the fragment's origin, its texture layer, and its skirt depth.
+layout (location = 3) in vec4 fragmentInstanceIn;
+
+uniform sampler2DArray heightTextures;
+uniform sampler2DArray normalTextures;
+uniform vec3 terrainColor;
+uniform mat4 projectionTransform;
+uniform mat4 viewTransform;
+
+out vec3 vertexPosition;
+out vec3 vertexColor;
+out vec3 vertexNormal;
+out vec3 fragmentPosition;
+
+void main() {
+    ivec3 texel = ivec3(ivec2(vertexGridPositionIn.xy), int(fragmentInstanceIn.z));
+    float height = texelFetch(heightTextures, texel, 0).r - vertexGridPositionIn.z * fragmentInstanceIn.w;
+    // Only the normal's x and z are stored, since it always points upwards.
+    vec2 normalXZ = texelFetch(normalTextures, texel, 0).rg;
+    vec3 normal = vec3(normalXZ.x, sqrt(max(0.0, 1.0 - dot(normalXZ, normalXZ))), normalXZ.y);
+
+    vec3 localPosition = vec3(vertexGridPositionIn.x, height, vertexGridPositionIn.y);
+    vec3 worldPosition = localPosition + vec3(fragmentInstanceIn.x, 0.0, fragmentInstanceIn.y);
+    gl_Position = projectionTransform * viewTransform * vec4(worldPosition, 1.0);
+    vertexPosition = localPosition;
+    vertexColor = terrainColor;
+    vertexNormal = normalize(normal);
+    fragmentPosition = worldPosition;
+}
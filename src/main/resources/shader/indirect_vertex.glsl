@@ -0,0 +1,29 @@
+#version 330 core
+
+// Terrain drawn from the mesh pool with one multi-draw call, where each fragment is one instance.
+// Terrain vertices are packed: integer grid x and z, a float height, and a 2_10_10_10 normal.
+layout (location = 0) in vec2 vertexGridPositionIn;
+layout (location = 1) in float vertexHeightIn;
+layout (location = 2) in vec3 vertexNormalIn;
+// The x and z of the fragment's origin, picked by the draw command's base instance.
+layout (location = 3) in vec2 fragmentOriginIn;
+
+uniform vec3 terrainColor;
+uniform mat4 projectionTransform;
+uniform mat4 viewTransform;
+
+out vec3 vertexPosition;
+out vec3 vertexColor;
+out vec3 vertexNormal;
+out vec3 fragmentPosition;
+
+void main() {
+    vec3 localPosition = vec3(vertexGridPositionIn.x, vertexHeightIn, vertexGridPositionIn.y);
+    vec3 worldPosition = localPosition + vec3(fragmentOriginIn.x, 0.0, fragmentOriginIn.y);
+    gl_Position = projectionTransform * viewTransform * vec4(worldPosition, 1.0);
+    vertexPosition = localPosition;
+    vertexColor = terrainColor;
+    // Fragments are only translated, so normals don't need a transform.
+    vertexNormal = normalize(vertexNormalIn);
+    fragmentPosition = worldPosition;
+}
@@ -0,0 +1,46 @@
+#version 330 core
+
+// Terrain drawn as quadtree nodes, which all instance the same patch grid, with heights and normals read from a
+// texture array layer per node. Vertices morph towards the next level's grid as they near the end of their range.
+layout (location = 0) in vec2 vertexGridPositionIn;
+// The x and z of the node's origin, its vertex spacing, and its texture layer.
+layout (location = 3) in vec4 nodeInstanceIn;
+// The horizontal distances at which the node starts and finishes morphing.
+layout (location = 4) in vec2 nodeMorphIn;
+
+uniform sampler2DArray heightTextures;
+uniform sampler2DArray normalTextures;
+uniform vec3 terrainColor;
+uniform vec3 cameraPosition;
+uniform mat4 projectionTransform;
+uniform mat4 viewTransform;
+
+out vec3 vertexPosition;
+out vec3 vertexColor;
+out vec3 vertexNormal;
+out vec3 fragmentPosition;
+
+void main() {
+    vec2 origin = nodeInstanceIn.xy;
+    float spacing = nodeInstanceIn.z;
+    int layer = int(nodeInstanceIn.w);
+    float distance = length(origin + vertexGridPositionIn * spacing - cameraPosition.xz);
+    float morph = clamp((distance - nodeMorphIn.x) / (nodeMorphIn.y - nodeMorphIn.x), 0.0, 1.0);
+    // Odd vertices slide onto their even neighbour, which is where the next level has its vertex.
+    vec2 evenGridPosition = vertexGridPositionIn - mod(vertexGridPositionIn, 2.0);
+    vec2 gridPosition = mix(vertexGridPositionIn, evenGridPosition, morph);
+
+    ivec3 texel = ivec3(ivec2(vertexGridPositionIn), layer);
+    ivec3 evenTexel = ivec3(ivec2(evenGridPosition), layer);
+    float height = mix(texelFetch(heightTextures, texel, 0).r, texelFetch(heightTextures, evenTexel, 0).r, morph);
+    // Only the normal's x and z are stored, since it always points upwards.
+    vec2 normalXZ = mix(texelFetch(normalTextures, texel, 0).rg, texelFetch(normalTextures, evenTexel, 0).rg, morph);
+    vec3 normal = vec3(normalXZ.x, sqrt(max(0.0, 1.0 - dot(normalXZ, normalXZ))), normalXZ.y);
+
+    vec3 worldPosition = vec3(origin.x + gridPosition.x * spacing, height, origin.y + gridPosition.y * spacing);
+    gl_Position = projectionTransform * viewTransform * vec4(worldPosition, 1.0);
+    vertexPosition = worldPosition;
+    vertexColor = terrainColor;
+    vertexNormal = normalize(normal);
+    fragmentPosition = worldPosition;
+}
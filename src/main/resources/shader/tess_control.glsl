@@ -0,0 +1,53 @@
+#version 400 core
+
+// Chooses how finely to tessellate each patch edge, from its length on screen.
+layout (vertices = 4) out;
+
+in vec3 controlGridPosition[];
+in vec4 controlFragmentInstance[];
+
+out vec3 evaluationGridPosition[];
+patch out vec4 evaluationFragmentInstance;
+
+uniform sampler2DArray heightTextures;
+uniform mat4 projectionTransform;
+uniform mat4 viewTransform;
+uniform float viewportHeight;
+// The length, in pixels, that each tessellated edge should have.
+uniform float pixelsPerEdge;
+uniform float maxTessLevel;
+
+vec3 cornerPosition(int i) {
+    vec4 fragment = controlFragmentInstance[i];
+    vec3 grid = controlGridPosition[i];
+    float height = texelFetch(heightTextures, ivec3(ivec2(grid.xy), int(fragment.z)), 0).r - grid.z * fragment.w;
+    return vec3(fragment.x + grid.x, height, fragment.y + grid.y);
+}
+
+// Only depends on the edge's own endpoints, so patches that share an edge, including those of neighbouring
+// fragments and the skirts below them, split it into the same number of segments. That alone doesn't close every
+// gap, since each side still samples its own heightmap, so fragment borders are covered by skirts.
+float edgeLevel(vec3 a, vec3 b) {
+    vec3 center = (viewTransform * vec4((a + b) * 0.5, 1.0)).xyz;
+    float pixels = distance(a, b) * projectionTransform[1][1] * viewportHeight * 0.5 / max(length(center), 0.001);
+    return clamp(pixels / pixelsPerEdge, 1.0, maxTessLevel);
+}
+
+void main() {
+    evaluationGridPosition[gl_InvocationID] = controlGridPosition[gl_InvocationID];
+    if (gl_InvocationID == 0) {
+        evaluationFragmentInstance = controlFragmentInstance[0];
+        // Corners are top-left, top-right, bottom-right and bottom-left, with u along x and v along z. For skirts,
+        // u runs along the border and v downwards.
+        vec3 p0 = cornerPosition(0);
+        vec3 p1 = cornerPosition(1);
+        vec3 p2 = cornerPosition(2);
+        vec3 p3 = cornerPosition(3);
+        gl_TessLevelOuter[0] = edgeLevel(p0, p3);
+        gl_TessLevelOuter[1] = edgeLevel(p0, p1);
+        gl_TessLevelOuter[2] = edgeLevel(p1, p2);
+        gl_TessLevelOuter[3] = edgeLevel(p3, p2);
+        gl_TessLevelInner[0] = max(gl_TessLevelOuter[1], gl_TessLevelOuter[3]);
+        gl_TessLevelInner[1] = max(gl_TessLevelOuter[0], gl_TessLevelOuter[2]);
+    }
+}
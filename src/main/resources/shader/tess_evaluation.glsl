@@ -0,0 +1,42 @@
+#version 400 core
+
+// Places each tessellated vertex on its fragment's heightmap, filtering between heightmap points.
+layout (quads, equal_spacing, cw) in;
+
+in vec3 evaluationGridPosition[];
+patch in vec4 evaluationFragmentInstance;
+
+uniform sampler2DArray heightTextures;
+uniform sampler2DArray normalTextures;
+// The number of heightmap points along each side of a fragment.
+uniform float heightmapSize;
+uniform vec3 terrainColor;
+uniform mat4 projectionTransform;
+uniform mat4 viewTransform;
+
+out vec3 vertexPosition;
+out vec3 vertexColor;
+out vec3 vertexNormal;
+out vec3 fragmentPosition;
+
+void main() {
+    vec3 top = mix(evaluationGridPosition[0], evaluationGridPosition[1], gl_TessCoord.x);
+    vec3 bottom = mix(evaluationGridPosition[3], evaluationGridPosition[2], gl_TessCoord.x);
+    // The grid x and z, and how far down the skirt the vertex is, which is 0 for everything but skirts.
+    vec3 position = mix(top, bottom, gl_TessCoord.y);
+    vec2 gridPosition = position.xy;
+    // Texel centers are half a texel in, so heightmap point i is at (i + 0.5) / size.
+    vec3 texCoord = vec3((gridPosition + 0.5) / heightmapSize, evaluationFragmentInstance.z);
+    float height = texture(heightTextures, texCoord).r - position.z * evaluationFragmentInstance.w;
+    // Only the normal's x and z are stored, since it always points upwards.
+    vec2 normalXZ = texture(normalTextures, texCoord).rg;
+    vec3 normal = vec3(normalXZ.x, sqrt(max(0.0, 1.0 - dot(normalXZ, normalXZ))), normalXZ.y);
+
+    vec3 localPosition = vec3(gridPosition.x, height, gridPosition.y);
+    vec3 worldPosition = localPosition + vec3(evaluationFragmentInstance.x, 0.0, evaluationFragmentInstance.y);
+    gl_Position = projectionTransform * viewTransform * vec4(worldPosition, 1.0);
+    vertexPosition = localPosition;
+    vertexColor = terrainColor;
+    vertexNormal = normalize(normal);
+    fragmentPosition = worldPosition;
+}
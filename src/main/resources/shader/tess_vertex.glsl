@@ -0,0 +1,15 @@
+#version 400 core
+
+// Terrain drawn as coarse patches that are tessellated on the GPU. Vertices are just the patch corners.
+// The grid x and z, and 1 for skirt corners, which hang below the fragment's edges.
+layout (location = 0) in vec3 vertexGridPositionIn;
+// The x and z of the fragment's origin, its texture layer, and its skirt depth.
+layout (location = 3) in vec4 fragmentInstanceIn;
+
+out vec3 controlGridPosition;
+out vec4 controlFragmentInstance;
+
+void main() {
+    controlGridPosition = vertexGridPositionIn;
+    controlFragmentInstance = fragmentInstanceIn;
+}
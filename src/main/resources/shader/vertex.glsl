@@ -1,9 +1,11 @@
 #version 330 core
 
-layout (location = 0) in vec3 vertexPositionIn;
-layout (location = 1) in vec3 vertexNormalIn;
-layout (location = 2) in vec3 vertexColorIn;
+// Terrain vertices are packed: integer grid x and z, a float height, and a 2_10_10_10 normal.
+layout (location = 0) in vec2 vertexGridPositionIn;
+layout (location = 1) in float vertexHeightIn;
+layout (location = 2) in vec3 vertexNormalIn;
 
+uniform vec3 terrainColor;
 uniform mat4 modelTransform;
 uniform mat3 normalTransform;
 uniform mat4 projectionTransform;
@@ -15,9 +17,10 @@ out vec3 vertexNormal;
 out vec3 fragmentPosition;
 
 void main() {
+    vec3 vertexPositionIn = vec3(vertexGridPositionIn.x, vertexHeightIn, vertexGridPositionIn.y);
     gl_Position = projectionTransform * viewTransform * modelTransform * vec4(vertexPositionIn, 1.0);
     vertexPosition = vertexPositionIn;
-    vertexColor = vertexColorIn;
+    vertexColor = terrainColor;
     vertexNormal = normalize(normalTransform * vertexNormalIn);
     fragmentPosition = vec3(modelTransform * vec4(vertexPositionIn, 1.0));
 }
@@ -0,0 +1,69 @@
+package nl.andrewl.infinirails;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FloatOpenSimplexNoiseTest {
+	private static final long[] SEEDS = {0, 1, 42, -7};
+	private static final double[] ORIGINS = {0, -1234.5, 1e4, -1e5, 1e5};
+	private static final int SIZE = 150;
+	/**
+	 * Not a divisor of 1, so that samples land all over their cells.
+	 */
+	private static final double STEP = 0.173;
+
+	@Test
+	public void errorIsBounded() {
+		int n = SIZE * SIZE;
+		float[] expected = new float[n], expectedDx = new float[n], expectedDy = new float[n];
+		float[] actual = new float[n], actualDx = new float[n], actualDy = new float[n];
+		float[] values = new float[n];
+		for (long seed : SEEDS) {
+			var noise = new OpenSimplexNoise(seed);
+			var floatNoise = new FloatOpenSimplexNoise(noise);
+			for (double origin : ORIGINS) {
+				double originX = origin, originY = origin * 0.7;
+				noise.evalGridWithDerivatives(expected, expectedDx, expectedDy, 0, originX, originY, STEP, SIZE, SIZE);
+				floatNoise.evalGridWithDerivatives(actual, actualDx, actualDy, 0, originX, originY, STEP, SIZE, SIZE, 1, 0, 0);
+				floatNoise.evalGrid(values, 0, originX, originY, STEP, SIZE, SIZE);
+				for (int k = 0; k < n; k++) {
+					String where = String.format("seed %d, origin %.1f, sample %d", seed, origin, k);
+					assertTrue(Math.abs(actual[k] - expected[k]) <= FloatOpenSimplexNoise.MAX_ERROR, "Value error too large at " + where);
+					assertTrue(Math.abs(actualDx[k] - expectedDx[k]) <= FloatOpenSimplexNoise.MAX_DERIVATIVE_ERROR, "d/dx error too large at " + where);
+					assertTrue(Math.abs(actualDy[k] - expectedDy[k]) <= FloatOpenSimplexNoise.MAX_DERIVATIVE_ERROR, "d/dy error too large at " + where);
+					assertEquals(actual[k], values[k], "Grids with and without derivatives differ at " + where);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Grids may be evaluated with vectors, but must give exactly the same
+	 * results as the scalar point evaluators.
+	 */
+	@Test
+	public void pointsMatchGrids() {
+		var floatNoise = new FloatOpenSimplexNoise(42);
+		int n = SIZE * SIZE;
+		float[] grid = new float[n], gridWithDerivatives = new float[n], gridDx = new float[n], gridDy = new float[n];
+		float[] point = new float[3];
+		var cell = new FloatOpenSimplexNoise.GridCell();
+		for (double origin : ORIGINS) {
+			floatNoise.evalGrid(grid, 0, origin, -origin, STEP, SIZE, SIZE);
+			floatNoise.evalGridWithDerivatives(gridWithDerivatives, gridDx, gridDy, 0, origin, -origin, STEP, SIZE, SIZE, 1, 0, 0);
+			for (int i = 0; i < SIZE; i++) {
+				for (int j = 0; j < SIZE; j++) {
+					int k = i * SIZE + j;
+					double x = origin + j * STEP, y = -origin + i * STEP;
+					assertEquals(grid[k], floatNoise.eval(x, y));
+					floatNoise.evalCachedWithDerivatives(x, y, cell, point);
+					assertEquals(point[0], gridWithDerivatives[k]);
+					assertEquals(point[1], gridDx[k]);
+					assertEquals(point[2], gridDy[k]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package nl.andrewl.infinirails;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class OpenSimplexNoiseTest {
+	private static final long[] SEEDS = {0, 1, 42, -7};
+	private static final double[] ORIGINS = {0, -1234.5, 1e4, -1e5, 1e5};
+	private static final int SIZE = 150;
+	/**
+	 * Not a divisor of 1, so that samples land all over their cells.
+	 */
+	private static final double STEP = 0.173;
+
+	@Test
+	public void gridsMatchEval() {
+		float[] grid = new float[SIZE * SIZE], scaled = new float[SIZE * SIZE];
+		FloatBuffer buffer = FloatBuffer.allocate(SIZE * SIZE);
+		double frequency = 1 / 40.0, shiftX = 131.71, shiftY = -97.37;
+		for (long seed : SEEDS) {
+			var noise = new OpenSimplexNoise(seed);
+			for (double origin : ORIGINS) {
+				double originX = origin, originY = -origin * 0.7;
+				noise.evalGrid(grid, 0, originX, originY, STEP, SIZE, SIZE);
+				noise.evalGrid(buffer.clear(), originX, originY, STEP, SIZE, SIZE);
+				noise.evalGrid(scaled, 0, originX, originY, STEP, SIZE, SIZE, frequency, shiftX, shiftY);
+				for (int i = 0; i < SIZE; i++) {
+					for (int j = 0; j < SIZE; j++) {
+						int k = i * SIZE + j;
+						String where = String.format("seed %d, origin %.1f, sample (%d, %d)", seed, origin, i, j);
+						double x = originX + j * STEP, y = originY + i * STEP;
+						assertEquals((float) noise.eval(x, y), grid[k], where);
+						assertEquals(grid[k], buffer.get(k), where);
+						assertEquals((float) noise.eval(x * frequency + shiftX, y * frequency + shiftY), scaled[k], where);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void derivativesMatchFiniteDifferences() {
+		// Large enough that rounding the coordinates far from the origin doesn't matter.
+		double h = 1e-4;
+		double[] result = new double[3];
+		for (long seed : SEEDS) {
+			var noise = new OpenSimplexNoise(seed);
+			for (double origin : ORIGINS) {
+				for (int i = 0; i < SIZE; i++) {
+					for (int j = 0; j < SIZE; j++) {
+						double x = origin + j * STEP, y = -origin + i * STEP;
+						noise.evalWithDerivatives(x, y, result);
+						String where = String.format("seed %d, point (%.3f, %.3f)", seed, x, y);
+						assertEquals(noise.eval(x, y), result[0], where);
+						assertEquals((noise.eval(x + h, y) - noise.eval(x - h, y)) / (2 * h), result[1], 1e-5, "d/dx at " + where);
+						assertEquals((noise.eval(x, y + h) - noise.eval(x, y - h)) / (2 * h), result[2], 1e-5, "d/dy at " + where);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void derivativeGridsMatchPoints() {
+		var noise = new OpenSimplexNoise(42);
+		int n = SIZE * SIZE;
+		float[] values = new float[n], dxs = new float[n], dys = new float[n];
+		double[] result = new double[3];
+		double frequency = 1 / 40.0, shiftX = 131.71, shiftY = -97.37;
+		for (double origin : ORIGINS) {
+			noise.evalGridWithDerivatives(values, dxs, dys, 0, origin, -origin, STEP, SIZE, SIZE, frequency, shiftX, shiftY);
+			for (int i = 0; i < SIZE; i++) {
+				for (int j = 0; j < SIZE; j++) {
+					int k = i * SIZE + j;
+					noise.evalWithDerivatives((origin + j * STEP) * frequency + shiftX, (-origin + i * STEP) * frequency + shiftY, result);
+					String where = String.format("origin %.1f, sample (%d, %d)", origin, i, j);
+					assertEquals((float) result[0], values[k], where);
+					assertEquals((float) (result[1] * frequency), dxs[k], where);
+					assertEquals((float) (result[2] * frequency), dys[k], where);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checksums of 20000 evaluations of each variant, with seed 42, and the
+	 * values of a few of them, from the original implementation that kept
+	 * its gradients in tables of Grad2, Grad3 and Grad4 objects. The
+	 * flattened tables must give bit-identical results.
+	 */
+	private static final String[] VARIANTS = {"eval2", "eval3", "eval3_XYBeforeZ", "eval3_XZBeforeY", "eval4", "eval4_XYBeforeZW", "eval4_XZBeforeYW", "eval4_XYZBeforeW"};
+	private static final long[] ORIGINAL_CHECKSUMS = {
+			-6124170760841491173L, -1188960855628780457L, 703788629737877655L, -6098860670994495882L,
+			275247505493246169L, -967342905664267118L, -9034112321243193768L, -7904201644638609209L
+	};
+	private static final double[][] ORIGINAL_VALUES = {
+			{0.05549222129485089, -0.23738941393689758, -0.7111689737566},
+			{0.04481467091944232, -0.39465506635261205, 0.2646341985522073},
+			{-0.594393132360439, 0.18610305963549365, 0.17793033346953774},
+			{0.07790582690257165, 0.05981587361116601, 0.446814575516293},
+			{0.12236584979796508, -0.186574772899534, -0.25082940285567124},
+			{0.1544965618776628, 0.24373526069386534, 0.3227412928744754},
+			{4.7429874136960606E-4, -0.35519768858159845, 0.007908530928321469},
+			{-0.04169389006247448, -0.13529807039301928, -0.27064540260173714}
+	};
+
+	@Test
+	public void flattenedGradientsMatchOriginalTables() {
+		var noise = new OpenSimplexNoise(42);
+		for (int variant = 0; variant < VARIANTS.length; variant++) {
+			long checksum = 0;
+			int sampled = 0;
+			for (int i = 0; i < 20000; i++) {
+				double x = i * 0.731 - 3000, y = i * -1.317 + 77, z = i * 0.173 - 11, w = i * 2.09 + 5;
+				double value = switch (variant) {
+					case 0 -> noise.eval(x, y);
+					case 1 -> noise.eval(x, y, z);
+					case 2 -> noise.eval3_XYBeforeZ(x, y, z);
+					case 3 -> noise.eval3_XZBeforeY(x, y, z);
+					case 4 -> noise.eval(x, y, z, w);
+					case 5 -> noise.eval4_XYBeforeZW(x, y, z, w);
+					case 6 -> noise.eval4_XZBeforeYW(x, y, z, w);
+					default -> noise.eval4_XYZBeforeW(x, y, z, w);
+				};
+				checksum = checksum * 31 + Double.doubleToLongBits(value);
+				if (i % 7001 == 3) {
+					assertEquals(ORIGINAL_VALUES[variant][sampled++], value, VARIANTS[variant] + " differs at evaluation " + i);
+				}
+			}
+			assertEquals(ORIGINAL_CHECKSUMS[variant], checksum, VARIANTS[variant] + " differs from the original.");
+		}
+	}
+
+	/**
+	 * Grids at least as wide as a vector are evaluated with the vector kernel,
+	 * and narrower ones with the scalar code, so evaluating each column on its
+	 * own must give exactly the same results as evaluating the whole grid.
+	 * Widths that aren't a multiple of the vector length also cover the
+	 * scalar tail of each row.
+	 */
+	@Test
+	public void vectorGridsMatchScalarGrids() {
+		assumeTrue(OpenSimplexNoise.isVectorized(), "The jdk.incubator.vector module isn't available.");
+		var noise = new OpenSimplexNoise(42);
+		float[] column = new float[SIZE];
+		for (int width : new int[]{SIZE, 17, 9}) {
+			float[] grid = new float[width * SIZE];
+			for (double origin : ORIGINS) {
+				noise.evalGrid(grid, 0, origin, origin, STEP, width, SIZE);
+				for (int j = 0; j < width; j++) {
+					noise.evalGrid(column, 0, origin + j * STEP, origin, STEP, 1, SIZE);
+					for (int i = 0; i < SIZE; i++) {
+						assertEquals(column[i], grid[i * width + j], String.format("width %d, origin %.1f, sample (%d, %d)", width, origin, i, j));
+					}
+				}
+			}
+		}
+	}
+}
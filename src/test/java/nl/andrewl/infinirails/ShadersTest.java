@@ -0,0 +1,65 @@
+package nl.andrewl.infinirails;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.lwjgl.util.shaderc.Shaderc.*;
+
+/**
+ * Compiles every shader with shaderc for an OpenGL target, so that they're
+ * checked without a GL context. This doesn't check that the stages of a
+ * program link together, which only a driver can do.
+ */
+public class ShadersTest {
+	private static final Map<String, Integer> SHADERS = Map.of(
+			"shader/fragment.glsl", shaderc_fragment_shader,
+			"shader/vertex.glsl", shaderc_vertex_shader,
+			"shader/indirect_vertex.glsl", shaderc_vertex_shader,
+			"shader/height_texture_vertex.glsl", shaderc_vertex_shader,
+			"shader/quadtree_vertex.glsl", shaderc_vertex_shader,
+			"shader/tess_vertex.glsl", shaderc_vertex_shader,
+			"shader/tess_control.glsl", shaderc_tess_control_shader,
+			"shader/tess_evaluation.glsl", shaderc_tess_evaluation_shader
+	);
+
+	private static long compiler;
+	private static long options;
+
+	@BeforeAll
+	public static void setup() {
+		compiler = shaderc_compiler_initialize();
+		options = shaderc_compile_options_initialize();
+		shaderc_compile_options_set_target_env(options, shaderc_target_env_opengl, shaderc_env_version_opengl_4_5);
+		// SPIR-V needs explicit locations and bindings, which GLSL for OpenGL lets the driver assign.
+		shaderc_compile_options_set_auto_map_locations(options, true);
+		shaderc_compile_options_set_auto_bind_uniforms(options, true);
+	}
+
+	@AfterAll
+	public static void teardown() {
+		shaderc_compile_options_release(options);
+		shaderc_compiler_release(compiler);
+	}
+
+	@Test
+	public void allShadersCompile() throws IOException {
+		for (var shader : SHADERS.entrySet()) {
+			String source = InfiniRails.readClasspathFile(shader.getKey());
+			long result = shaderc_compile_into_spv(compiler, source, shader.getValue(), shader.getKey(), "main", options);
+			try {
+				assertEquals(
+						shaderc_compilation_status_success,
+						shaderc_result_get_compilation_status(result),
+						"Could not compile " + shader.getKey() + ": " + shaderc_result_get_error_message(result)
+				);
+			} finally {
+				shaderc_result_release(result);
+			}
+		}
+	}
+}
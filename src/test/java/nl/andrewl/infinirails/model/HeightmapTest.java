@@ -0,0 +1,162 @@
+package nl.andrewl.infinirails.model;
+
+import nl.andrewl.infinirails.FractalNoise;
+import nl.andrewl.infinirails.OpenSimplexNoise;
+import nl.andrewl.infinirails.terrain.CompiledTerrainFunction;
+import nl.andrewl.infinirails.terrain.SamplingMode;
+import nl.andrewl.infinirails.terrain.TerrainFunction;
+import org.joml.Vector2i;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HeightmapTest {
+	private static final List<Vector2i> INDICES = List.of(new Vector2i(0, 0), new Vector2i(3, -2), new Vector2i(-7, 11));
+	private static final List<SamplingMode> MODES = List.of(
+			SamplingMode.FULL,
+			SamplingMode.of(2, SamplingMode.Interpolation.BILINEAR),
+			SamplingMode.of(4, SamplingMode.Interpolation.BILINEAR),
+			SamplingMode.of(2, SamplingMode.Interpolation.BICUBIC),
+			SamplingMode.of(8, SamplingMode.Interpolation.BICUBIC)
+	);
+
+	private static CompiledTerrainFunction terrain;
+
+	@BeforeAll
+	public static void setup() {
+		// The same terrain as the world uses.
+		var noise = FractalNoise.of(new OpenSimplexNoise(0L), FractalNoise.Mode.FBM, 8, 1 / 40.0, 10, 2, 0.5f, 0.01f);
+		terrain = TerrainFunction.noise(noise).compile();
+	}
+
+	@Test
+	public void parallelGenerationMatchesSingleThreaded() {
+		for (int threads : new int[]{1, 3, 8}) {
+			var pool = new ForkJoinPool(threads);
+			try {
+				for (var mode : MODES) {
+					for (var index : INDICES) {
+						var expected = Heightmap.generate(terrain, index, mode);
+						var actual = Heightmap.generate(terrain, index, mode, pool);
+						String where = String.format("fragment %s, sampling %s, %d threads", index, mode, threads);
+						assertTrue(Arrays.deepEquals(expected.getHeights(), actual.getHeights()), "Heights differ for " + where);
+						assertTrue(Arrays.deepEquals(expected.getNormals(), actual.getNormals()), "Normals differ for " + where);
+					}
+				}
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Generating many fragments at once in a pool, where the fragments and
+	 * their bands of rows all compete for the same workers, must give the
+	 * same heightmaps as generating each one on its own.
+	 */
+	@Test
+	public void batchGenerationMatchesSingleThreaded() {
+		List<Vector2i> indices = new ArrayList<>();
+		List<SamplingMode> modes = new ArrayList<>();
+		for (int x = -3; x <= 3; x++) {
+			for (int y = -3; y <= 3; y++) {
+				indices.add(new Vector2i(x, y));
+				modes.add(MODES.get(Math.floorMod(x * 3 + y, MODES.size())));
+			}
+		}
+		for (int threads : new int[]{1, 3, 8}) {
+			var pool = new ForkJoinPool(threads);
+			try {
+				var heightmaps = Heightmap.generateAll(terrain, indices, modes, pool);
+				for (int i = 0; i < indices.size(); i++) {
+					var expected = Heightmap.generate(terrain, indices.get(i), modes.get(i));
+					String where = String.format("fragment %s, sampling %s, %d threads", indices.get(i), modes.get(i), threads);
+					assertTrue(Arrays.deepEquals(expected.getHeights(), heightmaps.get(i).getHeights()), "Heights differ for " + where);
+					assertTrue(Arrays.deepEquals(expected.getNormals(), heightmaps.get(i).getNormals()), "Normals differ for " + where);
+				}
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * A single noise instance is shared by every thread that generates
+	 * terrain, so using it from many threads at once must give the same
+	 * results as using it from one.
+	 */
+	@Test
+	public void sharedNoiseIsThreadSafe() throws Exception {
+		var noise = new OpenSimplexNoise(0L);
+		int size = 64;
+		float[][] expected = new float[8][size * size];
+		for (int t = 0; t < expected.length; t++) {
+			noise.evalGrid(expected[t], 0, t * 1000.5, -t * 700.25, 0.37, size, size);
+		}
+		var pool = new ForkJoinPool(8);
+		try {
+			List<Callable<float[]>> tasks = new ArrayList<>();
+			for (int round = 0; round < 16; round++) {
+				for (int t = 0; t < expected.length; t++) {
+					int grid = t;
+					tasks.add(() -> {
+						float[] out = new float[size * size];
+						double[] point = new double[3];
+						noise.evalGrid(out, 0, grid * 1000.5, -grid * 700.25, 0.37, size, size);
+						// Mix in point evaluations, which use per-thread caches.
+						noise.evalWithDerivatives(grid, grid, point);
+						return out;
+					});
+				}
+			}
+			var results = pool.invokeAll(tasks);
+			for (int k = 0; k < results.size(); k++) {
+				assertTrue(Arrays.equals(expected[k % expected.length], results.get(k).get()), "Grid " + k % expected.length + " differs.");
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Neighbouring fragments may use different sampling modes, so every mode
+	 * must agree exactly with full sampling on a fragment's edges.
+	 */
+	@Test
+	public void coarseEdgesMatchFullSampling() {
+		int last = World.TERRAIN_FRAGMENT_SIZE;
+		var pool = new ForkJoinPool(3);
+		try {
+			for (var index : INDICES) {
+				var full = Heightmap.generate(terrain, index, SamplingMode.FULL);
+				for (var mode : MODES) {
+					for (var coarse : List.of(Heightmap.generate(terrain, index, mode), Heightmap.generate(terrain, index, mode, pool))) {
+						for (int k = 0; k <= last; k++) {
+							String where = String.format("fragment %s, sampling %s, edge sample %d", index, mode, k);
+							assertEquals(full.getHeights()[0][k], coarse.getHeights()[0][k], where);
+							assertEquals(full.getHeights()[last][k], coarse.getHeights()[last][k], where);
+							assertEquals(full.getHeights()[k][0], coarse.getHeights()[k][0], where);
+							assertEquals(full.getHeights()[k][last], coarse.getHeights()[k][last], where);
+							for (int c = 0; c < 3; c++) {
+								assertEquals(full.getNormals()[0][3 * k + c], coarse.getNormals()[0][3 * k + c], where);
+								assertEquals(full.getNormals()[last][3 * k + c], coarse.getNormals()[last][3 * k + c], where);
+								assertEquals(full.getNormals()[k][c], coarse.getNormals()[k][c], where);
+								assertEquals(full.getNormals()[k][3 * last + c], coarse.getNormals()[k][3 * last + c], where);
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
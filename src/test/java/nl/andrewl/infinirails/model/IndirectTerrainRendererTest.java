@@ -0,0 +1,24 @@
+package nl.andrewl.infinirails.model;
+
+import nl.andrewl.infinirails.InfiniRails;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drawing needs OpenGL, so this only checks what a driver wouldn't report:
+ * a shader that reads the fragment origin from another location than the
+ * renderer writes it to still links, and draws every fragment at the world
+ * origin.
+ */
+public class IndirectTerrainRendererTest {
+	@Test
+	public void shaderReadsOriginFromRendererLocation() throws IOException {
+		String source = InfiniRails.readClasspathFile("shader/indirect_vertex.glsl");
+		var declaration = Pattern.compile("layout\\s*\\(\\s*location\\s*=\\s*" + IndirectTerrainRenderer.ORIGIN_LOCATION + "\\s*\\)\\s*in\\s+vec2\\s+fragmentOriginIn\\s*;");
+		assertTrue(declaration.matcher(source).find(), "indirect_vertex.glsl doesn't read the fragment origin from location " + IndirectTerrainRenderer.ORIGIN_LOCATION);
+	}
+}
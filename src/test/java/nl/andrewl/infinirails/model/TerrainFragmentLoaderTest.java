@@ -0,0 +1,176 @@
+package nl.andrewl.infinirails.model;
+
+import nl.andrewl.infinirails.terrain.SamplingMode;
+import org.joml.Vector2i;
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the loader's scheduling without OpenGL, in height texture mode, where
+ * jobs don't need a staging ring, and with the step that creates fragments
+ * replaced. The pool has a single worker, so jobs run one at a time.
+ */
+public class TerrainFragmentLoaderTest {
+	private static World world;
+	private ForkJoinPool pool;
+	private TestLoader loader;
+
+	/**
+	 * Lets a test hold a job in the middle of generating its heightmap.
+	 */
+	private static class Gate {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+	}
+
+	/**
+	 * A loader that records which heightmaps it generated and which fragments
+	 * it uploaded, in order, instead of adding them to the world.
+	 */
+	private static class TestLoader extends TerrainFragmentLoader {
+		final List<Vector2i> generated = Collections.synchronizedList(new ArrayList<>());
+		final List<Vector2i> uploaded = new ArrayList<>();
+		final Map<Vector2i, Gate> gates = new ConcurrentHashMap<>();
+
+		TestLoader(ForkJoinPool pool) {
+			super(world, pool);
+		}
+
+		Gate hold(Vector2i index) {
+			var gate = new Gate();
+			gates.put(index, gate);
+			return gate;
+		}
+
+		@Override
+		Heightmap generateHeightmap(Vector2i index, SamplingMode sampling) {
+			generated.add(index);
+			var gate = gates.get(index);
+			if (gate != null) {
+				gate.started.countDown();
+				await(gate.released);
+			}
+			return super.generateHeightmap(index, sampling);
+		}
+
+		@Override
+		void addFragment(TerrainFragment.Data data) {
+			uploaded.add(data.heightmap.getIndex());
+		}
+	}
+
+	@BeforeAll
+	public static void setupWorld() {
+		world = new World(TerrainRenderMode.HEIGHT_TEXTURE);
+	}
+
+	@AfterAll
+	public static void teardownWorld() {
+		world.free();
+	}
+
+	@BeforeEach
+	public void setup() {
+		pool = new ForkJoinPool(1);
+		loader = new TestLoader(pool);
+	}
+
+	@AfterEach
+	public void teardown() {
+		loader.free();
+		pool.shutdown();
+	}
+
+	@Test
+	public void nearestJobRunsFirst() {
+		var first = new Vector2i(0, 0);
+		var gate = loader.hold(first);
+		loader.request(first, SamplingMode.FULL);
+		await(gate.started);
+		// The camera is at the origin, looking towards -z, so fragment (0, 2) is behind it, and goes after (0, -3).
+		var nearest = List.of(new Vector2i(0, -1), new Vector2i(0, -3), new Vector2i(0, 2), new Vector2i(0, -6));
+		for (int i = nearest.size() - 1; i >= 0; i--) {
+			loader.request(nearest.get(i), SamplingMode.FULL);
+		}
+		gate.released.countDown();
+		awaitJobs();
+
+		var generated = new ArrayList<>(List.of(first));
+		generated.addAll(nearest);
+		assertEquals(generated, loader.generated);
+		// Fragments are uploaded by priority too, whatever order they finished in.
+		assertEquals(5, loader.upload(Long.MAX_VALUE));
+		assertEquals(List.of(nearest.get(0), first, nearest.get(1), nearest.get(2), nearest.get(3)), loader.uploaded);
+		assertEquals(0, loader.getPendingCount());
+	}
+
+	@Test
+	public void jobCancelledBeforeStartingIsNeverRun() {
+		var first = new Vector2i(0, 0);
+		var far = new Vector2i(5, 5);
+		var gate = loader.hold(first);
+		loader.request(first, SamplingMode.FULL);
+		await(gate.started);
+		loader.request(far, SamplingMode.FULL);
+		assertEquals(1, loader.getQueueDepth());
+		loader.cancelOutside(0, 0, 1);
+		assertEquals(0, loader.getQueueDepth());
+		gate.released.countDown();
+		awaitJobs();
+
+		assertEquals(List.of(first), loader.generated);
+		assertEquals(1, loader.upload(Long.MAX_VALUE));
+		assertEquals(List.of(first), loader.uploaded);
+		assertEquals(1, loader.getCancelledCount());
+		assertEquals(0, loader.getPendingCount());
+	}
+
+	@Test
+	public void jobCancelledWhileRunningIsNeverUploaded() {
+		var far = new Vector2i(5, 5);
+		var gate = loader.hold(far);
+		loader.request(far, SamplingMode.FULL);
+		await(gate.started);
+		loader.cancelOutside(0, 0, 1);
+		gate.released.countDown();
+		awaitJobs();
+
+		assertEquals(List.of(far), loader.generated);
+		assertEquals(0, loader.upload(Long.MAX_VALUE));
+		assertTrue(loader.uploaded.isEmpty());
+		assertEquals(1, loader.getCancelledCount());
+		assertEquals(0, loader.getPendingCount());
+	}
+
+	@Test
+	public void jobCancelledAfterFinishingIsNeverUploaded() {
+		var near = new Vector2i(1, 1);
+		var far = new Vector2i(5, 5);
+		loader.request(far, SamplingMode.FULL);
+		loader.request(near, SamplingMode.FULL);
+		awaitJobs();
+		loader.cancelOutside(0, 0, 1);
+
+		assertEquals(Set.of(near, far), new HashSet<>(loader.generated));
+		assertEquals(1, loader.upload(Long.MAX_VALUE));
+		assertEquals(List.of(near), loader.uploaded);
+		assertEquals(1, loader.getCancelledCount());
+		assertEquals(0, loader.getPendingCount());
+	}
+
+	private void awaitJobs() {
+		assertTrue(pool.awaitQuiescence(30, TimeUnit.SECONDS), "Jobs didn't finish.");
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			assertTrue(latch.await(30, TimeUnit.SECONDS), "Timed out waiting for a job.");
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package nl.andrewl.infinirails.model;
+
+import nl.andrewl.infinirails.FractalNoise;
+import nl.andrewl.infinirails.OpenSimplexNoise;
+import nl.andrewl.infinirails.terrain.CompiledTerrainFunction;
+import nl.andrewl.infinirails.terrain.SamplingMode;
+import nl.andrewl.infinirails.terrain.TerrainFunction;
+import org.joml.Vector2i;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TerrainMeshDecimatorTest {
+	private static final int SIZE = World.TERRAIN_FRAGMENT_SIZE + 1;
+	private static final List<Vector2i> INDICES = List.of(new Vector2i(0, 0), new Vector2i(3, -2), new Vector2i(-7, 11), new Vector2i(20, 20));
+
+	private static CompiledTerrainFunction terrain;
+	private TerrainMeshDecimator decimator;
+
+	@BeforeAll
+	public static void setupTerrain() {
+		// The same terrain as the world uses.
+		var noise = FractalNoise.of(new OpenSimplexNoise(0L), FractalNoise.Mode.FBM, 8, 1 / 40.0, 10, 2, 0.5f, 0.01f);
+		terrain = TerrainFunction.noise(noise).compile();
+	}
+
+	@BeforeEach
+	public void setup() {
+		decimator = new TerrainMeshDecimator();
+	}
+
+	@AfterEach
+	public void teardown() {
+		decimator.free();
+	}
+
+	@Test
+	public void terrainIsWithinErrorBound() {
+		for (var index : INDICES) {
+			float[][] heightmap = Heightmap.generate(terrain, index, SamplingMode.FULL).getHeights();
+			checkMesh(heightmap, decimator.decimate(heightmap), "fragment " + index);
+			assertTrue(decimator.getReductionRatio() > 0, "Nothing was removed from fragment " + index);
+		}
+	}
+
+	@Test
+	public void flatTerrainIsReducedToBlocks() {
+		for (float height : new float[]{0, 3, -5}) {
+			float[][] heightmap = new float[SIZE][SIZE];
+			for (float[] row : heightmap) Arrays.fill(row, height);
+			checkMesh(heightmap, decimator.decimate(heightmap), "flat terrain at " + height);
+			int blocks = (SIZE - 1) / TerrainMeshDecimator.BLOCK_SIZE;
+			// Two triangles per block, and two per skirt segment of a block.
+			assertEquals(2 * blocks * blocks + 2 * 4 * blocks, decimator.getTriangleCount());
+			assertEquals(0, decimator.getMaxError());
+		}
+	}
+
+	@Test
+	public void roughTerrainIsKept() {
+		var random = new Random(42);
+		float[][] heightmap = new float[SIZE][SIZE];
+		for (float[] row : heightmap) {
+			for (int j = 0; j < SIZE; j++) row[j] = random.nextFloat() * 10;
+		}
+		checkMesh(heightmap, decimator.decimate(heightmap), "rough terrain");
+		assertEquals(0, decimator.getReductionRatio());
+	}
+
+	/**
+	 * Checks a decimated mesh independently of the decimator:
+	 * <ul>
+	 *     <li>The surface covers the whole heightmap exactly once.</li>
+	 *     <li>Every heightmap point, kept or not, is within the allowed
+	 *     error of the surface. That's the underwater error only if every
+	 *     point under the triangle is under water.</li>
+	 *     <li>Every surface edge on the fragment's border has a skirt hanging
+	 *     from it, and the skirt depth covers the gap to a neighbour that's
+	 *     off by the largest allowed error in the other direction.</li>
+	 *     <li>The reported counts and ratio match the mesh.</li>
+	 * </ul>
+	 */
+	private void checkMesh(float[][] heightmap, ShortBuffer indices, String what) {
+		int vertices = SIZE * SIZE;
+		List<int[]> surface = new ArrayList<>();
+		Map<Long, Integer> borderEdges = new HashMap<>();
+		Map<Long, Integer> skirtEdges = new HashMap<>();
+		for (int t = indices.position(); t < indices.limit(); t += 3) {
+			int[] triangle = {indices.get(t) & 0xFFFF, indices.get(t + 1) & 0xFFFF, indices.get(t + 2) & 0xFFFF};
+			int skirtVertices = 0;
+			for (int v : triangle) if (v >= vertices) skirtVertices++;
+			if (skirtVertices == 0) {
+				surface.add(triangle);
+				for (int e = 0; e < 3; e++) {
+					int a = triangle[e], b = triangle[(e + 1) % 3];
+					if (onSameBorder(a, b)) borderEdges.merge(edgeKey(a, b), 1, Integer::sum);
+				}
+			} else if (skirtVertices == 1) {
+				// The first triangle of each skirt has both of its top vertices, which the skirt must hang from.
+				int top0 = triangle[0], top1 = triangle[1], bottom = triangle[2] - vertices;
+				int hangsFrom = TerrainMeshBuilder.skirtRow(SIZE, bottom) * SIZE + TerrainMeshBuilder.skirtColumn(SIZE, bottom);
+				assertEquals(top0, hangsFrom, "Skirt hangs from the wrong vertex in " + what);
+				skirtEdges.merge(edgeKey(top0, top1), 1, Integer::sum);
+			}
+		}
+
+		long doubleArea = 0;
+		float maxError = 0, maxBorderError = 0;
+		int[] covered = new int[vertices];
+		for (int[] triangle : surface) {
+			int i0 = triangle[0] / SIZE, j0 = triangle[0] % SIZE;
+			int i1 = triangle[1] / SIZE, j1 = triangle[1] % SIZE;
+			int i2 = triangle[2] / SIZE, j2 = triangle[2] % SIZE;
+			int area = (j1 - j0) * (i2 - i0) - (j2 - j0) * (i1 - i0);
+			assertTrue(area < 0, "A triangle is degenerate or faces down in " + what);
+			doubleArea -= area;
+			int minI = Math.min(i0, Math.min(i1, i2)), maxI = Math.max(i0, Math.max(i1, i2));
+			int minJ = Math.min(j0, Math.min(j1, j2)), maxJ = Math.max(j0, Math.max(j1, j2));
+			boolean aboveWater = false;
+			for (int i = minI; i <= maxI; i++) {
+				for (int j = minJ; j <= maxJ; j++) aboveWater |= heightmap[i][j] >= 0;
+			}
+			float allowed = aboveWater ? TerrainMeshDecimator.MAX_ERROR : TerrainMeshDecimator.UNDERWATER_MAX_ERROR;
+			for (int i = minI; i <= maxI; i++) {
+				for (int j = minJ; j <= maxJ; j++) {
+					int w1 = (j - j0) * (i2 - i0) - (j2 - j0) * (i - i0);
+					int w2 = (j1 - j0) * (i - i0) - (j - j0) * (i1 - i0);
+					int w0 = area - w1 - w2;
+					if (w0 > 0 || w1 > 0 || w2 > 0) continue;
+					covered[i * SIZE + j]++;
+					float h = (w0 * heightmap[i0][j0] + w1 * heightmap[i1][j1] + w2 * heightmap[i2][j2]) / area;
+					float error = Math.abs(h - heightmap[i][j]);
+					assertTrue(error <= allowed, String.format("Point (%d, %d) is %.3f m off in %s.", i, j, error, what));
+					maxError = Math.max(maxError, error);
+					if (i == 0 || j == 0 || i == SIZE - 1 || j == SIZE - 1) maxBorderError = Math.max(maxBorderError, error);
+				}
+			}
+		}
+		int tiles = SIZE - 1;
+		assertEquals(2L * tiles * tiles, doubleArea, "The surface doesn't cover the fragment exactly once in " + what);
+		for (int v = 0; v < vertices; v++) {
+			assertTrue(covered[v] > 0, "Point " + v + " isn't covered in " + what);
+		}
+
+		assertEquals(borderEdges.keySet(), skirtEdges.keySet(), "Skirts don't follow the border in " + what);
+		for (int count : skirtEdges.values()) assertEquals(1, count, "A border edge has several skirts in " + what);
+		// The margin is taken from two rounded floats, so allow for a little rounding error.
+		float margin = TerrainMeshDecimator.skirtDepth(heightmap) - TerrainMeshBuilder.skirtDepth(heightmap) + 1e-4f;
+		assertTrue(margin >= 2 * maxBorderError, "Skirts don't cover the gap to a neighbour in " + what);
+		assertTrue(margin >= 2 * TerrainMeshDecimator.UNDERWATER_MAX_ERROR);
+
+		assertEquals(maxError, decimator.getMaxError(), 1e-6f);
+		assertEquals(indices.remaining() / 3, decimator.getTriangleCount());
+		assertEquals(TerrainMeshBuilder.indexCount(SIZE, 0) / 3, decimator.getFullTriangleCount());
+		assertEquals(1 - (float) decimator.getTriangleCount() / decimator.getFullTriangleCount(), decimator.getReductionRatio());
+	}
+
+	private static boolean onSameBorder(int a, int b) {
+		int ia = a / SIZE, ja = a % SIZE, ib = b / SIZE, jb = b % SIZE;
+		int last = SIZE - 1;
+		return (ia == 0 && ib == 0) || (ia == last && ib == last) || (ja == 0 && jb == 0) || (ja == last && jb == last);
+	}
+
+	private static long edgeKey(int a, int b) {
+		return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+	}
+}
@@ -0,0 +1,147 @@
+package nl.andrewl.infinirails.model;
+
+import nl.andrewl.infinirails.util.LongHashMap;
+import org.joml.Vector2f;
+import org.joml.Vector2i;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TerrainResidencyTest {
+	private static final long HEAP_BYTES = 1000;
+	private static final long GPU_BYTES = 300;
+
+	/**
+	 * A fragment without any GPU resources, that records when it's deleted.
+	 */
+	private static class FakeFragment implements TerrainResidency.Resident {
+		private final Vector2i index;
+		private final long lastUsedFrame;
+		private final List<Vector2i> deleted;
+
+		FakeFragment(int x, int y, long lastUsedFrame, List<Vector2i> deleted) {
+			this.index = new Vector2i(x, y);
+			this.lastUsedFrame = lastUsedFrame;
+			this.deleted = deleted;
+		}
+
+		@Override
+		public long getKey() {
+			return World.getFragmentKey(index.x, index.y);
+		}
+
+		@Override
+		public Vector2i getIndex() {
+			return index;
+		}
+
+		@Override
+		public Vector2f getCenter() {
+			return new Vector2f(index).add(0.5f, 0.5f).mul(World.TERRAIN_FRAGMENT_SIZE);
+		}
+
+		@Override
+		public long getLastUsedFrame() {
+			return lastUsedFrame;
+		}
+
+		@Override
+		public long getHeapByteCount() {
+			return HEAP_BYTES;
+		}
+
+		@Override
+		public long getGpuByteCount() {
+			return GPU_BYTES;
+		}
+
+		@Override
+		public void delete() {
+			deleted.add(index);
+		}
+	}
+
+	private final List<Vector2i> deleted = new ArrayList<>();
+	private final LongHashMap<FakeFragment> fragments = new LongHashMap<>();
+
+	private void add(TerrainResidency residency, int x, int y, long lastUsedFrame) {
+		var fragment = new FakeFragment(x, y, lastUsedFrame, deleted);
+		fragments.put(fragment.getKey(), fragment);
+		residency.added(fragment);
+	}
+
+	/**
+	 * Adds seven fragments around fragment (0, 0), two of which are in the
+	 * ring around it.
+	 */
+	private void addFragments(TerrainResidency residency) {
+		add(residency, 0, 0, 1);
+		add(residency, 1, -1, 0);
+		add(residency, 3, 0, 5);
+		add(residency, 5, 0, 5);
+		add(residency, 0, 4, 2);
+		add(residency, -6, 2, 9);
+		add(residency, 2, 2, 3);
+	}
+
+	private int evict(TerrainResidency residency) {
+		float camera = World.TERRAIN_FRAGMENT_SIZE / 2.0f;
+		return residency.evict(fragments, 0, 0, 1, camera, camera);
+	}
+
+	private Set<Vector2i> remaining() {
+		var indices = new HashSet<Vector2i>();
+		for (var fragment : fragments.values()) indices.add(fragment.getIndex());
+		return indices;
+	}
+
+	@Test
+	public void nothingIsEvictedUnderBudget() {
+		var residency = new TerrainResidency(7 * HEAP_BYTES, 7 * GPU_BYTES);
+		addFragments(residency);
+		assertFalse(residency.isOverBudget());
+		assertEquals(0, evict(residency));
+		assertEquals(7, fragments.size());
+		assertTrue(deleted.isEmpty());
+	}
+
+	@Test
+	public void leastRecentlyUsedThenFarthestIsEvictedFirst() {
+		var residency = new TerrainResidency(3 * HEAP_BYTES, Long.MAX_VALUE);
+		addFragments(residency);
+		assertTrue(residency.isOverBudget());
+		assertEquals(4, evict(residency));
+		// (1, -1) was used longest ago, but it's next to the camera. (5, 0) and (3, 0) were used in the same frame, and (5, 0) is farther.
+		assertEquals(List.of(new Vector2i(0, 4), new Vector2i(2, 2), new Vector2i(5, 0), new Vector2i(3, 0)), deleted);
+		assertEquals(Set.of(new Vector2i(0, 0), new Vector2i(1, -1), new Vector2i(-6, 2)), remaining());
+		assertFalse(residency.isOverBudget());
+		assertEquals(3 * HEAP_BYTES, residency.getResidentHeapBytes());
+		assertEquals(3 * GPU_BYTES, residency.getResidentGpuBytes());
+		assertEquals(4, residency.getEvictedCount());
+	}
+
+	@Test
+	public void gpuBudgetAloneEvicts() {
+		var residency = new TerrainResidency(Long.MAX_VALUE, 5 * GPU_BYTES);
+		addFragments(residency);
+		assertEquals(2, evict(residency));
+		assertEquals(List.of(new Vector2i(0, 4), new Vector2i(2, 2)), deleted);
+		assertEquals(5 * GPU_BYTES, residency.getResidentGpuBytes());
+	}
+
+	@Test
+	public void fragmentsAroundCameraAreKeptOverBudget() {
+		var residency = new TerrainResidency(0, 0);
+		addFragments(residency);
+		assertEquals(5, evict(residency));
+		assertEquals(Set.of(new Vector2i(0, 0), new Vector2i(1, -1)), remaining());
+		assertTrue(residency.isOverBudget());
+		assertEquals(0, evict(residency));
+		assertEquals(5, residency.getEvictedCount());
+	}
+}
@@ -0,0 +1,129 @@
+package nl.andrewl.infinirails.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the ring's region bookkeeping on heap memory. Copying from regions
+ * and fencing them needs OpenGL, so only discarded regions are reclaimed
+ * here.
+ */
+public class TerrainStagingRingTest {
+	private final ByteBuffer memory = ByteBuffer.allocate(100);
+	private final TerrainStagingRing ring = new TerrainStagingRing(memory);
+
+	/**
+	 * @return The region's offset in the ring, found by marking its memory.
+	 */
+	private int offsetOf(TerrainStagingRing.Region region) {
+		for (int i = 0; i < memory.capacity(); i++) memory.put(i, (byte) 0);
+		region.getMemory().put(0, (byte) 1);
+		for (int i = 0; i < memory.capacity(); i++) {
+			if (memory.get(i) == 1) return i;
+		}
+		throw new AssertionError("Region isn't in the ring's memory.");
+	}
+
+	@Test
+	public void regionsAreAlignedAndFailWhenFull() {
+		var a = ring.reserve(30);
+		var b = ring.reserve(1);
+		var c = ring.reserve(30);
+		assertEquals(0, offsetOf(a));
+		assertEquals(32, a.getMemory().capacity());
+		assertEquals(32, offsetOf(b));
+		assertEquals(4, b.getMemory().capacity());
+		assertEquals(36, offsetOf(c));
+		assertEquals(68, ring.getBytesInUse());
+		assertNull(ring.reserve(40));
+		assertNotNull(ring.reserve(32));
+		assertNull(ring.reserve(1));
+		assertEquals(100, ring.getBytesInUse());
+		assertEquals(4, ring.getReservedCount());
+		assertEquals(2, ring.getFailedCount());
+		assertNull(new TerrainStagingRing(ByteBuffer.allocate(100)).reserve(101));
+	}
+
+	@Test
+	public void regionsAreReclaimedInOrderAndWrapAround() {
+		var a = ring.reserve(32);
+		var b = ring.reserve(32);
+		var c = ring.reserve(32);
+		assertNull(ring.reserve(32));
+
+		// A region after one that's still in use isn't reclaimed yet.
+		ring.discard(b);
+		assertTrue(b.isReleased());
+		ring.reclaim();
+		assertEquals(96, ring.getBytesInUse());
+		assertNull(ring.reserve(32));
+
+		ring.discard(a);
+		ring.reclaim();
+		assertEquals(32, ring.getBytesInUse());
+		// There's no room left at the end, so the next region wraps around, and the skipped bytes count as used.
+		var d = ring.reserve(32);
+		assertEquals(0, offsetOf(d));
+		assertEquals(68, ring.getBytesInUse());
+		var e = ring.reserve(32);
+		assertEquals(32, offsetOf(e));
+		assertEquals(100, ring.getBytesInUse());
+		assertNull(ring.reserve(4));
+
+		ring.discard(c);
+		ring.discard(d);
+		ring.reclaim();
+		assertEquals(32, ring.getBytesInUse());
+		ring.discard(e);
+		ring.reclaim();
+		assertEquals(0, ring.getBytesInUse());
+		assertEquals(0, offsetOf(ring.reserve(100)));
+	}
+
+	@Test
+	public void concurrentRegionsNeverOverlap() throws Exception {
+		var memory = ByteBuffer.allocate(4096);
+		var ring = new TerrainStagingRing(memory);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			for (int t = 1; t <= 4; t++) {
+				byte id = (byte) t;
+				results.add(executor.submit(() -> {
+					int reserved = 0;
+					for (int n = 0; n < 2000; n++) {
+						var region = ring.reserve(4 + (n * 7 + id * 13) % 300);
+						if (region == null) {
+							ring.reclaim();
+							continue;
+						}
+						var bytes = region.getMemory();
+						for (int i = 0; i < bytes.capacity(); i++) bytes.put(i, id);
+						Thread.yield();
+						for (int i = 0; i < bytes.capacity(); i++) {
+							assertEquals(id, bytes.get(i), "Another thread wrote into this region.");
+						}
+						ring.discard(region);
+						reserved++;
+					}
+					return reserved;
+				}));
+			}
+			long reserved = 0;
+			for (var result : results) reserved += result.get();
+			assertEquals(reserved, ring.getReservedCount());
+			ring.reclaim();
+			assertEquals(0, ring.getBytesInUse());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
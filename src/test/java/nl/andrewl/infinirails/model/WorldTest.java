@@ -0,0 +1,34 @@
+package nl.andrewl.infinirails.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class WorldTest {
+	@Test
+	public void fragmentCoordinatesRoundDown() {
+		assertEquals(0, World.getTerrainFragmentCoordinate(0f));
+		assertEquals(0, World.getTerrainFragmentCoordinate(99.9f));
+		assertEquals(1, World.getTerrainFragmentCoordinate(100f));
+		assertEquals(-1, World.getTerrainFragmentCoordinate(-0.1f));
+		assertEquals(-1, World.getTerrainFragmentCoordinate(-100f));
+		assertEquals(-2, World.getTerrainFragmentCoordinate(-100.5f));
+		assertEquals(-2, World.getTerrainFragmentCoordinate(-200f));
+	}
+
+	@Test
+	public void fragmentKeysAreDistinctForNegativeIndices() {
+		int[] indices = {Integer.MIN_VALUE, -2, -1, 0, 1, Integer.MAX_VALUE};
+		for (int x1 : indices) {
+			for (int y1 : indices) {
+				for (int x2 : indices) {
+					for (int y2 : indices) {
+						if (x1 == x2 && y1 == y2) continue;
+						assertNotEquals(World.getFragmentKey(x1, y1), World.getFragmentKey(x2, y2));
+					}
+				}
+			}
+		}
+	}
+}
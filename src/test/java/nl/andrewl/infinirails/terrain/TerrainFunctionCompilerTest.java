@@ -0,0 +1,187 @@
+package nl.andrewl.infinirails.terrain;
+
+import nl.andrewl.infinirails.FractalNoise;
+import nl.andrewl.infinirails.OpenSimplexNoise;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TerrainFunctionCompilerTest {
+	private static final int SIZE = 40;
+	private static final double STEP = 0.7;
+	private static final double[] ORIGINS = {0, -1234.5, 5e3};
+
+	private static FractalNoise hills, ridges;
+	/**
+	 * Uses every kind of node. Some operands are constant, some nodes are
+	 * shared, and some chains of pointwise operators can be fused.
+	 */
+	private static TerrainFunction function;
+
+	@BeforeAll
+	public static void setup() {
+		hills = FractalNoise.of(new OpenSimplexNoise(0L), FractalNoise.Mode.FBM, 6, 1 / 40.0, 10, 2, 0.5f, 0.01f);
+		ridges = FractalNoise.of(new OpenSimplexNoise(7L), FractalNoise.Mode.RIDGED, 5, 1 / 90.0, 20, 2, 0.5f, 0.01f);
+		var h = TerrainFunction.noise(hills);
+		var r = TerrainFunction.noise(ridges);
+		var two = TerrainFunction.constant(1).scale(4).offset(-2);
+		var warped = TerrainFunction.warpedNoise(hills, r.scale(0.1f), h.scale(0.2f), 1.5f);
+		var shaped = h.scale(-1.5f).offset(2).clamp(-8, 8).curve(new float[]{-6, 0, 6}, new float[]{-9, 1, 4});
+		var mixed = TerrainFunction.max(
+				TerrainFunction.min(shaped, r.scale(0.7f)),
+				TerrainFunction.subtract(TerrainFunction.multiply(h, r.offset(1)), warped).scale(0.05f)
+		);
+		function = TerrainFunction.select(
+				h,
+				TerrainFunction.subtract(two, mixed),
+				TerrainFunction.min(two.scale(5), mixed.plus(warped)).times(two),
+				0, 3
+		);
+	}
+
+	@Test
+	public void constantsAreFoldedAndChainsFused() {
+		var noise = TerrainFunction.noise(hills);
+		var constant = TerrainFunction.constant(2).scale(3).offset(1).clamp(0, 5);
+		assertEquals(1, constant.compile().getInstructionCount());
+		// One sample, and one chain for all of the operators.
+		var chain = TerrainFunction.subtract(constant, noise.scale(2)).offset(1).times(constant).clamp(-3, 3);
+		assertEquals(2, chain.compile().getInstructionCount());
+		// A shared node ends a chain, since it's needed by something else too.
+		var shared = noise.scale(2);
+		assertEquals(4, shared.plus(shared.offset(1)).compile().getInstructionCount());
+
+		float[] values = new float[SIZE * SIZE], expected = new float[SIZE * SIZE];
+		constant.compile().evalGrid(values, 0, 0, 0, STEP, SIZE, SIZE);
+		for (float v : values) assertEquals(5f, v);
+		chain.compile().evalGrid(values, 0, 12, -34, STEP, SIZE, SIZE);
+		hills.evalGrid(expected, 0, 12, -34, STEP, SIZE, SIZE);
+		for (int k = 0; k < values.length; k++) {
+			assertEquals(Math.max(-3, Math.min(3, (5 - expected[k] * 2 + 1) * 5)), values[k], 1e-5f);
+		}
+	}
+
+	/**
+	 * The compiled function must give the same values and derivatives as
+	 * evaluating the graph node by node, without any folding or fusion.
+	 */
+	@Test
+	public void compiledMatchesUnfusedGraph() {
+		var compiled = function.compile();
+		int n = SIZE * SIZE;
+		float[] values = new float[n], dxs = new float[n], dys = new float[n], plain = new float[n];
+		for (double origin : ORIGINS) {
+			compiled.evalGridWithDerivatives(values, dxs, dys, 0, origin, -origin, STEP, SIZE, SIZE);
+			compiled.evalGrid(plain, 0, origin, -origin, STEP, SIZE, SIZE);
+			for (int i = 0; i < SIZE; i++) {
+				for (int j = 0; j < SIZE; j++) {
+					int k = i * SIZE + j;
+					float[] expected = evalUnfused(function, origin + j * STEP, -origin + i * STEP, STEP);
+					String where = String.format("origin %.1f, sample (%d, %d)", origin, i, j);
+					assertEquals(values[k], plain[k], where);
+					assertEquals(expected[0], values[k], tolerance(expected[0]), "Value differs at " + where);
+					assertEquals(expected[1], dxs[k], tolerance(expected[1]), "d/dx differs at " + where);
+					assertEquals(expected[2], dys[k], tolerance(expected[2]), "d/dy differs at " + where);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The derivatives must match central differences of the values, except
+	 * near the few kinks that clamps, curves, min and max put in the surface.
+	 */
+	@Test
+	public void derivativesMatchFiniteDifferences() {
+		var compiled = function.compile();
+		double h = 1e-2;
+		float[] values = new float[9], dxs = new float[9], dys = new float[9];
+		int points = 0, mismatches = 0;
+		for (double origin : ORIGINS) {
+			for (int i = 0; i < SIZE; i++) {
+				for (int j = 0; j < SIZE; j++) {
+					double x = origin + j * STEP, y = -origin + i * STEP;
+					// A 3x3 grid around the point, with octaves chosen for the usual step, not the tiny one.
+					compiled.evalGridWithDerivatives(values, dxs, dys, 0, x - h, y - h, h, STEP, 3, 3);
+					float dx = (float) ((values[5] - values[3]) / (2 * h));
+					float dy = (float) ((values[7] - values[1]) / (2 * h));
+					points++;
+					if (Math.abs(dx - dxs[4]) > 2e-2f + 2e-2f * Math.abs(dx) || Math.abs(dy - dys[4]) > 2e-2f + 2e-2f * Math.abs(dy)) {
+						mismatches++;
+					}
+				}
+			}
+		}
+		assertTrue(mismatches <= points / 100, mismatches + " of " + points + " derivatives don't match finite differences.");
+	}
+
+	private static float tolerance(float expected) {
+		return 1e-4f + 1e-5f * Math.abs(expected);
+	}
+
+	/**
+	 * Evaluates a function and its derivatives at a point by recursing through
+	 * the graph, applying each node on its own.
+	 */
+	private static float[] evalUnfused(TerrainFunction node, double x, double y, double detailStep) {
+		if (node instanceof TerrainFunction.Constant c) {
+			return new float[]{c.value, 0, 0};
+		}
+		if (node instanceof TerrainFunction.Noise noise) {
+			return sample(noise.noise, x, y, detailStep);
+		}
+		if (node instanceof TerrainFunction.WarpedNoise w) {
+			float[] wx = evalUnfused(w.warpX, x, y, detailStep), wy = evalUnfused(w.warpY, x, y, detailStep);
+			float s = w.strength;
+			float[] p = sample(w.noise, x + s * wx[0], y + s * wy[0], detailStep);
+			return new float[]{
+					p[0],
+					p[1] * (1 + s * wx[1]) + p[2] * s * wy[1],
+					p[1] * s * wx[2] + p[2] * (1 + s * wy[2])
+			};
+		}
+		if (node instanceof TerrainFunction.Pointwise p) {
+			float[] in = evalUnfused(p.input, x, y, detailStep);
+			float[] value = {in[0]}, slope = {1};
+			p.stage.apply(value, slope, 1);
+			return new float[]{value[0], in[1] * slope[0], in[2] * slope[0]};
+		}
+		if (node instanceof TerrainFunction.Binary b) {
+			float[] a = evalUnfused(b.a, x, y, detailStep), c = evalUnfused(b.b, x, y, detailStep);
+			return switch (b.op) {
+				case ADD -> new float[]{a[0] + c[0], a[1] + c[1], a[2] + c[2]};
+				case SUBTRACT -> new float[]{a[0] - c[0], a[1] - c[1], a[2] - c[2]};
+				case MULTIPLY -> new float[]{a[0] * c[0], a[1] * c[0] + a[0] * c[1], a[2] * c[0] + a[0] * c[2]};
+				case MIN -> a[0] <= c[0] ? a : c;
+				case MAX -> a[0] >= c[0] ? a : c;
+			};
+		}
+		if (node instanceof TerrainFunction.Select s) {
+			float[] c = evalUnfused(s.control, x, y, detailStep);
+			float[] lo = evalUnfused(s.low, x, y, detailStep), hi = evalUnfused(s.high, x, y, detailStep);
+			float t = (c[0] - (s.threshold - s.falloff)) / (2 * s.falloff);
+			float blend = 0, slope = 0;
+			if (t >= 1) {
+				blend = 1;
+			} else if (t > 0) {
+				blend = t * t * (3 - 2 * t);
+				slope = 6 * t * (1 - t) / (2 * s.falloff);
+			}
+			float diff = hi[0] - lo[0];
+			return new float[]{
+					lo[0] + blend * diff,
+					lo[1] + blend * (hi[1] - lo[1]) + slope * diff * c[1],
+					lo[2] + blend * (hi[2] - lo[2]) + slope * diff * c[2]
+			};
+		}
+		throw new IllegalArgumentException("Unknown terrain function " + node.getClass().getSimpleName());
+	}
+
+	private static float[] sample(FractalNoise noise, double x, double y, double detailStep) {
+		double[] p = new double[3];
+		noise.sampler().evalWithDerivatives(x, y, noise.octavesForStep(detailStep), p);
+		return new float[]{(float) p[0], (float) p[1], (float) p[2]};
+	}
+}
@@ -0,0 +1,133 @@
+package nl.andrewl.infinirails.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LongHashMapTest {
+	/**
+	 * The capacity of a map created for this many entries, which is 8.
+	 */
+	private static final int SMALL_SIZE = 4;
+	private static final int SMALL_MASK = 7;
+
+	/**
+	 * Finds the first keys at or after start whose home slot, in a map of
+	 * capacity 8, is the given one.
+	 */
+	private static long[] keysWithSlot(int slot, int count, long start) {
+		long[] keys = new long[count];
+		int found = 0;
+		for (long key = start; found < count; key++) {
+			if (LongHashMap.slot(key, SMALL_MASK) == slot) keys[found++] = key;
+		}
+		return keys;
+	}
+
+	/**
+	 * Three keys that all want the last slot probe around to the start of the
+	 * table, where a fourth key that wants slot 0 has to go after them.
+	 * Removing any one of them must leave the rest reachable.
+	 */
+	@Test
+	public void collidingKeysWrapAroundAndSurviveRemoval() {
+		long[] last = keysWithSlot(SMALL_MASK, 3, -1000);
+		long first = keysWithSlot(0, 1, -1000)[0];
+		long[] all = {last[0], last[1], last[2], first};
+		for (int removed = 0; removed < all.length; removed++) {
+			var map = new LongHashMap<String>(SMALL_SIZE);
+			for (long key : all) map.put(key, "v" + key);
+			assertEquals(all.length, map.size());
+			assertEquals("v" + all[removed], map.remove(all[removed]));
+			assertNull(map.remove(all[removed]));
+			assertEquals(all.length - 1, map.size());
+			for (long key : all) {
+				if (key == all[removed]) {
+					assertNull(map.get(key));
+					assertFalse(map.containsKey(key));
+				} else {
+					assertEquals("v" + key, map.get(key), "Lost key " + key + " after removing " + all[removed]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void matchesHashMapUnderRandomOperations() {
+		var random = new Random(42);
+		var map = new LongHashMap<Integer>(SMALL_SIZE);
+		var expected = new HashMap<Long, Integer>();
+		for (int op = 0; op < 200_000; op++) {
+			// A small range of fragment indices around the origin, so keys are often negative and often repeat.
+			long key = packed(random.nextInt(64) - 32, random.nextInt(64) - 32);
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				assertEquals(expected.put(key, op), map.put(key, op));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (int x = -33; x <= 33; x++) {
+			for (int y = -33; y <= 33; y++) {
+				assertEquals(expected.get(packed(x, y)), map.get(packed(x, y)));
+			}
+		}
+		assertEquals(new HashSet<>(expected.values()), new HashSet<>(map.values()));
+		assertEquals(expected.size(), map.values().size());
+	}
+
+	@Test
+	public void growsAndClears() {
+		var map = new LongHashMap<Long>(SMALL_SIZE);
+		for (long key = -500; key < 500; key++) map.put(key * 0x1_0000_0001L, key);
+		assertEquals(1000, map.size());
+		for (long key = -500; key < 500; key++) assertEquals(key, map.get(key * 0x1_0000_0001L));
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(0));
+		assertFalse(map.values().iterator().hasNext());
+	}
+
+	@Test
+	public void valuesFailFast() {
+		var removing = mapOfTen();
+		assertThrows(ConcurrentModificationException.class, () -> {
+			for (var value : removing.values()) removing.remove(0);
+		});
+		var adding = mapOfTen();
+		assertThrows(ConcurrentModificationException.class, () -> {
+			for (var value : adding.values()) adding.put(100, value);
+		});
+		// Replacing a value doesn't change the map's structure.
+		var replacing = mapOfTen();
+		List<String> seen = new ArrayList<>();
+		for (var value : replacing.values()) {
+			replacing.put(1, "replaced");
+			seen.add(value);
+		}
+		assertEquals(10, seen.size());
+	}
+
+	private static LongHashMap<String> mapOfTen() {
+		var map = new LongHashMap<String>();
+		for (long key = 0; key < 10; key++) map.put(key, "v" + key);
+		return map;
+	}
+
+	@Test
+	public void rejectsNullValues() {
+		var map = new LongHashMap<String>();
+		assertThrows(IllegalArgumentException.class, () -> map.put(1, null));
+	}
+
+	private static long packed(int x, int y) {
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+}